@@ -645,6 +645,20 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         }
     }
 
+    /**
+     * Store the sync key in the database.
+     * @param c Makes provider calls
+     * @param syncKey New sync key
+     */
+    public void updateSyncKey(final Context c, final String syncKey) {
+        if (!TextUtils.equals(syncKey, mSyncKey)) {
+            final ContentValues values = new ContentValues(1);
+            values.put(MailboxColumns.SYNC_KEY, syncKey);
+            update(c, values);
+            mSyncKey = syncKey;
+        }
+    }
+
     /**
      * Store the last full sync time in the database.
      * @param c Makes provider calls
@@ -388,6 +388,22 @@ public class AttachmentUtilities {
         return size;
     }
 
+    /**
+     * Mark an attachment as saved in the cache, once its content has been written directly to
+     * {@link #getAttachmentFilename}, e.g. while it was being downloaded.  This is the same as
+     * what {@link #saveAttachment} does for {@link UIProvider.AttachmentDestination#CACHE}, but
+     * without copying the content again.
+     */
+    public static void saveAttachmentFile(Context context, Attachment attachment, long size) {
+        final Uri uri = ContentUris.withAppendedId(Attachment.CONTENT_URI, attachment.mId);
+        final ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.SIZE, size);
+        cv.put(AttachmentColumns.CONTENT_URI,
+                getAttachmentUri(attachment.mAccountKey, attachment.mId).toString());
+        cv.put(AttachmentColumns.UI_STATE, UIProvider.AttachmentState.SAVED);
+        context.getContentResolver().update(uri, cv, null, null);
+    }
+
     /**
      * Save the attachment to its final resting place (cache or sd card)
      */
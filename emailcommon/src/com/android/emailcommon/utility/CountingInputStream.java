@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A simple pass-thru InputStream that also counts how many bytes are read from it and
+ * makes that count available to callers.
+ */
+public class CountingInputStream extends InputStream {
+    private long mCount;
+    private final InputStream mInputStream;
+
+    public CountingInputStream(InputStream inputStream) {
+        mInputStream = inputStream;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = mInputStream.read();
+        if (b >= 0) {
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        final int read = mInputStream.read(buffer, offset, count);
+        if (read > 0) {
+            mCount += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        final long skipped = mInputStream.skip(count);
+        mCount += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mInputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+}
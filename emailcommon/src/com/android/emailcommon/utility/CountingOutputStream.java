@@ -46,4 +46,14 @@ public class CountingOutputStream extends OutputStream {
         mOutputStream.write(oneByte);
         mCount++;
     }
+
+    @Override
+    public void flush() throws IOException {
+        mOutputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOutputStream.close();
+    }
 }
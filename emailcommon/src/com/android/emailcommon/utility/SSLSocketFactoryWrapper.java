@@ -40,7 +40,7 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
     private final int mHandshakeTimeout;
     private final String[] mDefaultCipherSuites;
 
-    private final String[] DEPRECATED_CIPHER_SUITES_TO_ENABLE = new String[] {
+    private static final String[] DEPRECATED_CIPHER_SUITES_TO_ENABLE = new String[] {
             "TLS_ECDHE_ECDSA_WITH_3DES_EDE_CBC_SHA",
             "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA",
             "SSL_DHE_DSS_WITH_3DES_EDE_CBC_SHA",
@@ -70,17 +70,25 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
         mSecure = secure;
         mHandshakeTimeout = handshakeTimeout;
 
+        mDefaultCipherSuites = getDefaultCipherSuites(mFactory.getDefaultCipherSuites(),
+                mFactory.getSupportedCipherSuites());
+    }
+
+    /**
+     * Returns the cipher suites to enable on our sockets and engines: the {@code baseDefault}
+     * ones, followed by the deprecated ones we still accept if they are {@code baseSupported}.
+     */
+    static String[] getDefaultCipherSuites(final String[] baseDefault,
+            final String[] baseSupported) {
         // Find the base factory's list of defaultCipherSuites, and merge our extras with it.
         // Remember that the order is important. We'll add our extras at the end, and only
         // if they weren't already in the base factory's list.
-        final String[] baseDefaultCipherSuites = mFactory.getDefaultCipherSuites();
         final List<String> fullCipherSuiteList = new ArrayList<String>(Arrays.asList(
-                mFactory.getDefaultCipherSuites()));
+                baseDefault));
         final Set<String> baseDefaultCipherSuiteSet = new HashSet<String>(fullCipherSuiteList);
 
-        final String[] baseSupportedCipherSuites = mFactory.getSupportedCipherSuites();
         final Set<String> baseSupportedCipherSuiteSet = new HashSet<String>(Arrays.asList(
-                mFactory.getSupportedCipherSuites()));
+                baseSupported));
 
         for (String cipherSuite : DEPRECATED_CIPHER_SUITES_TO_ENABLE) {
             if (baseSupportedCipherSuiteSet.contains(cipherSuite) &&
@@ -88,8 +96,9 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
                 fullCipherSuiteList.add(cipherSuite);
             }
         }
-        mDefaultCipherSuites = new String[fullCipherSuiteList.size()];
-        fullCipherSuiteList.toArray(mDefaultCipherSuites);
+        final String[] defaultCipherSuites = new String[fullCipherSuiteList.size()];
+        fullCipherSuiteList.toArray(defaultCipherSuites);
+        return defaultCipherSuites;
     }
 
     public static SSLSocketFactory getDefault(final KeyManager[] keyManagers, int handshakeTimeout)
@@ -44,6 +44,9 @@ import java.security.cert.X509Certificate;
 import java.util.Arrays;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509ExtendedKeyManager;
 import javax.net.ssl.X509TrustManager;
@@ -51,6 +54,8 @@ import javax.net.ssl.X509TrustManager;
 public class SSLUtils {
     // All secure factories are the same; all insecure factories are associated with HostAuth's
     private static javax.net.ssl.SSLSocketFactory sSecureFactory;
+    // Same for the contexts of the engines, see createSSLEngine()
+    private static SSLContext sSecureContext;
 
     private static final boolean LOG_ENABLED = false;
     private static final String TAG = "Email.Ssl";
@@ -192,6 +197,50 @@ public class SSLUtils {
         return null;
     }
 
+    /**
+     * Returns a client {@link SSLEngine} for {@code host}, for connections which are read
+     * without blocking.  It checks certificates like the sockets of
+     * {@link #getSSLSocketFactory}, and enables the same cipher suites, but the caller must
+     * verify the hostname itself once the handshake is done.
+     *
+     * @param insecure if true, bypass all SSL certificate checks
+     */
+    public synchronized static SSLEngine createSSLEngine(final Context context,
+            final HostAuth hostAuth, final KeyManager keyManager, final boolean insecure,
+            final String host, final int port) throws SSLException {
+        if (sExternalSecurityProviderInstaller != null) {
+            sExternalSecurityProviderInstaller.installIfNeeded(context);
+        }
+        try {
+            final KeyManager[] keyManagers = (keyManager == null ? null :
+                    new KeyManager[]{keyManager});
+            final SSLContext sslContext;
+            if (insecure) {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(keyManagers, new TrustManager[]{
+                        new SameCertificateCheckingTrustManager(context, hostAuth)}, null);
+            } else {
+                if (sSecureContext == null) {
+                    final SSLContext secureContext = SSLContext.getInstance("TLS");
+                    secureContext.init(keyManagers, null, null);
+                    sSecureContext = secureContext;
+                }
+                sslContext = sSecureContext;
+            }
+            final SSLEngine engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            engine.setEnabledCipherSuites(SSLSocketFactoryWrapper.getDefaultCipherSuites(
+                    engine.getEnabledCipherSuites(), engine.getSupportedCipherSuites()));
+            return engine;
+        } catch (NoSuchAlgorithmException e) {
+            LogUtils.wtf(TAG, e, "Unable to acquire SSLEngine");
+            throw new SSLException(e);
+        } catch (KeyManagementException e) {
+            LogUtils.wtf(TAG, e, "Unable to acquire SSLEngine");
+            throw new SSLException(e);
+        }
+    }
+
     /**
      * Returns a com.android.emailcommon.utility.SSLSocketFactory
      */
@@ -41,6 +41,8 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
@@ -58,6 +60,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 public class LegacyConversions {
 
@@ -155,6 +158,50 @@ public class LegacyConversions {
         return true;
     }
 
+    /**
+     * Same as {@link #updateMessageFields}, for a message stored in the DB which wasn't restored.
+     * Only the columns set from {@code message} are returned, to update the stored message with.
+     *
+     * @param localMessage the stored message, with at least its flags, loaded state and timestamp
+     * @return the values of the columns to update
+     */
+    public static ContentValues getMessageFieldsValues(final EmailContent.Message localMessage,
+            final Message message, final long accountId, final long mailboxId)
+            throws MessagingException {
+        updateMessageFields(localMessage, message, accountId, mailboxId);
+
+        final ContentValues values = new ContentValues();
+        // These are only set when the message has them
+        final Address[] from = message.getFrom();
+        if (from != null && from.length > 0) {
+            values.put(MessageColumns.DISPLAY_NAME, localMessage.mDisplayName);
+            values.put(MessageColumns.FROM_LIST, localMessage.mFrom);
+            // It depends on the display name, which we don't know otherwise
+            values.put(MessageColumns.FLAG_LOADED, localMessage.mFlagLoaded);
+        }
+        if (message.getSubject() != null) {
+            values.put(MessageColumns.SUBJECT, localMessage.mSubject);
+        }
+        if (message.getInternalDate() != null) {
+            values.put(SyncColumns.SERVER_TIMESTAMP, localMessage.mServerTimeStamp);
+        }
+        if (message.getMessageId() != null) {
+            values.put(MessageColumns.MESSAGE_ID, localMessage.mMessageId);
+        }
+        values.put(MessageColumns.TIMESTAMP, localMessage.mTimeStamp);
+        values.put(MessageColumns.FLAG_READ, localMessage.mFlagRead);
+        values.put(MessageColumns.FLAG_FAVORITE, localMessage.mFlagFavorite);
+        values.put(MessageColumns.FLAGS, localMessage.mFlags);
+        values.put(SyncColumns.SERVER_ID, localMessage.mServerId);
+        values.put(MessageColumns.MAILBOX_KEY, localMessage.mMailboxKey);
+        values.put(MessageColumns.ACCOUNT_KEY, localMessage.mAccountKey);
+        values.put(MessageColumns.TO_LIST, localMessage.mTo);
+        values.put(MessageColumns.CC_LIST, localMessage.mCc);
+        values.put(MessageColumns.BCC_LIST, localMessage.mBcc);
+        values.put(MessageColumns.REPLY_TO_LIST, localMessage.mReplyTo);
+        return values;
+    }
+
     /**
      * Copy attachments from MimeMessage to provider Message.
      *
@@ -184,6 +231,74 @@ public class LegacyConversions {
         }
     }
 
+    /**
+     * Same as {@link #updateAttachments} followed by {@link #updateInlineAttachments}, but the
+     * attachments are only built, not saved, e.g. to save them in a batch with the message.
+     * The ones which match one of {@code dbAttachments}, already saved for the message, get its
+     * id.  Nothing is written: the caller still has to save the new attachments, then the bodies
+     * of the parts which have one with {@link #saveAttachmentBody}.
+     *
+     * @param localMessage the attachments will be built against this message, which gets them
+     * @param dbAttachments the attachments of the message in the database
+     * @param attachmentParts receives the part of each attachment, in the same order
+     */
+    public static void makeAttachments(final EmailContent.Message localMessage,
+            final ArrayList<Part> attachments, final ArrayList<Part> inlineAttachments,
+            final List<Attachment> dbAttachments, final ArrayList<Part> attachmentParts)
+            throws MessagingException {
+        final ArrayList<Part> parts = new ArrayList<Part>(attachments);
+        for (final Part inlinePart : inlineAttachments) {
+            final String disposition = MimeUtility.getHeaderParameter(
+                    MimeUtility.unfoldAndDecode(inlinePart.getDisposition()), null);
+            if (!TextUtils.isEmpty(disposition)) {
+                parts.add(inlinePart);
+            }
+        }
+
+        localMessage.mAttachments = null;
+        final ArrayList<Attachment> known = new ArrayList<Attachment>(dbAttachments);
+        for (final Part part : parts) {
+            final Attachment localAttachment = mimePartToAttachment(part);
+            localAttachment.mMessageKey = localMessage.mId;
+            localAttachment.mAccountKey = localMessage.mAccountKey;
+            Attachment match = null;
+            for (final Attachment knownAttachment : known) {
+                if (isSameAttachment(knownAttachment, localAttachment)) {
+                    match = knownAttachment;
+                    break;
+                }
+            }
+            if (match == null) {
+                known.add(localAttachment);
+            } else if (match.isSaved()) {
+                localAttachment.mId = match.mId;
+            } else {
+                // The same attachment twice in the message; keep one of the copies
+                continue;
+            }
+
+            if (localMessage.mAttachments == null) {
+                localMessage.mAttachments = new ArrayList<Attachment>();
+            }
+            localMessage.mAttachments.add(localAttachment);
+            localMessage.mFlagAttachment = true;
+            attachmentParts.add(part);
+        }
+    }
+
+    /**
+     * @return whether two attachments of a message are the same, judging by the fields which
+     * {@link #addOneAttachment} checks for equality.
+     */
+    private static boolean isSameAttachment(final Attachment a, final Attachment b) {
+        // We test each of the fields here (instead of in SQL) because they may be
+        // null, or may be strings.
+        return TextUtils.equals(a.mFileName, b.mFileName)
+                && TextUtils.equals(a.mMimeType, b.mMimeType)
+                && TextUtils.equals(a.mContentId, b.mContentId)
+                && TextUtils.equals(a.mLocation, b.mLocation);
+    }
+
     /**
      * Convert a MIME Part object into an Attachment object. Separated for unit testing.
      *
@@ -278,12 +393,7 @@ public class LegacyConversions {
             while (cursor.moveToNext()) {
                 final Attachment dbAttachment = new Attachment();
                 dbAttachment.restore(cursor);
-                // We test each of the fields here (instead of in SQL) because they may be
-                // null, or may be strings.
-                if (!TextUtils.equals(dbAttachment.mFileName, localAttachment.mFileName) ||
-                        !TextUtils.equals(dbAttachment.mMimeType, localAttachment.mMimeType) ||
-                        !TextUtils.equals(dbAttachment.mContentId, localAttachment.mContentId) ||
-                        !TextUtils.equals(dbAttachment.mLocation, localAttachment.mLocation)) {
+                if (!isSameAttachment(dbAttachment, localAttachment)) {
                     continue;
                 }
                 // We found a match, so use the existing attachment id, and stop looking/looping
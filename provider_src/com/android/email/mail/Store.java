@@ -36,6 +36,8 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Store is the legacy equivalent of the Account class
@@ -93,6 +95,10 @@ public abstract class Store {
         if (!account.isTemporary()) {
             Store store = sStores.get(hostAuth);
             if (store == null) {
+                // If the server settings changed, the connections of the old store are useless
+                if (hostAuth.mId != EmailContent.NOT_SAVED) {
+                    removeInstances(hostAuth.mId, EmailContent.NOT_SAVED);
+                }
                 store = createInstanceInternal(account, context, true);
             } else {
                 // Make sure the account object is up to date (according to the caller, at least)
@@ -145,6 +151,40 @@ public abstract class Store {
         return sStores.remove(HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv));
     }
 
+    /**
+     * Delete the mail stores of the account with id {@code accountId}, e.g. after it was deleted,
+     * and close their connections.
+     */
+    public synchronized static void removeInstancesForAccount(long accountId) {
+        removeInstances(EmailContent.NOT_SAVED, accountId);
+    }
+
+    /**
+     * Delete the cached stores for the HostAuth with id {@code hostAuthId} or the account with
+     * id {@code accountId}, and close their connections.
+     */
+    private synchronized static void removeInstances(long hostAuthId, long accountId) {
+        final Iterator<Map.Entry<HostAuth, Store>> it = sStores.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<HostAuth, Store> entry = it.next();
+            final Store store = entry.getValue();
+            if (entry.getKey().mId == hostAuthId
+                    || (store.mAccount != null && store.mAccount.mId == accountId)) {
+                it.remove();
+                store.closeConnections();
+            }
+        }
+    }
+
+    /**
+     * Close the connections kept by all the cached stores, e.g. when the network is lost.
+     */
+    public synchronized static void closeAllConnections() {
+        for (Store store : sStores.values()) {
+            store.closeConnections();
+        }
+    }
+
     /**
      * Some protocols require that a sent message be copied (uploaded) into the Sent folder
      * while others can take care of it automatically (ideally, on the server).  This function
@@ -230,6 +270,15 @@ public abstract class Store {
         // Base implementation does nothing.
     }
 
+    /**
+     * Close the connections kept for reuse for too long.  Stores keeping authenticated
+     * connections across syncs should be told this after each sync instead of
+     * {@link #closeConnections}.
+     */
+    public void closeExpiredConnections() {
+        // Base implementation does nothing.
+    }
+
     public Account getAccount() {
         return mAccount;
     }
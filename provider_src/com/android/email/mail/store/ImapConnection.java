@@ -23,6 +23,7 @@ import com.android.email.DebugUtils;
 import com.android.email.mail.internet.AuthenticationCache;
 import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapFetchHandler;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapResponseParser;
@@ -36,7 +37,7 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
-import java.net.SocketTimeoutException;
+import java.nio.channels.SelectableChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -58,7 +59,11 @@ class ImapConnection {
     public static final int DONE_TIMEOUT = 5 * 1000;
 
     // Time to wait between the first idle message and triggering the changes
-    private static final int IDLE_OP_READ_TIMEOUT = 500;
+    public static final int IDLE_OP_READ_TIMEOUT = 500;
+
+    // Max # of commands written to the server before reading their responses, so that neither
+    // side blocks on a full socket buffer
+    /* package */ static final int MAX_PIPELINED_COMMANDS = 16;
 
     /** ID capability per RFC 2971*/
     public static final int CAPABILITY_ID        = 1 << 0;
@@ -70,9 +75,21 @@ class ImapConnection {
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
     /** IDLE capability per RFC 2177 */
     public static final int CAPABILITY_IDLE      = 1 << 4;
+    /** CONDSTORE capability per RFC 7162 */
+    public static final int CAPABILITY_CONDSTORE = 1 << 5;
+    /** QRESYNC capability per RFC 7162 */
+    public static final int CAPABILITY_QRESYNC   = 1 << 6;
+    /** COMPRESS=DEFLATE capability per RFC 4978 */
+    public static final int CAPABILITY_COMPRESS  = 1 << 7;
+    /** MOVE capability per RFC 6851 */
+    public static final int CAPABILITY_MOVE      = 1 << 8;
+    /** NOTIFY capability per RFC 5465 */
+    public static final int CAPABILITY_NOTIFY    = 1 << 9;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
+    /** Whether QRESYNC has been enabled on this connection. */
+    private boolean mQresyncEnabled;
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     MailTransport mTransport;
     private ImapResponseParser mParser;
@@ -96,6 +113,9 @@ class ImapConnection {
 
     private String mTransportTag;
 
+    /** When this connection was last put in the pool of its store, in elapsed realtime. */
+    private long mPooledTime;
+
     // Keep others from instantiating directly
     ImapConnection(ImapStore store) {
         setStore(store);
@@ -109,6 +129,14 @@ class ImapConnection {
         mLoginPhrase = null;
     }
 
+    long getPooledTime() {
+        return mPooledTime;
+    }
+
+    void setPooledTime(long pooledTime) {
+        mPooledTime = pooledTime;
+    }
+
     void setTransportTag(String tag) {
         mTransportTag = tag;
         if (mTransport != null) {
@@ -160,6 +188,7 @@ class ImapConnection {
             return;
         }
 
+        boolean opened = false;
         try {
             // copy configuration into a clean transport, if necessary
             if (mTransport == null) {
@@ -171,32 +200,55 @@ class ImapConnection {
 
             createParser();
 
-            // BANNER
-            mParser.readResponse();
+            // What the server told about itself on a previous connection, if still trusted
+            final ImapStore.ServerCapabilities cachedCapabilities =
+                    mImapStore.getServerCapabilities();
 
-            // CAPABILITY
-            ImapResponse capabilities = queryCapabilities();
+            // BANNER, which may list the capabilities
+            ImapList capabilities = getCapabilities(mParser.readResponse());
 
-            boolean hasStartTlsCapability =
-                capabilities.contains(ImapConstants.STARTTLS);
+            // CAPABILITY
+            final boolean hasStartTlsCapability;
+            if (capabilities != null) {
+                hasStartTlsCapability = capabilities.contains(ImapConstants.STARTTLS);
+            } else if (cachedCapabilities != null) {
+                hasStartTlsCapability = cachedCapabilities.mStartTls;
+            } else {
+                capabilities = queryCapabilities();
+                hasStartTlsCapability = capabilities.contains(ImapConstants.STARTTLS);
+            }
 
             // TLS
-            ImapResponse newCapabilities = doStartTls(hasStartTlsCapability);
-            if (newCapabilities != null) {
-                capabilities = newCapabilities;
+            if (doStartTls(hasStartTlsCapability)) {
+                // Per RFC requirement (3501-6.2.1) forget the capabilities from before TLS
+                capabilities = (cachedCapabilities != null) ? null : queryCapabilities();
             }
 
             // NOTE: An IMAP response MUST be processed before issuing any new IMAP
             // requests. Subsequent requests may destroy previous response data. As
             // such, we save away capability information here for future use.
-            setCapabilities(capabilities);
-            String capabilityString = capabilities.flatten();
+            final String capabilityString;
+            if (capabilities != null) {
+                mCapabilities = parseCapabilities(capabilities);
+                capabilityString = capabilities.flatten();
+                mImapStore.setServerCapabilities(new ImapStore.ServerCapabilities(
+                        hasStartTlsCapability, mCapabilities, capabilityString));
+            } else {
+                mCapabilities = cachedCapabilities.mCapabilities;
+                capabilityString = cachedCapabilities.mCapabilityString;
+            }
 
             // ID
             doSendId(isCapable(CAPABILITY_ID), capabilityString);
 
-            // LOGIN
-            doLogin();
+            // LOGIN, after which the server may announce more capabilities (RFC 3501 6.2.3)
+            final ImapList authenticatedCapabilities = doLogin();
+            if (authenticatedCapabilities != null) {
+                mCapabilities = parseCapabilities(authenticatedCapabilities);
+            }
+
+            // COMPRESS (only valid in the Authenticated state, and the sooner the better)
+            doCompress(isCapable(CAPABILITY_COMPRESS));
 
             // NAMESPACE (only valid in the Authenticated state)
             doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
@@ -204,7 +256,11 @@ class ImapConnection {
             // Gets the path separator from the server
             doGetPathSeparator();
 
+            // ENABLE QRESYNC (only valid in the Authenticated state)
+            doEnableQresync(isCapable(CAPABILITY_QRESYNC));
+
             mImapStore.ensurePrefixIsValid();
+            opened = true;
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e, "SSLException");
@@ -219,6 +275,10 @@ class ImapConnection {
             }
             throw ioe;
         } finally {
+            if (!opened && mImapStore != null) {
+                // Ask again next time, in case the server changed
+                mImapStore.clearServerInfo();
+            }
             destroyResponses();
         }
     }
@@ -229,6 +289,9 @@ class ImapConnection {
      */
     void close() {
         if (mTransport != null) {
+            if (DebugUtils.DEBUG) {
+                mTransport.logCompressionStats();
+            }
             mTransport.close();
             mTransport = null;
         }
@@ -259,26 +322,79 @@ class ImapConnection {
     }
 
     /**
-     * Sets the capability flags according to the response provided by the server.
+     * Returns the capability flags according to the response provided by the server.
      * Note: We only set the capability flags that we are interested in. There are many IMAP
      * capabilities that we do not track.
      */
-    private void setCapabilities(ImapResponse capabilities) {
+    /* package for testing */ static int parseCapabilities(ImapList capabilities) {
+        int flags = 0;
         if (capabilities.contains(ImapConstants.ID)) {
-            mCapabilities |= CAPABILITY_ID;
+            flags |= CAPABILITY_ID;
         }
         if (capabilities.contains(ImapConstants.NAMESPACE)) {
-            mCapabilities |= CAPABILITY_NAMESPACE;
+            flags |= CAPABILITY_NAMESPACE;
         }
         if (capabilities.contains(ImapConstants.UIDPLUS)) {
-            mCapabilities |= CAPABILITY_UIDPLUS;
+            flags |= CAPABILITY_UIDPLUS;
         }
         if (capabilities.contains(ImapConstants.STARTTLS)) {
-            mCapabilities |= CAPABILITY_STARTTLS;
+            flags |= CAPABILITY_STARTTLS;
         }
         if (capabilities.contains(ImapConstants.IDLE)) {
-            mCapabilities |= CAPABILITY_IDLE;
+            flags |= CAPABILITY_IDLE;
+        }
+        if (capabilities.contains(ImapConstants.CONDSTORE)) {
+            flags |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            flags |= CAPABILITY_QRESYNC;
+        }
+        if (capabilities.contains(ImapConstants.COMPRESS_DEFLATE)) {
+            flags |= CAPABILITY_COMPRESS;
         }
+        if (capabilities.contains(ImapConstants.MOVE)) {
+            flags |= CAPABILITY_MOVE;
+        }
+        if (capabilities.contains(ImapConstants.NOTIFY)) {
+            flags |= CAPABILITY_NOTIFY;
+        }
+        return flags;
+    }
+
+    /**
+     * @return the capabilities announced by {@code response}, either a CAPABILITY response or a
+     * status response with a CAPABILITY response code, e.g. "* OK [CAPABILITY IMAP4rev1 IDLE]"
+     * (RFC 3501 7.1); or null if it doesn't have any.
+     */
+    /* package for testing */ static ImapList getCapabilities(ImapResponse response) {
+        if (response.isDataResponse(0, ImapConstants.CAPABILITY)) {
+            return response;
+        }
+        if (response.getResponseCodeOrEmpty().is(ImapConstants.CAPABILITY)) {
+            return response.getListOrEmpty(1);
+        }
+        return null;
+    }
+
+    /**
+     * @return the capabilities announced among {@code responses}, or null if there are none.
+     */
+    private static ImapList getCapabilities(List<ImapResponse> responses) {
+        for (ImapResponse response : responses) {
+            final ImapList capabilities = getCapabilities(response);
+            if (capabilities != null) {
+                return capabilities;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether QRESYNC (RFC 7162) was enabled, so that SELECT can ask for the changes
+     * since a known mod-sequence.
+     */
+    boolean isQresyncEnabled() {
+        return mQresyncEnabled;
     }
 
     /**
@@ -308,6 +424,15 @@ class ImapConnection {
         return mParser.readResponse();
     }
 
+    /**
+     * Same as {@link #readResponse()}, but untagged FETCH responses are streamed to
+     * {@code fetchHandler}, in which case null is returned.
+     */
+    ImapResponse readResponse(ImapFetchHandler fetchHandler)
+            throws IOException, MessagingException {
+        return mParser.readResponse(fetchHandler);
+    }
+
     /**
      * Send a single command to the server.  The command will be preceded by an IMAP command
      * tag and followed by \r\n (caller need not supply them).
@@ -380,13 +505,105 @@ class ImapConnection {
         return tag;
     }
 
+    /**
+     * Send several commands to the server at once, without waiting for the responses of one
+     * before sending the next.  Each command is preceded by its own tag, and all of them are
+     * written with a single flush.  The caller must read the responses for all the returned tags.
+     *
+     * @param commands The commands to send to the server, not including IDLE or DONE
+     * @return Returns the command tags that were sent, in the same order as the commands
+     */
+    List<String> sendPipelinedCommands(List<String> commands)
+            throws MessagingException, IOException {
+        if (mIdling) {
+            throw new MessagingException("Cannot pipeline commands while idling");
+        }
+        open();
+        if (mTransport == null) {
+            throw new IOException("Null transport");
+        }
+        final List<String> tags = new ArrayList<String>(commands.size());
+        for (String command : commands) {
+            LogUtils.d(Logging.LOG_TAG, "sendCommand %s", command);
+            final String tag = Integer.toString(mNextCommandTag.incrementAndGet());
+            final String commandToSend = tag + " " + command;
+            mTransport.writeLineWithoutFlush(commandToSend, null);
+            mDiscourse.addSentCommand(commandToSend);
+            tags.add(tag);
+        }
+        mTransport.flush();
+        return tags;
+    }
+
     List<ImapResponse> executeSimpleCommand(String command) throws IOException, MessagingException {
         return executeSimpleCommand(command, false);
     }
 
-    List<ImapResponse> executeIdleCommand() throws IOException, MessagingException {
+    /**
+     * Send IDLE, and read the responses until the server accepts it, or refuses it with a tagged
+     * response.  The changes it reports from then on are read with
+     * {@link #readResponseIfAvailable()}, until it acknowledges DONE.
+     *
+     * @return the responses read, the last one being the idling response if the server accepted
+     */
+    List<ImapResponse> startIdling() throws IOException, MessagingException {
         mParser.expectIdlingResponse();
-        return executeSimpleCommand(ImapConstants.IDLE, false);
+        sendCommand(ImapConstants.IDLE, false);
+        final List<ImapResponse> responses = new ArrayList<ImapResponse>();
+        ImapResponse response;
+        do {
+            response = mParser.readResponse();
+            responses.add(response);
+        } while (!response.isIdling() && !response.isTagged());
+        if (response.isTagged()) {
+            mIdling = false;
+            mParser.resetIdlingStatus();
+        }
+        return responses;
+    }
+
+    /**
+     * Send DONE to end IDLE.  Unlike {@link #sendCommand}, this doesn't open the connection
+     * again if it was closed meanwhile.
+     */
+    void sendDone() throws IOException, MessagingException {
+        mIdling = false;
+        LogUtils.d(Logging.LOG_TAG, "sendCommand %s", ImapConstants.DONE);
+        sendCommandInternal(ImapConstants.DONE, false);
+    }
+
+    /**
+     * Done reading the responses of IDLE, after the server acknowledged DONE or the connection
+     * broke.
+     */
+    void stopIdling() {
+        mIdling = false;
+        final ImapResponseParser parser = mParser; // null if closed meanwhile
+        if (parser != null) {
+            parser.resetIdlingStatus();
+        }
+    }
+
+    /**
+     * @return the channel a selector can watch to know when
+     * {@link #readResponseIfAvailable()} may return something, or null if the connection is
+     * closed
+     */
+    SelectableChannel getChannel() {
+        final MailTransport transport = mTransport;
+        return transport != null ? transport.getChannel() : null;
+    }
+
+    /**
+     * Same as {@link #readResponse()}, except that null is returned rather than waiting when
+     * the server hasn't sent a whole response yet.
+     */
+    ImapResponse readResponseIfAvailable() throws IOException, MessagingException {
+        final ImapResponseParser parser = mParser; // might get reset during idling
+        if (parser == null) {
+            throw new IOException("Connection closed");
+        }
+        return parser.readAvailable() ? parser.readResponse() : null;
     }
 
     /**
@@ -398,50 +615,35 @@ class ImapConnection {
      */
     List<ImapResponse> getCommandResponses() throws IOException, MessagingException {
         final List<ImapResponse> responses = new ArrayList<ImapResponse>();
-        final ImapResponseParser parser = mParser; // might get reset during idling
-        ImapResponse response = null;
-        boolean idling = false;
-        boolean throwSocketTimeoutEx = true;
-        final int lastSocketTimeout = getReadTimeout();
-        try {
-            do {
-                response = parser.readResponse();
-                if (idling) {
-                    setReadTimeout(IDLE_OP_READ_TIMEOUT);
-                    throwSocketTimeoutEx = false;
-                }
-                responses.add(response);
-                if (response.isIdling()) {
-                    idling = true;
-                }
-            } while (idling || !response.isTagged());
-        } catch (SocketTimeoutException ex) {
-            if (throwSocketTimeoutEx) {
-                throw ex;
-            }
-        } finally {
-            parser.resetIdlingStatus();
-            if (lastSocketTimeout != getReadTimeout()) {
-                setReadTimeout(lastSocketTimeout);
-            }
-        }
+        ImapResponse response;
+        do {
+            response = mParser.readResponse();
+            responses.add(response);
+        } while (!response.isTagged());
 
-        // When idling, any response is valid; otherwise it must be OK
-        if (!response.isOk() && !idling) {
-            final String toString = response.toString();
-            final String status = response.getStatusOrEmpty().getString();
-            final String alert = response.getAlertTextOrEmpty().getString();
-            final String responseCode = response.getResponseCodeOrEmpty().getString();
-            destroyResponses();
+        if (!response.isOk()) {
+            throwCommandFailure(response);
+        }
+        return responses;
+    }
 
-            // if the response code indicates an error occurred within the server, indicate that
-            if (ImapConstants.UNAVAILABLE.equals(responseCode)) {
-                throw new MessagingException(MessagingException.SERVER_ERROR, alert);
-            }
+    /**
+     * Destroy the responses read so far and throw the exception matching a failed tagged
+     * response.
+     */
+    private void throwCommandFailure(ImapResponse response) throws MessagingException {
+        final String toString = response.toString();
+        final String status = response.getStatusOrEmpty().getString();
+        final String alert = response.getAlertTextOrEmpty().getString();
+        final String responseCode = response.getResponseCodeOrEmpty().getString();
+        destroyResponses();
 
-            throw new ImapException(toString, status, alert, responseCode);
+        // if the response code indicates an error occurred within the server, indicate that
+        if (ImapConstants.UNAVAILABLE.equals(responseCode)) {
+            throw new MessagingException(MessagingException.SERVER_ERROR, alert);
         }
-        return responses;
+
+        throw new ImapException(toString, status, alert, responseCode);
     }
 
     /**
@@ -478,6 +680,65 @@ class ImapConnection {
           return getCommandResponses();
       }
 
+    /**
+     * Execute several simple commands at the server, pipelining them: up to
+     * {@link #MAX_PIPELINED_COMMANDS} commands are sent at once before their responses are read.
+     * Responses are routed back to their command by tag; untagged responses go to the oldest
+     * command still in progress.  All the commands are run even if some of them fail.
+     *
+     * @param commands the commands to send to the server
+     * @param fetchHandler if not null, untagged FETCH responses are streamed to it instead of
+     * being returned
+     * @return a list of ImapResponses per command, in the same order as the commands
+     * @throws IOException
+     * @throws MessagingException for the first command that did not complete with OK, once all
+     * the responses have been read
+     */
+    List<List<ImapResponse>> executePipelinedCommands(List<String> commands,
+            ImapFetchHandler fetchHandler) throws IOException, MessagingException {
+        final List<List<ImapResponse>> results =
+                new ArrayList<List<ImapResponse>>(commands.size());
+        ImapResponse failure = null;
+        for (int start = 0; start < commands.size(); start += MAX_PIPELINED_COMMANDS) {
+            final List<String> tags = sendPipelinedCommands(commands.subList(start,
+                    Math.min(start + MAX_PIPELINED_COMMANDS, commands.size())));
+            final int count = tags.size();
+            final boolean[] completed = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                results.add(new ArrayList<ImapResponse>());
+            }
+            int remaining = count;
+            int oldest = 0;
+            while (remaining > 0) {
+                final ImapResponse response = mParser.readResponse(fetchHandler);
+                if (response == null) {
+                    // Streamed to the fetch handler
+                    continue;
+                }
+                int index = oldest;
+                if (response.isTagged()) {
+                    index = tags.indexOf(response.getTag());
+                    if (index < 0 || completed[index]) {
+                        throw new MessagingException("Unexpected tagged response " + response);
+                    }
+                    completed[index] = true;
+                    remaining--;
+                    if (!response.isOk() && failure == null) {
+                        failure = response;
+                    }
+                    while (oldest < count - 1 && completed[oldest]) {
+                        oldest++;
+                    }
+                }
+                results.get(start + index).add(response);
+            }
+        }
+        if (failure != null) {
+            throwCommandFailure(failure);
+        }
+        return results;
+    }
+
     /**
      * Query server for capabilities.
      */
@@ -545,12 +806,15 @@ class ImapConnection {
      * namespace command, this will perform no operation.
      */
     private void doGetNamespace(boolean hasNamespaceCapability) throws MessagingException {
-        // user did not specify a hard-coded prefix; try to get it from the server
-        if (hasNamespaceCapability && !mImapStore.isUserPrefixSet()) {
+        // user did not specify a hard-coded prefix; try to get it from the server, unless
+        // it told us already
+        if (hasNamespaceCapability && !mImapStore.isUserPrefixSet()
+                && !mImapStore.isNamespaceKnown()) {
             List<ImapResponse> responseList = Collections.emptyList();
 
             try {
                 responseList = executeSimpleCommand(ImapConstants.NAMESPACE);
+                mImapStore.setNamespaceKnown();
             } catch (ImapException ie) {
                 // Log for debugging, but this is not a fatal problem.
                 if (DebugUtils.DEBUG) {
@@ -576,15 +840,18 @@ class ImapConnection {
 
     /**
      * Logs into the IMAP server
+     *
+     * @return the capabilities announced by the server with the login, or null if none
      */
-    private void doLogin() throws IOException, MessagingException, AuthenticationFailedException {
+    private ImapList doLogin()
+            throws IOException, MessagingException, AuthenticationFailedException {
         try {
             if (mImapStore.getUseOAuth()) {
                 // SASL authentication can take multiple steps. Currently the only SASL
                 // authentication supported is OAuth.
-                doSASLAuth();
+                return getCapabilities(doSASLAuth());
             } else {
-                executeSimpleCommand(getLoginPhrase(), true);
+                return getCapabilities(executeSimpleCommand(getLoginPhrase(), true));
             }
         } catch (ImapException ie) {
             if (DebugUtils.DEBUG) {
@@ -609,10 +876,11 @@ class ImapConnection {
     /**
      * Performs an SASL authentication. Currently, the only type of SASL authentication supported
      * is OAuth.
+     * @return the tagged response of the successful authentication
      * @throws MessagingException
      * @throws IOException
      */
-    private void doSASLAuth() throws MessagingException, IOException {
+    private ImapResponse doSASLAuth() throws MessagingException, IOException {
         LogUtils.d(Logging.LOG_TAG, "doSASLAuth");
         ImapResponse response = getOAuthResponse();
         if (!response.isOk()) {
@@ -633,6 +901,7 @@ class ImapConnection {
                 throw new AuthenticationFailedException("OAuth failed after refresh");
             }
         }
+        return response;
     }
 
     private ImapResponse getOAuthResponse() throws IOException, MessagingException {
@@ -691,12 +960,64 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Enables QRESYNC per RFC 7162, if the server supports it.  Failing to do so is not fatal;
+     * mailboxes are then synced without it.
+     */
+    private void doEnableQresync(boolean hasQresyncCapability) throws MessagingException {
+        mQresyncEnabled = false;
+        if (!hasQresyncCapability) {
+            return;
+        }
+        try {
+            for (ImapResponse response : executeSimpleCommand(
+                    ImapConstants.ENABLE + " " + ImapConstants.QRESYNC)) {
+                // S: * ENABLED QRESYNC
+                if (response.isDataResponse(0, ImapConstants.ENABLED)
+                        && response.contains(ImapConstants.QRESYNC)) {
+                    mQresyncEnabled = true;
+                }
+            }
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+        } catch (IOException ioe) {
+            // Special case to handle malformed OK responses and ignore them.
+        }
+    }
+
+    /**
+     * Compresses the connection per RFC 4978, if the server supports it.  Failing to do so is
+     * not fatal; the connection then stays uncompressed.
+     */
+    private void doCompress(boolean hasCompressCapability) throws IOException, MessagingException {
+        if (!hasCompressCapability || mTransport.isCompressed()) {
+            return;
+        }
+        try {
+            executeSimpleCommand(ImapConstants.COMPRESS + " " + ImapConstants.DEFLATE);
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+            return;
+        }
+        // Compression starts right after the tagged OK, which is the last thing read
+        mTransport.startCompression();
+        createParser();
+    }
+
     /**
      * Starts a TLS session with the IMAP server per RFC 3501. If the user has not opted
      * to use TLS or the server does not support the TLS capability, this will perform
      * no operation.
+     *
+     * @return whether TLS was started
      */
-    private ImapResponse doStartTls(boolean hasStartTlsCapability)
+    private boolean doStartTls(boolean hasStartTlsCapability)
             throws IOException, MessagingException {
         if (mTransport.canTryTlsSecurity()) {
             if (hasStartTlsCapability) {
@@ -705,8 +1026,7 @@ class ImapConnection {
 
                 mTransport.reopenTls();
                 createParser();
-                // Per RFC requirement (3501-6.2.1) gather new capabilities
-                return(queryCapabilities());
+                return true;
             } else {
                 if (DebugUtils.DEBUG) {
                     LogUtils.d(Logging.LOG_TAG, "TLS not supported but required");
@@ -714,7 +1034,7 @@ class ImapConnection {
                 throw new MessagingException(MessagingException.TLS_REQUIRED);
             }
         }
-        return null;
+        return false;
     }
 
     /** @see DiscourseLogger#logLastDiscourse() */
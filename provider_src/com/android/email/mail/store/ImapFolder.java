@@ -17,6 +17,7 @@
 package com.android.email.mail.store;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64DataException;
 
@@ -25,8 +26,10 @@ import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
+import com.android.email.mail.store.imap.ImapFetchHandler;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapSequenceMap;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.service.ImapService;
@@ -63,6 +66,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SelectableChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -70,6 +74,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
@@ -79,6 +84,9 @@ public class ImapFolder extends Folder {
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
 
+    /** Room for the tag, the space after it and CRLF {@link ImapConnection} adds to commands. */
+    private static final int COMMAND_OVERHEAD = 16;
+
     public interface IdleCallback {
         /**
          * Invoked when the connection enters idle mode
@@ -93,8 +101,10 @@ public class ImapFolder extends Folder {
          *
          * @param needSync whether a sync is required
          * @param fetchMessages list of message UIDs to update
+         * @param expungedMessages list of UIDs of the messages removed from the server
          */
-        public void onNewServerChange(boolean needSync, List<String> fetchMessages);
+        public void onNewServerChange(boolean needSync, List<String> fetchMessages,
+                List<String> expungedMessages);
         /**
          * Connection to socket timed out. The idle connection needs
          * to be considered broken when this is called.
@@ -119,20 +129,47 @@ public class ImapFolder extends Folder {
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
 
+    // Mailbox state reported by the last SELECT, and the changes since the mod-sequence given to
+    // open(), if the server could report them (RFC 7162 QRESYNC).
+    private String mUidValidity;
+    private String mHighestModSeq;
+    private boolean mQresynced;
+    private final ArrayList<Message> mChangedMessages = new ArrayList<Message>();
+    private final ArrayList<String> mVanishedUids = new ArrayList<String>();
+
     private final Object mIdleSync = new Object();
     private boolean mIdling;
     private boolean mIdlingCancelled;
     private boolean mDiscardIdlingConnection;
-    private Thread mIdleReader;
+    // The IDLE being read, until its callbacks were invoked
+    private IdleSession mIdleSession;
+
+    /**
+     * Other mailboxes watched while idling, with NOTIFY (RFC 5465), by encoded name; see
+     * {@link #addNotifyMailbox}.
+     */
+    private final HashMap<String, IdleCallback> mNotifyCallbacks = new HashMap<>();
+    private boolean mNotifyRefused;
+
+    // The selected mailbox keeps reporting its changes as usual
+    private static final String NOTIFY_EVENTS = "(MessageNew MessageExpunge FlagChange)";
+    private static final String NOTIFY_SET_FORMAT = ImapConstants.NOTIFY_SET
+            + " (SELECTED " + NOTIFY_EVENTS + ") (MAILBOXES (%s) " + NOTIFY_EVENTS + ")";
 
     private static final String[] IDLE_STATUSES = {
-        ImapConstants.UIDVALIDITY, ImapConstants.UIDNEXT
+        ImapConstants.UIDVALIDITY, ImapConstants.UIDNEXT, ImapConstants.MESSAGES
     };
     private Map<String, String> mIdleStatuses = new HashMap<>();
+    // UIDs of the messages by sequence number while idling, kept from one IDLE to the next so
+    // that EXPUNGE responses can be resolved without a sync. Null if unknown.
+    private ImapSequenceMap mIdleSequenceMap;
+    private String mIdleSequenceUidValidity;
 
     private static class ImapIdleChanges {
         public boolean mRequiredSync = false;
         public ArrayList<String> mMessageToFetch = new ArrayList<>();
+        public ArrayList<String> mExpungedMessages = new ArrayList<>();
+        public ArrayList<String> mNotifiedMailboxes = new ArrayList<>();
     }
 
     /*package*/ ImapFolder(ImapStore store, String name) {
@@ -149,13 +186,36 @@ public class ImapFolder extends Folder {
     @Override
     public void open(OpenMode mode)
             throws MessagingException {
+        open(mode, null, null);
+    }
+
+    /**
+     * Same as {@link #open(OpenMode)}, but if QRESYNC is enabled and the mailbox still has
+     * {@code uidValidity}, also asks the server for the messages that changed or vanished since
+     * {@code modSeq}.  They are then returned by {@link #getChangedMessages} and
+     * {@link #getVanishedUids}, and {@link #isQresynced} returns true.  If the folder is open
+     * already, e.g. after it stopped idling, it is selected again on the same connection.
+     *
+     * @param uidValidity UIDVALIDITY at the time of the last sync, or null
+     * @param modSeq HIGHESTMODSEQ at the time of the last sync, or null
+     */
+    public void open(OpenMode mode, String uidValidity, String modSeq)
+            throws MessagingException {
+        mQresynced = false;
+        mChangedMessages.clear();
+        mVanishedUids.clear();
         try {
             if (isOpen()) {
                 if (mMode == mode) {
                     // Make sure the connection is valid.
                     // If it's not we'll close it down and continue on to get a new one.
                     try {
-                        mConnection.executeSimpleCommand(ImapConstants.NOOP);
+                        if (canQresync(uidValidity, modSeq)) {
+                            // Select the folder again on the same connection, for the changes
+                            doSelect(uidValidity, modSeq);
+                        } else {
+                            mConnection.executeSimpleCommand(ImapConstants.NOOP);
+                        }
                         return;
 
                     } catch (IOException ioe) {
@@ -182,7 +242,7 @@ public class ImapFolder extends Folder {
             // 2 OK [READ-WRITE] Select completed.
             try {
                 mConnection.setTransportTag(mName + "-" + hashCode());
-                doSelect();
+                doSelect(uidValidity, modSeq);
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             } finally {
@@ -206,6 +266,11 @@ public class ImapFolder extends Folder {
         return mExists && mConnection != null;
     }
 
+    @VisibleForTesting
+    synchronized ImapConnection getConnectionForTest() {
+        return mConnection;
+    }
+
     @Override
     public OpenMode getMode() {
         return mMode;
@@ -243,116 +308,365 @@ public class ImapFolder extends Folder {
             connection = mConnection;
         }
 
-        // Run idle in background
-        mIdleReader = new Thread() {
-            @Override
-            public void run() {
-                try {
-                    // Get some info before start idling
-                    mIdleStatuses = getStatuses(IDLE_STATUSES);
-
-                    // We setup the max time specified in RFC 2177 to re-issue
-                    // an idle request to the server
-                    connection.setReadTimeout(ImapConnection.PING_IDLE_TIMEOUT);
-                    connection.destroyResponses();
-
-                    // Enter now in idle status (we hold a connection with
-                    // the server to listen for new changes)
-                    synchronized (mIdleSync) {
-                        if (mIdlingCancelled) {
-                            mIdling = false;
-                            return;
-                        }
-                    }
+        // Enter idle here; the responses are then read by the reader shared by all the
+        // idling connections, so that no thread waits for the changes of this folder
+        try {
+            // Get some info before start idling
+            prepareIdling();
 
-                    if (callback != null) {
-                        callback.onIdled();
-                    }
-                    List<ImapResponse> responses = connection.executeIdleCommand();
+            // Watch the other mailboxes too, if asked
+            setupNotify(connection);
+            connection.destroyResponses();
 
-                    // Check whether IDLE was successful (first response is an idling response)
-                    if (responses.isEmpty() || (mIdling && !responses.get(0).isIdling())) {
-                        if (callback != null) {
-                            callback.onException(new MessagingException(
-                                            MessagingException.SERVER_ERROR, "Cannot idle"));
-                        }
-                        synchronized (mIdleSync) {
-                            mIdling = false;
-                        }
-                        return;
-                    }
+            synchronized (mIdleSync) {
+                if (mIdlingCancelled) {
+                    setIdlingDone();
+                    return;
+                }
+            }
 
-                    // Exit idle if we are still in that state
-                    boolean cancelled = false;
-                    boolean discardConnection = false;
-                    synchronized (mIdleSync) {
-                        if (!mIdlingCancelled) {
-                            try {
-                                connection.setReadTimeout(ImapConnection.DONE_TIMEOUT);
-                                connection.executeSimpleCommand(ImapConstants.DONE);
-                            } catch (MessagingException me) {
-                                // Ignore this exception caused by messages in the queue
-                            }
-                        }
+            if (callback != null) {
+                callback.onIdled();
+            }
+            final ImapIdleReader reader = ImapIdleReader.getInstance();
+            final List<ImapResponse> responses = connection.startIdling();
+
+            // Check whether IDLE was successful (last response is an idling response)
+            final int last = responses.size() - 1;
+            if (!responses.get(last).isIdling()) {
+                if (callback != null) {
+                    callback.onException(new MessagingException(
+                                    MessagingException.SERVER_ERROR, "Cannot idle"));
+                }
+                setIdlingDone();
+                return;
+            }
 
-                        cancelled = mIdlingCancelled;
-                        discardConnection = mDiscardIdlingConnection;
-                    }
+            // Changes reported before the server accepted IDLE are dispatched with the others.
+            // Remove the idling status response since is only relevant for the protocol
+            final IdleSession session = new IdleSession(connection, callback,
+                    responses.subList(0, last));
+            synchronized (mIdleSync) {
+                mIdleSession = session;
+            }
+            reader.register(session, session.getFirstDeadline());
+        } catch (MessagingException me) {
+            onIdleException(connection, callback, me);
+        } catch (SocketTimeoutException ste) {
+            onIdleTimeout(connection, callback);
+        } catch (IOException ioe) {
+            onIdleIOException(connection, callback, ioe);
+        }
+    }
 
-                    if (!cancelled && callback != null) {
-                        // Notify that new changes exists in the server. Remove
-                        // the idling status response since is only relevant for the protocol
-                        // We have to enter in idle
-                        ImapIdleChanges changes = extractImapChanges(
-                                new ArrayList<Object>(responses.subList(1, responses.size())));
-                        callback.onNewServerChange(changes.mRequiredSync, changes.mMessageToFetch);
-                    }
+    /**
+     * An IDLE the server accepted, whose responses are read by {@link ImapIdleReader}.  Once
+     * the server is done, the changes are dispatched on the thread the reader hands blocking
+     * work to, since resolving them may need a few commands.
+     */
+    private class IdleSession implements ImapIdleReader.Session {
+        private final ImapConnection mIdleConnection;
+        private final IdleCallback mCallback;
+        // The untagged responses received while idling
+        private final ArrayList<ImapResponse> mResponses = new ArrayList<>();
+        private long mDeadline;
+        private boolean mDoneSent;
+
+        IdleSession(ImapConnection connection, IdleCallback callback,
+                List<ImapResponse> responses) {
+            mIdleConnection = connection;
+            mCallback = callback;
+            mResponses.addAll(responses);
+        }
 
-                    if (discardConnection) {
-                        // Return the connection to the pool
-                        cleanupConnection(connection, false);
-                    }
+        /**
+         * @return when to give up on the server reporting a change; we setup the max time
+         * specified in RFC 2177 to re-issue an idle request to the server
+         */
+        long getFirstDeadline() {
+            mDeadline = SystemClock.uptimeMillis() + (mResponses.isEmpty()
+                    ? ImapConnection.PING_IDLE_TIMEOUT : ImapConnection.IDLE_OP_READ_TIMEOUT);
+            return mDeadline;
+        }
 
-                    synchronized (mIdleSync) {
-                        mIdling = false;
-                    }
+        @Override
+        public SelectableChannel getChannel() {
+            return mIdleConnection.getChannel();
+        }
 
-                    if (callback != null) {
-                        callback.onIdlingDone();
+        @Override
+        public long onReadable() {
+            try {
+                ImapResponse response;
+                while ((response = mIdleConnection.readResponseIfAvailable()) != null) {
+                    if (response.isTagged()) {
+                        // The server is done idling, normally because it got DONE
+                        mIdleConnection.stopIdling();
+                        finish(new Runnable() {
+                            @Override
+                            public void run() {
+                                onIdlingDone(mIdleConnection, mCallback, mResponses);
+                            }
+                        });
+                        return ImapIdleReader.FINISHED;
                     }
-                } catch (MessagingException me) {
-                    cleanupConnection(connection, false);
-                    synchronized (mIdleSync) {
-                        mIdling = false;
+                    // Wait for the changes which follow before triggering them, or for DONE
+                    // to be acknowledged
+                    mResponses.add(response);
+                    mDeadline = SystemClock.uptimeMillis() + (mDoneSent
+                            ? ImapConnection.DONE_TIMEOUT : ImapConnection.IDLE_OP_READ_TIMEOUT);
+                }
+                return mDeadline;
+            } catch (final MessagingException me) {
+                return finish(new Runnable() {
+                    @Override
+                    public void run() {
+                        onIdleException(mIdleConnection, mCallback, me);
                     }
-                    if (callback != null) {
-                        callback.onException(me);
+                });
+            } catch (final IOException ioe) {
+                return finish(new Runnable() {
+                    @Override
+                    public void run() {
+                        onIdleIOException(mIdleConnection, mCallback, ioe);
                     }
+                });
+            }
+        }
 
-                } catch (SocketTimeoutException ste) {
-                    cleanupConnection(connection, false);
-                    synchronized (mIdleSync) {
-                        mIdling = false;
-                    }
-                    if (callback != null) {
-                        callback.onTimeout();
+        @Override
+        public long onDeadline() {
+            synchronized (mIdleSync) {
+                if (mDoneSent || (mResponses.isEmpty() && !mIdlingCancelled)) {
+                    // No change for too long, or no response to DONE: the connection is broken
+                    return finish(new Runnable() {
+                        @Override
+                        public void run() {
+                            onIdleTimeout(mIdleConnection, mCallback);
+                        }
+                    });
+                }
+                // Exit idle if we are still in that state
+                if (!mIdlingCancelled) {
+                    try {
+                        mIdleConnection.sendDone();
+                    } catch (MessagingException me) {
+                        // Ignore this exception caused by messages in the queue
+                    } catch (final IOException ioe) {
+                        return finish(new Runnable() {
+                            @Override
+                            public void run() {
+                                onIdleIOException(mIdleConnection, mCallback, ioe);
+                            }
+                        });
                     }
+                }
+            }
+            mDoneSent = true;
+            mDeadline = SystemClock.uptimeMillis() + ImapConnection.DONE_TIMEOUT;
+            return mDeadline;
+        }
 
-                } catch (IOException ioe) {
-                    synchronized (mIdleSync) {
-                        mIdling = false;
-                    }
-                    if (callback != null) {
-                        callback.onException(ioExceptionHandler(connection, ioe));
-                    } else {
-                        cleanupConnection(connection, false);
+        /**
+         * Run {@code r} to end idling, then let {@link #stopIdling} know it's over.
+         */
+        private long finish(final Runnable r) {
+            try {
+                ImapIdleReader.getInstance().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            synchronized (mIdleSync) {
+                                if (mIdleSession == IdleSession.this) {
+                                    mIdleSession = null;
+                                }
+                                mIdleSync.notifyAll();
+                            }
+                        }
                     }
+                });
+            } catch (IOException ioe) {
+                // Can't happen, the reader calling this exists
+            }
+            return ImapIdleReader.FINISHED;
+        }
+    }
 
-                }
+    /**
+     * The server is done idling: report the changes it sent, unless idling was stopped.
+     */
+    private void onIdlingDone(ImapConnection connection, IdleCallback callback,
+            List<ImapResponse> responses) {
+        try {
+            final boolean cancelled;
+            final boolean discardConnection;
+            synchronized (mIdleSync) {
+                cancelled = mIdlingCancelled;
+                discardConnection = mDiscardIdlingConnection;
+            }
+
+            if (!cancelled && callback != null) {
+                // Notify that new changes exists in the server
+                dispatchIdleChanges(responses, callback);
+            }
+
+            if (discardConnection) {
+                // Return the connection to the pool
+                cleanupConnection(connection, false);
+            }
+
+            setIdlingDone();
+
+            if (callback != null) {
+                callback.onIdlingDone();
+            }
+        } catch (MessagingException me) {
+            onIdleException(connection, callback, me);
+        }
+    }
+
+    private void onIdleException(ImapConnection connection, IdleCallback callback,
+            MessagingException me) {
+        connection.stopIdling();
+        cleanupConnection(connection, false);
+        setIdlingDone();
+        if (callback != null) {
+            callback.onException(me);
+        }
+    }
+
+    private void onIdleTimeout(ImapConnection connection, IdleCallback callback) {
+        connection.stopIdling();
+        cleanupConnection(connection, false);
+        setIdlingDone();
+        if (callback != null) {
+            callback.onTimeout();
+        }
+    }
+
+    private void onIdleIOException(ImapConnection connection, IdleCallback callback,
+            IOException ioe) {
+        connection.stopIdling();
+        setIdlingDone();
+        if (callback != null) {
+            callback.onException(ioExceptionHandler(connection, ioe));
+        } else {
+            cleanupConnection(connection, false);
+        }
+    }
+
+    private void setIdlingDone() {
+        synchronized (mIdleSync) {
+            mIdling = false;
+            mIdleSync.notifyAll();
+        }
+    }
+
+    /**
+     * @return whether other mailboxes can be watched while idling, with NOTIFY (RFC 5465).
+     * The folder must be open.
+     */
+    public boolean canNotify() {
+        synchronized (mIdleSync) {
+            if (mNotifyRefused) {
+                return false;
+            }
+        }
+        synchronized (this) {
+            return mConnection != null
+                    && mConnection.isCapable(ImapConnection.CAPABILITY_NOTIFY);
+        }
+    }
+
+    /**
+     * Watch the mailbox {@code serverId} too while idling, see {@link #canNotify}.  The server
+     * only tells that something changed in it, so {@code callback} is told that a sync is
+     * needed.  This takes effect the next time idling starts.
+     */
+    public void addNotifyMailbox(String serverId, IdleCallback callback) {
+        synchronized (mIdleSync) {
+            mNotifyCallbacks.put(ImapStore.encodeFolderName(serverId, mStore.mPathPrefix),
+                    callback);
+        }
+    }
+
+    /**
+     * Stop watching the mailbox {@code serverId}, from the next time idling starts.
+     */
+    public void removeNotifyMailbox(String serverId) {
+        synchronized (mIdleSync) {
+            mNotifyCallbacks.remove(ImapStore.encodeFolderName(serverId, mStore.mPathPrefix));
+        }
+    }
+
+    /**
+     * Ask the server to report the changes of the watched mailboxes while idling.  If it
+     * refuses, their callbacks are told so, and they must be idled on their own.
+     */
+    @VisibleForTesting
+    void setupNotify(ImapConnection connection) throws IOException, MessagingException {
+        final HashMap<String, IdleCallback> callbacks;
+        synchronized (mIdleSync) {
+            if (mNotifyRefused || mNotifyCallbacks.isEmpty()
+                    || !connection.isCapable(ImapConnection.CAPABILITY_NOTIFY)) {
+                return;
+            }
+            callbacks = new HashMap<>(mNotifyCallbacks);
+        }
+        final StringBuilder mailboxes = new StringBuilder();
+        for (String name : callbacks.keySet()) {
+            if (mailboxes.length() > 0) {
+                mailboxes.append(' ');
+            }
+            mailboxes.append('"').append(name).append('"');
+        }
+        try {
+            connection.executeSimpleCommand(
+                    String.format(Locale.US, NOTIFY_SET_FORMAT, mailboxes));
+        } catch (ImapException ie) {
+            LogUtils.w(LOG_TAG, "NOTIFY refused for folder " + mName + ": " + ie.getMessage());
+            synchronized (mIdleSync) {
+                mNotifyRefused = true;
+                mNotifyCallbacks.clear();
+            }
+            for (IdleCallback callback : callbacks.values()) {
+                callback.onException(new MessagingException(
+                        MessagingException.SERVER_ERROR, "Cannot notify"));
+            }
+        } finally {
+            connection.destroyResponses();
+        }
+    }
+
+    /**
+     * Tell {@code callback} about the changes of this folder found in the {@code responses}
+     * received while idling, and the watched mailboxes about theirs.
+     */
+    @VisibleForTesting
+    void dispatchIdleChanges(List<ImapResponse> responses, IdleCallback callback)
+            throws MessagingException {
+        ImapIdleChanges changes = extractImapChanges(new ArrayList<Object>(responses));
+        callback.onNewServerChange(changes.mRequiredSync, changes.mMessageToFetch,
+                changes.mExpungedMessages);
+        notifyMailboxChanges(changes.mNotifiedMailboxes);
+    }
+
+    /**
+     * Tell the watched mailboxes named in {@code names} that they changed.
+     */
+    private void notifyMailboxChanges(List<String> names) {
+        for (String name : names) {
+            final IdleCallback callback;
+            synchronized (mIdleSync) {
+                callback = mNotifyCallbacks.get(name);
+            }
+            if (callback != null) {
+                callback.onNewServerChange(true, new ArrayList<String>(),
+                        new ArrayList<String>());
             }
-        };
-        mIdleReader.setName("IdleReader " + mStore.getAccount().mId + ":" + mName);
-        mIdleReader.start();
+        }
     }
 
     public void stopIdling(boolean discardConnection) throws MessagingException {
@@ -373,9 +687,8 @@ public class ImapFolder extends Folder {
             try {
                 mIdlingCancelled = true;
                 mDiscardIdlingConnection = discardConnection;
-                // Send the DONE command to make the idle reader thread exit. Shorten
-                // the read timeout for doing that in order to not wait indefinitely,
-                // the server should respond to the DONE command quickly anyway
+                // Send the DONE command to make the server end idling, which the session
+                // reading its responses then finds out
                 connection.sendCommand(ImapConstants.DONE, false);
 
             } catch (MessagingException me) {
@@ -391,22 +704,49 @@ public class ImapFolder extends Folder {
             }
         }
 
-        // Try to join the thread, but make sure to not wait indefinitely. This should
-        // be the normal case (server sends the response to DONE quickly)
-        try {
-            mIdleReader.join(1000, 0);
-        } catch (InterruptedException e) {
-            // ignore
-        }
-        // In case the server didn't respond quickly, the connection is likely broken;
-        // close it (which definitely will cause the thread to return) and finally join the thread
-        if (mIdleReader.isAlive()) {
+        // Wait for the server to acknowledge DONE, but make sure to not wait indefinitely.
+        // This should be the normal case (server sends the response to DONE quickly)
+        if (!waitForIdlingDone(1000)) {
+            // In case the server didn't respond quickly, the connection is likely broken; close
+            // it (which definitely will cause idling to end once the reader checks it) and
+            // finally wait for idling to be over
             cleanupConnection(connection, true);
-            try {
-                mIdleReader.join();
-            } catch (InterruptedException e) {
-                // ignore
+            final IdleSession session;
+            synchronized (mIdleSync) {
+                session = mIdleSession;
+            }
+            if (session != null) {
+                try {
+                    ImapIdleReader.getInstance().check(session);
+                } catch (IOException ioe) {
+                    // Can't happen, the session was registered with the reader
+                }
+            }
+            waitForIdlingDone(0);
+        }
+    }
+
+    /**
+     * Wait until idling is over, and its callbacks were invoked.
+     *
+     * @param timeout the time to wait in milliseconds, or 0 to wait as long as needed
+     * @return whether idling is over
+     */
+    private boolean waitForIdlingDone(long timeout) {
+        final long end = SystemClock.uptimeMillis() + timeout;
+        synchronized (mIdleSync) {
+            while (mIdling || mIdleSession != null) {
+                final long wait = timeout > 0 ? end - SystemClock.uptimeMillis() : 0;
+                if (timeout > 0 && wait <= 0) {
+                    return false;
+                }
+                try {
+                    mIdleSync.wait(wait);
+                } catch (InterruptedException e) {
+                    return false;
+                }
             }
+            return true;
         }
     }
 
@@ -504,55 +844,87 @@ public class ImapFolder extends Folder {
     public void copyMessages(Message[] messages, Folder folder,
             MessageUpdateCallbacks callbacks) throws MessagingException {
         checkOpen();
+        copyOrMoveMessages(messages, folder, callbacks, ImapConstants.UID_COPY);
+    }
+
+    /**
+     * Moves messages to another folder with UID MOVE per RFC 6851, which takes a single command
+     * per UID set.  If the server doesn't support MOVE, the messages are copied, then flagged as
+     * deleted and expunged from this folder.
+     *
+     * @param callbacks if not null, told about the UIDs of the messages in {@code folder}
+     */
+    public void moveMessages(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws MessagingException {
+        checkOpen();
+        if (mConnection.isCapable(ImapConnection.CAPABILITY_MOVE)) {
+            copyOrMoveMessages(messages, folder, callbacks, ImapConstants.UID_MOVE);
+        } else {
+            copyOrMoveMessages(messages, folder, callbacks, ImapConstants.UID_COPY);
+            setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            expunge();
+        }
+    }
+
+    /**
+     * Runs {@code command}, UID COPY or UID MOVE, on {@code messages}, and reports their new UIDs
+     * from the COPYUID response code (RFC 4315).  UID MOVE sends it in an untagged OK response
+     * rather than in the tagged one.
+     */
+    private void copyOrMoveMessages(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks, String command) throws MessagingException {
         try {
-            List<ImapResponse> responseList = mConnection.executeSimpleCommand(
-                    String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
-                            ImapStore.joinMessageUids(messages),
-                            ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
+            final String format = command + " %s \"%s\"";
+            final String destination =
+                    ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix);
             // Build a message map for faster UID matching
             HashMap<String, Message> messageMap = new HashMap<String, Message>();
             boolean handledUidPlus = false;
             for (Message m : messages) {
                 messageMap.put(m.getUid(), m);
             }
-            // Process response to get the new UIDs
-            for (ImapResponse response : responseList) {
-                // All "BAD" responses are bad. Only "NO", tagged responses are bad.
-                if (response.isBad() || (response.isNo() && response.isTagged())) {
-                    String responseText = response.getStatusResponseTextOrEmpty().getString();
-                    throw new MessagingException(responseText);
-                }
-                // Skip untagged responses; they're just status
-                if (!response.isTagged()) {
-                    continue;
-                }
-                // No callback provided to report of UID changes; nothing more to do here
-                // NOTE: We check this here to catch any server errors
-                if (callbacks == null) {
-                    continue;
-                }
-                ImapList copyResponse = response.getListOrEmpty(1);
-                String responseCode = copyResponse.getStringOrEmpty(0).getString();
-                if (ImapConstants.COPYUID.equals(responseCode)) {
-                    handledUidPlus = true;
-                    String origIdSet = copyResponse.getStringOrEmpty(2).getString();
-                    String newIdSet = copyResponse.getStringOrEmpty(3).getString();
-                    String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
-                    String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
-                    // There has to be a 1:1 mapping between old and new IDs
-                    if (origIdArray.length != newIdArray.length) {
-                        throw new MessagingException("Set length mis-match; orig IDs \"" +
-                                origIdSet + "\"  new IDs \"" + newIdSet + "\"");
+            final List<String> commands = new ArrayList<String>();
+            for (String uidSet : getUidSets(messages,
+                    String.format(Locale.US, format, "", destination).length())) {
+                commands.add(String.format(Locale.US, format, uidSet, destination));
+            }
+            // Throws if any of the commands didn't complete with OK
+            for (List<ImapResponse> responseList :
+                    mConnection.executePipelinedCommands(commands, null)) {
+                // Process response to get the new UIDs
+                for (ImapResponse response : responseList) {
+                    // All "BAD" responses are bad, even untagged ones
+                    if (response.isBad()) {
+                        String responseText = response.getStatusResponseTextOrEmpty().getString();
+                        throw new MessagingException(responseText);
+                    }
+                    // No callback provided to report of UID changes; nothing more to do here
+                    if (callbacks == null || !response.isOk()) {
+                        continue;
                     }
-                    for (int i = 0; i < origIdArray.length; i++) {
-                        final String id = origIdArray[i];
-                        final Message m = messageMap.get(id);
-                        if (m != null) {
-                            callbacks.onMessageUidChange(m, newIdArray[i]);
+                    ImapList copyResponse = response.getListOrEmpty(1);
+                    if (copyResponse.is(0, ImapConstants.COPYUID)) {
+                        handledUidPlus = true;
+                        String origIdSet = copyResponse.getStringOrEmpty(2).getString();
+                        String newIdSet = copyResponse.getStringOrEmpty(3).getString();
+                        String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
+                        String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
+                        // There has to be a 1:1 mapping between old and new IDs
+                        if (origIdArray.length != newIdArray.length) {
+                            throw new MessagingException("Set length mis-match; orig IDs \"" +
+                                    origIdSet + "\"  new IDs \"" + newIdSet + "\"");
+                        }
+                        for (int i = 0; i < origIdArray.length; i++) {
+                            final String id = origIdArray[i];
+                            final Message m = messageMap.get(id);
+                            if (m != null) {
+                                callbacks.onMessageUidChange(m, newIdArray[i]);
+                            }
                         }
                     }
                 }
             }
+            destroyResponses();
             // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
             if (callbacks != null && !handledUidPlus) {
                 final ImapFolder newFolder = (ImapFolder)folder;
@@ -575,7 +947,7 @@ public class ImapFolder extends Folder {
                     newFolder.close(false);
                 }
                 // Re-select the original folder
-                doSelect();
+                doSelect(null, null);
             }
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
@@ -615,18 +987,32 @@ public class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Asks the server for the {@code statuses} of this folder, e.g. UIDNEXT.  Like
+     * {@link #exists}, this works whether the folder is open or not.
+     *
+     * @return the values of the statuses, by name.
+     */
     public Map<String, String> getStatuses(String[] statuses) throws MessagingException {
-        checkOpen();
+        ImapConnection connection = null;
+        synchronized(this) {
+            if (mConnection == null) {
+                connection = mStore.getConnection();
+            } else {
+                connection = mConnection;
+            }
+        }
         Map<String, String> allReturnStatuses = new HashMap<>();
         try {
             String flags = TextUtils.join(" ", statuses);
-            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+            final List<ImapResponse> responses = connection.executeSimpleCommand(
                     String.format(Locale.US,
                             ImapConstants.STATUS + " \"%s\" (%s)",
                             ImapStore.encodeFolderName(mName, mStore.mPathPrefix), flags));
             // S: * STATUS mboxname (MESSAGES 231 UIDNEXT 44292)
             for (ImapResponse response : responses) {
-                if (response.isDataResponse(0, ImapConstants.STATUS)) {
+                if (response.isDataResponse(0, ImapConstants.STATUS)
+                        && !isNotifyMailbox(response.getStringOrEmpty(1).getString())) {
                     ImapList list = response.getListOrEmpty(2);
                     int count = list.size();
                     for (int i = 0; i < count; i += 2) {
@@ -637,13 +1023,23 @@ public class ImapFolder extends Folder {
                 }
             }
         } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
+            throw ioExceptionHandler(connection, ioe);
         } finally {
-            destroyResponses();
+            connection.destroyResponses();
+            if (mConnection == null) {
+                mStore.poolConnection(connection);
+            }
         }
         return allReturnStatuses;
     }
 
+    /** @return whether {@code name} is the encoded name of a mailbox watched with NOTIFY. */
+    private boolean isNotifyMailbox(String name) {
+        synchronized (mIdleSync) {
+            return mNotifyCallbacks.containsKey(name);
+        }
+    }
+
     private void cleanupConnection(ImapConnection connection, boolean close) {
         if (close) {
             connection.close();
@@ -890,6 +1286,26 @@ public class ImapFolder extends Folder {
         return getMessagesInternal(uids, listener);
     }
 
+    /**
+     * @return the messages with a UID of {@code uid} or more, e.g. the ones that arrived since
+     * UIDNEXT was {@code uid}.
+     */
+    public Message[] getMessagesFromUid(String uid) throws MessagingException {
+        final long first = Long.parseLong(uid);
+        final ArrayList<String> uids = new ArrayList<String>();
+        // "n:*" always includes the last message, even if its UID is below n
+        for (String found : searchForUids(ImapConstants.UID + " " + uid + ":*")) {
+            try {
+                if (Long.parseLong(found) >= first) {
+                    uids.add(found);
+                }
+            } catch (NumberFormatException e) {
+                // Not a UID
+            }
+        }
+        return getMessagesInternal(uids.toArray(new String[uids.size()]), null);
+    }
+
     @Override
     @VisibleForTesting
     public Message[] getMessages(String[] uids, MessageRetrievalListener listener)
@@ -927,10 +1343,43 @@ public class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * Fetch {@code part} of {@code message}, and decode it straight into {@code out} as it
+     * arrives, instead of into a temp file set as the body of {@code part}.  This way large
+     * attachments can be written directly to their final location.
+     *
+     * @return the number of decoded bytes written to {@code out}, or -1 if the server didn't
+     * return the part.
+     */
+    public long fetchPart(Message message, Part part, OutputStream out,
+            MessageRetrievalListener listener) throws MessagingException {
+        final FetchProfile fp = new FetchProfile();
+        fp.add(part);
+        try {
+            return fetchInternal(new Message[] { message }, fp, listener, out);
+        } catch (RuntimeException e) { // Probably a parser error.
+            LogUtils.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
+            if (mConnection != null) {
+                mConnection.logLastDiscourse();
+            }
+            throw e;
+        }
+    }
+
     public void fetchInternal(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException {
+        fetchInternal(messages, fp, listener, null);
+    }
+
+    /**
+     * @param partOut if not null, the part in {@code fp} is decoded into it, rather than set as
+     * the body of the part.
+     * @return the number of bytes written to {@code partOut}, or -1 if none.
+     */
+    private long fetchInternal(Message[] messages, FetchProfile fp,
+            MessageRetrievalListener listener, OutputStream partOut) throws MessagingException {
         if (messages.length == 0) {
-            return;
+            return -1;
         }
         checkOpen();
         HashMap<String, Message> messageMap = new HashMap<String, Message>();
@@ -985,135 +1434,299 @@ public class ImapFolder extends Folder {
         }
 
         try {
-            mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
-            ImapResponse response;
-            do {
-                response = null;
-                try {
-                    response = mConnection.readResponse();
+            final String format = ImapConstants.UID_FETCH + " %s (%s)";
+            final String fields =
+                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+            // FETCH responses are streamed to the handler, rather than parsed into ImapResponses.
+            final FetchResponseHandler handler =
+                    new FetchResponseHandler(messageMap, fp, fetchPart, partOut, listener);
+            final List<String> commands = new ArrayList<String>();
+            for (String uidSet : getUidSets(messages,
+                    String.format(Locale.US, format, "", fields).length())) {
+                commands.add(String.format(Locale.US, format, uidSet, fields));
+            }
+            // The UID sets are fetched in a pipeline, rather than waiting for each one in turn.
+            try {
+                mConnection.executePipelinedCommands(commands, handler);
+            } catch (ImapException ie) {
+                // Whatever the server did return has been applied; keep it.
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException in fetch");
+            } catch (MessagingException me) {
+                // Same for a server error (UNAVAILABLE), which a FETCH has always ignored; all the
+                // responses were read, so the connection is still usable.
+                if (me.getExceptionType() != MessagingException.SERVER_ERROR) {
+                    throw me;
+                }
+                LogUtils.d(Logging.LOG_TAG, me, "Server error in fetch");
+            }
+            return handler.getPartBytesWritten();
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
 
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
-                    }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
-                                }
-                                message.setBody(null);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
-                    }
-                    if (fetchPart != null) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
+    /**
+     * Fills in the messages requested by {@link #fetchInternal} from the FETCH responses, as
+     * they are parsed.
+     */
+    private static class FetchResponseHandler implements ImapFetchHandler {
+        private final HashMap<String, Message> mMessageMap;
+        private final FetchProfile mFetchProfile;
+        private final Part mFetchPart;
+        private final OutputStream mPartOut;
+        private final MessageRetrievalListener mListener;
+        private long mPartBytesWritten = -1;
+
+        // State of the FETCH response being parsed.  The UID may come last, so we hold on to
+        // everything until onFetchEnd().
+        private String mUid;
+        private boolean mDeleted;
+        private boolean mAnswered;
+        private boolean mSeen;
+        private boolean mFlagged;
+        private ImapString mInternalDate;
+        private int mSize;
+        private ImapString mHeader;
+        private ImapList mBodyStructure;
+        private ImapString mBody;
+        private ImapString mPartBody;
+
+        public FetchResponseHandler(HashMap<String, Message> messageMap, FetchProfile fp,
+                Part fetchPart, OutputStream partOut, MessageRetrievalListener listener) {
+            mMessageMap = messageMap;
+            mFetchProfile = fp;
+            mFetchPart = fetchPart;
+            mPartOut = partOut;
+            mListener = listener;
+        }
 
-                        try {
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                    fetchPart.getSize(), listener));
-                        } catch(Exception e) {
-                            // TODO: Figure out what kinds of exceptions might actually be thrown
-                            // from here. This blanket catch-all is because we're not sure what to
-                            // do if we don't have a contentTransferEncoding, and we don't have
-                            // time to figure out what exceptions might be thrown.
-                            LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
+        /** @return the number of bytes written to the part output stream, or -1 if none. */
+        public long getPartBytesWritten() {
+            return mPartBytesWritten;
+        }
+
+        @Override
+        public void onFetchStart(String messageNumber) {
+            mUid = null;
+            mDeleted = false;
+            mAnswered = false;
+            mSeen = false;
+            mFlagged = false;
+            mInternalDate = null;
+            mSize = 0;
+            mHeader = null;
+            mBodyStructure = null;
+            mBody = null;
+            mPartBody = null;
+        }
+
+        @Override
+        public void onUid(String uid) {
+            mUid = uid;
+        }
+
+        @Override
+        public void onFlag(String flag) {
+            if (ImapConstants.FLAG_DELETED.equalsIgnoreCase(flag)) {
+                mDeleted = true;
+            } else if (ImapConstants.FLAG_ANSWERED.equalsIgnoreCase(flag)) {
+                mAnswered = true;
+            } else if (ImapConstants.FLAG_SEEN.equalsIgnoreCase(flag)) {
+                mSeen = true;
+            } else if (ImapConstants.FLAG_FLAGGED.equalsIgnoreCase(flag)) {
+                mFlagged = true;
+            }
+        }
+
+        @Override
+        public void onInternalDate(ImapString internalDate) {
+            mInternalDate = internalDate;
+        }
+
+        @Override
+        public void onSize(int size) {
+            mSize = size;
+        }
+
+        @Override
+        public boolean onLiteral(String key, InputStream in)
+                throws IOException, MessagingException {
+            if (mPartOut == null || mPartBytesWritten >= 0 || !isPartKey(key)) {
+                return false;
+            }
+            // Decode the part while it's being received, without storing it anywhere else.
+            mPartBytesWritten = decodeBody(in, getContentTransferEncoding(mFetchPart),
+                    mFetchPart.getSize(), mPartOut, mListener);
+            return true;
+        }
+
+        private static boolean isPartKey(String key) {
+            return startsWithIgnoreCase(key, "BODY[")
+                    && !startsWithIgnoreCase(key, ImapConstants.BODY_BRACKET_HEADER);
+        }
+
+        @Override
+        public void onItem(String key, ImapElement value) {
+            if (value.isList()) {
+                if (ImapConstants.BODYSTRUCTURE.equalsIgnoreCase(key)) {
+                    mBodyStructure = (ImapList) value;
+                }
+                return;
+            }
+            final ImapString string = (ImapString) value;
+            if (mHeader == null && startsWithIgnoreCase(key, ImapConstants.BODY_BRACKET_HEADER)) {
+                mHeader = string;
+            }
+            // Body is keyed by "BODY[]...".
+            // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+            // TODO Should we accept "RFC822" as well??
+            if (mBody == null && startsWithIgnoreCase(key, "BODY[]")) {
+                mBody = string;
+            }
+            if (mPartBody == null && startsWithIgnoreCase(key, "BODY[")) {
+                mPartBody = string;
+            }
+        }
+
+        private static boolean startsWithIgnoreCase(String s, String prefix) {
+            return s.regionMatches(true, 0, prefix, 0, prefix.length());
+        }
+
+        @Override
+        public void onFetchEnd() throws IOException, MessagingException {
+            if (TextUtils.isEmpty(mUid)) return;
+
+            ImapMessage message = (ImapMessage) mMessageMap.get(mUid);
+            if (message == null) return;
+
+            if (mFetchProfile.contains(FetchProfile.Item.FLAGS)) {
+                if (mDeleted) {
+                    message.setFlagInternal(Flag.DELETED, true);
+                }
+                if (mAnswered) {
+                    message.setFlagInternal(Flag.ANSWERED, true);
+                }
+                if (mSeen) {
+                    message.setFlagInternal(Flag.SEEN, true);
+                }
+                if (mFlagged) {
+                    message.setFlagInternal(Flag.FLAGGED, true);
+                }
+            }
+            if (mFetchProfile.contains(FetchProfile.Item.ENVELOPE)) {
+                final long internalDate = (mInternalDate == null)
+                        ? ImapString.NOT_A_DATE : mInternalDate.getDateMillisOrMin();
+                final String header = (mHeader == null) ? "" : mHeader.getString();
+
+                message.setInternalDate(
+                        (internalDate == ImapString.NOT_A_DATE) ? null : new Date(internalDate));
+                message.setSize(mSize);
+                message.parse(Utility.streamFromAsciiString(header));
+            }
+            if (mFetchProfile.contains(FetchProfile.Item.STRUCTURE)) {
+                if (mBodyStructure != null && !mBodyStructure.isEmpty()) {
+                    try {
+                        parseBodyStructure(mBodyStructure, message, ImapConstants.TEXT);
+                    } catch (MessagingException e) {
+                        if (Logging.LOGD) {
+                            LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
                         }
+                        message.setBody(null);
                     }
+                }
+            }
+            if (mFetchProfile.contains(FetchProfile.Item.BODY)
+                    || mFetchProfile.contains(FetchProfile.Item.BODY_SANE)) {
+                final ImapString body = (mBody == null) ? ImapString.EMPTY : mBody;
+                InputStream bodyStream = body.getAsStream();
+                message.parse(bodyStream);
+            }
+            if (mFetchPart != null && mPartOut != null) {
+                // Unless already streamed by onLiteral(), e.g. if it came as a quoted string.
+                if (mPartBytesWritten < 0 && mPartBody != null) {
+                    mPartBytesWritten = decodeBody(mPartBody.getAsStream(),
+                            getContentTransferEncoding(mFetchPart), mFetchPart.getSize(),
+                            mPartOut, mListener);
+                }
+            } else if (mFetchPart != null) {
+                final ImapString partBody = (mPartBody == null) ? ImapString.EMPTY : mPartBody;
+                InputStream bodyStream = partBody.getAsStream();
+                String contentTransferEncoding = getContentTransferEncoding(mFetchPart);
 
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
-                    }
-                } finally {
-                    destroyResponses();
+                try {
+                    // TODO Don't create 2 temp files.
+                    // decodeBody creates BinaryTempFileBody, but we could avoid this
+                    // if we implement ImapStringBody.
+                    // (We'll need to share a temp file.  Protect it with a ref-count.)
+                    mFetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                            mFetchPart.getSize(), mListener));
+                } catch(Exception e) {
+                    // TODO: Figure out what kinds of exceptions might actually be thrown
+                    // from here. This blanket catch-all is because we're not sure what to
+                    // do if we don't have a contentTransferEncoding, and we don't have
+                    // time to figure out what exceptions might be thrown.
+                    LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
                 }
-            } while (!response.isTagged());
-        } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
+            }
+
+            if (mListener != null) {
+                mListener.messageRetrieved(message);
+            }
         }
     }
 
+    /**
+     * @return the UIDs of {@code messages} as compressed UID sets, each short enough to be put in
+     * a command of {@code commandLength} chars without the UID set, while keeping the command
+     * line within the server's limit.
+     */
+    private List<String> getUidSets(Message[] messages, int commandLength) {
+        return ImapStore.getMessageUidSets(messages,
+                mStore.getMaxCommandLength() - COMMAND_OVERHEAD - commandLength);
+    }
+
+    private static String getContentTransferEncoding(Part part) throws MessagingException {
+        String encodings[] = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        if (encodings != null && encodings.length > 0) {
+            return encodings[0];
+        }
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1
+        // "7bit" is the default.
+        return "7bit";
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
      */
     private static Body decodeBody(InputStream in, String contentTransferEncoding, int size,
             MessageRetrievalListener listener) throws IOException {
-        // Get a properly wrapped input stream
-        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
         BinaryTempFileBody tempBody = new BinaryTempFileBody();
         OutputStream out = tempBody.getOutputStream();
+        try {
+            decodeBody(in, contentTransferEncoding, size, out, listener);
+        } finally {
+            out.close();
+        }
+        return tempBody;
+    }
+
+    /**
+     * Removes any content transfer encoding from the stream and writes the result to
+     * {@code out}, reporting the progress to {@code listener}.
+     *
+     * @return the number of bytes written.
+     */
+    private static long decodeBody(InputStream in, String contentTransferEncoding, int size,
+            OutputStream out, MessageRetrievalListener listener) throws IOException {
+        // Get a properly wrapped input stream
+        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
+        long count = 0;
         try {
             byte[] buffer = new byte[COPY_BUFFER_SIZE];
             int n = 0;
-            int count = 0;
             while (-1 != (n = in.read(buffer))) {
                 out.write(buffer, 0, n);
                 count += n;
@@ -1122,17 +1735,17 @@ public class ImapFolder extends Folder {
                         // We don't know how big the file is, so just fake it.
                         listener.loadAttachmentProgress((int)Math.ceil(100 * (1-1.0/count)));
                     } else {
-                        listener.loadAttachmentProgress(count * 100 / size);
+                        listener.loadAttachmentProgress((int)(count * 100 / size));
                     }
                 }
             }
         } catch (Base64DataException bde) {
             String warning = "\n\n" + ImapService.getMessageDecodeErrorString();
-            out.write(warning.getBytes());
-        } finally {
-            out.close();
+            byte[] warningBytes = warning.getBytes();
+            out.write(warningBytes);
+            count += warningBytes.length;
         }
-        return tempBody;
+        return count;
     }
 
     @Override
@@ -1503,12 +2116,15 @@ public class ImapFolder extends Folder {
             allFlags = flagList.substring(1);
         }
         try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
+            final String format =
+                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)";
+            final String sign = value ? "+" : "-";
+            final List<String> commands = new ArrayList<String>();
+            for (String uidSet : getUidSets(messages,
+                    String.format(Locale.US, format, "", sign, allFlags).length())) {
+                commands.add(String.format(Locale.US, format, uidSet, sign, allFlags));
+            }
+            mConnection.executePipelinedCommands(commands, null);
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
@@ -1535,27 +2151,59 @@ public class ImapFolder extends Folder {
         }
     }
 
+    /**
+     * @return whether selecting the folder can report what changed since {@code modSeq}.
+     */
+    private boolean canQresync(String uidValidity, String modSeq) {
+        return mConnection.isQresyncEnabled()
+                && uidValidity != null && ImapUtility.isImapNumber(uidValidity)
+                && modSeq != null && ImapUtility.isImapNumber(modSeq);
+    }
+
     /**
      * Selects the folder for use. Before performing any operations on this folder, it
      * must be selected.
      */
-    private void doSelect() throws IOException, MessagingException {
-        final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+    private void doSelect(String uidValidity, String modSeq)
+            throws IOException, MessagingException {
+        String command = String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
+                ImapStore.encodeFolderName(mName, mStore.mPathPrefix));
+        final boolean qresync = canQresync(uidValidity, modSeq);
+        if (qresync) {
+            // e.g. SELECT "INBOX" (QRESYNC (67890007 20050715194045000))
+            command += " (" + ImapConstants.QRESYNC + " (" + uidValidity + " " + modSeq + "))";
+        }
+        final List<ImapResponse> responses = mConnection.executeSimpleCommand(command);
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = null;
+        mHighestModSeq = null;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
                 messageCount = response.getStringOrEmpty(0).getNumberOrZero();
+            } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                // S: * 12 FETCH (UID 1234 FLAGS (\Seen) MODSEQ (5678))
+                final Message message = getMessageFromFetchFlags(response.getListOrEmpty(2));
+                if (message != null) {
+                    mChangedMessages.add(message);
+                }
+            } else if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                // S: * VANISHED (EARLIER) 41,43:116
+                final int index = response.getElementOrNone(1).isList() ? 2 : 1;
+                mVanishedUids.addAll(Arrays.asList(ImapUtility.getImapSequenceValues(
+                        response.getStringOrEmpty(index).getString())));
             } else if (response.isOk()) {
                 final ImapString responseCode = response.getResponseCodeOrEmpty();
                 if (responseCode.is(ImapConstants.READ_ONLY)) {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = response.getListOrEmpty(1).getStringOrEmpty(1).getString();
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    mHighestModSeq = response.getListOrEmpty(1).getStringOrEmpty(1).getString();
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
@@ -1567,6 +2215,76 @@ public class ImapFolder extends Folder {
         }
         mMessageCount = messageCount;
         mExists = true;
+        // The server only reports the changes if UIDVALIDITY didn't change
+        mQresynced = qresync && uidValidity.equals(mUidValidity)
+                && !TextUtils.isEmpty(mHighestModSeq);
+        if (!mQresynced) {
+            mChangedMessages.clear();
+            mVanishedUids.clear();
+        }
+    }
+
+    /**
+     * @return a message with the UID and flags of an untagged FETCH response, or null if the
+     * response has no UID.
+     */
+    private Message getMessageFromFetchFlags(ImapList fetchList) throws MessagingException {
+        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+        if (TextUtils.isEmpty(uid)) {
+            return null;
+        }
+        final ImapMessage message = new ImapMessage(uid, this);
+        final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+        for (int i = 0, count = flags.size(); i < count; i++) {
+            final ImapString flag = flags.getStringOrEmpty(i);
+            if (flag.is(ImapConstants.FLAG_DELETED)) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            }
+        }
+        return message;
+    }
+
+    /** @return UIDVALIDITY of the mailbox when it was opened, or null if unknown. */
+    public String getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * @return HIGHESTMODSEQ of the mailbox when it was opened, or null if the server doesn't
+     * support CONDSTORE for it.
+     */
+    public String getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * @return whether {@link #open(OpenMode, String, String)} got the changes since the given
+     * mod-sequence; if not, the mailbox needs to be synced the usual way.
+     */
+    public boolean isQresynced() {
+        return mQresynced;
+    }
+
+    /**
+     * @return the messages, with their flags, that changed or arrived since the mod-sequence
+     * given to {@link #open(OpenMode, String, String)}.
+     */
+    public Message[] getChangedMessages() {
+        return mChangedMessages.toArray(new Message[mChangedMessages.size()]);
+    }
+
+    /**
+     * @return the UIDs of the messages expunged since the mod-sequence given to
+     * {@link #open(OpenMode, String, String)}.
+     */
+    public List<String> getVanishedUids() {
+        return mVanishedUids;
     }
 
     private void checkOpen() throws MessagingException {
@@ -1585,6 +2303,154 @@ public class ImapFolder extends Folder {
         return new MessagingException(MessagingException.IOERROR, "IO Error", ioe);
     }
 
+    /**
+     * Gets the statuses of the folder and the UIDs of its messages, which the responses received
+     * while idling are checked against.
+     */
+    @VisibleForTesting
+    void prepareIdling() throws MessagingException {
+        mIdleStatuses = getStatuses(IDLE_STATUSES);
+        updateIdleSequenceMap();
+    }
+
+    /**
+     * Brings {@link #mIdleSequenceMap} up to date with {@link #mIdleStatuses} before idling.
+     * If it's still valid, only the UIDs of the messages after the known ones are asked for;
+     * otherwise the map is built again from the UIDs of all the messages.  If that fails, there
+     * is no map, and an EXPUNGE received while idling requires a full sync.
+     */
+    private void updateIdleSequenceMap() {
+        final String uidValidity = mIdleStatuses.get(ImapConstants.UIDVALIDITY);
+        int count = -1;
+        try {
+            count = Integer.parseInt(mIdleStatuses.get(ImapConstants.MESSAGES));
+        } catch (NumberFormatException e) {
+            // Unknown, so the map can't be checked
+        }
+        ImapSequenceMap map = mIdleSequenceMap;
+        if (map != null && (!TextUtils.equals(uidValidity, mIdleSequenceUidValidity)
+                || count < map.size())) {
+            map = null;
+        }
+        try {
+            if (map != null && map.size() > 0 && !appendToIdleSequenceMap(map, count)) {
+                // Messages were expunged since the last IDLE
+                map = null;
+            }
+            if ((map == null || map.size() == 0) && count >= 0) {
+                map = new ImapSequenceMap();
+                if (count > 0 && !map.append(searchForUids("1:*", false))) {
+                    map = null;
+                }
+            }
+            if (map != null && (map.size() != count || !map.setMessageCount(count))) {
+                // The mailbox changed in the meantime
+                map = null;
+            }
+        } catch (MessagingException me) {
+            LogUtils.d(LOG_TAG, me, "Failed to get the UIDs of mailbox " + mName);
+            map = null;
+        }
+        mIdleSequenceMap = map;
+        mIdleSequenceUidValidity = uidValidity;
+    }
+
+    /**
+     * Adds the UIDs of the messages after the ones in {@code map}, as found by a search from
+     * the last known one, which must not have moved.
+     *
+     * @return false if the last known message isn't where it was, i.e. messages before it were
+     * expunged.
+     */
+    private boolean appendToIdleSequenceMap(ImapSequenceMap map, int count)
+            throws MessagingException {
+        final String lastUid = map.getLastUid();
+        final String[] uids = searchForUids(map.size() + ":*", false);
+        final ArrayList<String> newUids = new ArrayList<String>(uids.length);
+        boolean foundLast = false;
+        for (String uid : uids) {
+            if (uid.equals(lastUid)) {
+                foundLast = true;
+            } else {
+                newUids.add(uid);
+            }
+        }
+        return foundLast && uids.length == count - map.size() + 1
+                && map.append(newUids.toArray(new String[newUids.size()]));
+    }
+
+    /**
+     * Applies an EXPUNGE response received while idling to {@link #mIdleSequenceMap}.
+     *
+     * @return the UID of the expunged message, or null if it is unknown.  The map is dropped if
+     * it doesn't match the response.
+     */
+    private String expungeFromIdleSequenceMap(int msn) {
+        if (mIdleSequenceMap == null) {
+            return null;
+        }
+        try {
+            return mIdleSequenceMap.expunge(msn);
+        } catch (IllegalArgumentException e) {
+            mIdleSequenceMap = null;
+            return null;
+        }
+    }
+
+    /**
+     * Applies an EXPUNGE of the message {@code msn} to the sequence numbers in {@code msns}: it
+     * is dropped, and the ones after it move down by one.
+     */
+    private static void expungeFromSequenceNumbers(List<String> msns, int msn) {
+        final ListIterator<String> it = msns.listIterator();
+        while (it.hasNext()) {
+            final int queued = Integer.parseInt(it.next());
+            if (queued == msn) {
+                it.remove();
+            } else if (queued > msn) {
+                it.set(Integer.toString(queued - 1));
+            }
+        }
+    }
+
+    /**
+     * Finds the UIDs of messages from their sequence numbers, with a FETCH per sequence set
+     * rather than a search per message.
+     *
+     * @return the UIDs found, by message sequence number
+     */
+    private Map<String, String> fetchUids(List<String> msns) throws MessagingException {
+        checkOpen();
+        final Map<String, String> uids = new HashMap<String, String>();
+        try {
+            final String format = ImapConstants.FETCH + " %s (" + ImapConstants.UID + ")";
+            final List<String> commands = new ArrayList<String>();
+            for (String set : ImapUtility.getImapSequenceSets(
+                    msns.toArray(new String[msns.size()]), mStore.getMaxCommandLength()
+                            - COMMAND_OVERHEAD - String.format(Locale.US, format, "").length())) {
+                commands.add(String.format(Locale.US, format, set));
+            }
+            for (List<ImapResponse> responses :
+                    mConnection.executePipelinedCommands(commands, null)) {
+                for (ImapResponse response : responses) {
+                    // S: * 12 FETCH (UID 4827)
+                    if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                        final String uid = response.getListOrEmpty(2)
+                                .getKeyedStringOrEmpty(ImapConstants.UID).getString();
+                        if (!TextUtils.isEmpty(uid)) {
+                            uids.put(response.getStringOrEmpty(0).getString(), uid);
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+        return uids;
+    }
+
     private ImapIdleChanges extractImapChanges(List<Object> changes) throws MessagingException {
         // Process the changes and fill the idle changes structure.
         // Basically we should look for the next commands in this method:
@@ -1595,14 +2461,20 @@ public class ImapFolder extends Folder {
         //        Indicates the number of messages in the mailbox => handle like
         //        RECENT if the number increased
         //    n EXPUNGE
-        //        Indicates a message was completely deleted => a full sync is required
+        //        Indicates a message was completely deleted => its UID is found in the
+        //        sequence map, if we have one. Otherwise a full sync is required
+        //    VANISHED uid-set
+        //        Same as EXPUNGE, when QRESYNC is enabled, but with the UIDs
         //    n RECENT
         //        New messages waiting in the server => use UIDNEXT to search for the new messages.
         //        If isn't possible to retrieve the new UID messages, then a full sync is required
+        //    STATUS mailbox (...)
+        //        Another mailbox watched with NOTIFY changed => it needs a sync
         //    n FETCH (UID X FLAGS (...))
         //        a message has changed and requires to fetch only X message
         //        (something change on that item). If UID is not present, a conversion
-        //        from MSN to UID is required
+        //        from MSN to UID is required, with the sequence map or a single FETCH for
+        //        all of them. Once QRESYNC is enabled, servers always send the UID
 
         final ImapIdleChanges imapIdleChanges = new ImapIdleChanges();
 
@@ -1627,6 +2499,30 @@ public class ImapFolder extends Folder {
                 break;
             }
             try {
+                if (change.isDataResponse(0, ImapConstants.STATUS)) {
+                    // Another mailbox watched with NOTIFY changed
+                    final String name = change.getStringOrEmpty(1).getString();
+                    if (!imapIdleChanges.mNotifiedMailboxes.contains(name)) {
+                        imapIdleChanges.mNotifiedMailboxes.add(name);
+                    }
+                    continue;
+                }
+                if (change.isDataResponse(0, ImapConstants.VANISHED)) {
+                    // Sent instead of EXPUNGE once QRESYNC is enabled
+                    if (change.getElementOrNone(1).isList()) {
+                        // (EARLIER) isn't expected while idling
+                        imapIdleChanges.mRequiredSync = true;
+                        continue;
+                    }
+                    for (String uid : ImapUtility.getImapSequenceValues(
+                            change.getStringOrEmpty(1).getString())) {
+                        imapIdleChanges.mExpungedMessages.add(uid);
+                        if (mIdleSequenceMap != null) {
+                            mIdleSequenceMap.remove(uid);
+                        }
+                    }
+                    continue;
+                }
                 ImapElement element = change.getElementOrNone(1);
                 if (element.equals(ImapElement.NONE)) {
                     continue;
@@ -1652,8 +2548,20 @@ public class ImapFolder extends Folder {
                     if (newMessageCount > oldMessageCount) {
                         hasNewMessages = true;
                     }
+                    if (mIdleSequenceMap != null
+                            && !mIdleSequenceMap.setMessageCount(newMessageCount)) {
+                        mIdleSequenceMap = null;
+                    }
                 } else if (op.is(ImapConstants.EXPUNGE)) {
-                    imapIdleChanges.mRequiredSync = true;
+                    final int msn = change.getStringOrEmpty(0).getNumberOrZero();
+                    final String uid = expungeFromIdleSequenceMap(msn);
+                    // The messages still to be resolved are renumbered too
+                    expungeFromSequenceNumbers(msns, msn);
+                    if (uid != null) {
+                        imapIdleChanges.mExpungedMessages.add(uid);
+                    } else if (mIdleSequenceMap == null) {
+                        imapIdleChanges.mRequiredSync = true;
+                    }
                     synchronized (this) {
                         mMessageCount--;
                     }
@@ -1664,11 +2572,14 @@ public class ImapFolder extends Folder {
                     ImapList messageFlags = (ImapList) change.getElementOrNone(2);
                     String uid = ((ImapString) messageFlags.getKeyedStringOrEmpty(
                             ImapConstants.UID, true)).getString();
-                    if (!TextUtils.isEmpty(uid) &&
-                            !imapIdleChanges.mMessageToFetch.contains(uid)) {
-                        imapIdleChanges.mMessageToFetch.add(uid);
-                    } else {
+                    if (TextUtils.isEmpty(uid) && mIdleSequenceMap != null) {
+                        uid = mIdleSequenceMap.getUid(change.getStringOrEmpty(0).getNumberOrZero());
+                    }
+                    if (TextUtils.isEmpty(uid)) {
+                        // Resolved below, together with the others
                         msns.add(change.getStringOrEmpty(0).getString());
+                    } else if (!imapIdleChanges.mMessageToFetch.contains(uid)) {
+                        imapIdleChanges.mMessageToFetch.add(uid);
                     }
                 } else {
                     if (Logging.LOGD) {
@@ -1693,7 +2604,9 @@ public class ImapFolder extends Folder {
         String newUidValidity = statuses.get(ImapConstants.UIDVALIDITY);
         if (!TextUtils.equals(oldUidValidity, newUidValidity)) {
             imapIdleChanges.mMessageToFetch.clear();
+            imapIdleChanges.mExpungedMessages.clear();
             imapIdleChanges.mRequiredSync = true;
+            mIdleSequenceMap = null;
             return imapIdleChanges;
         }
 
@@ -1703,16 +2616,24 @@ public class ImapFolder extends Folder {
                 // Retrieve new message UIDs
                 String uidNext = mIdleStatuses.get(ImapConstants.UIDNEXT);
                 if (hasNewMessages && !TextUtils.isEmpty(uidNext)) {
-                    msns.addAll(getNewMessagesFromUid(uidNext));
+                    for (String msn : getNewMessagesFromUid(uidNext)) {
+                        if (!msns.contains(msn)) {
+                            msns.add(msn);
+                        }
+                    }
                 }
 
-                // Transform MSNs to UIDs
-                for (String msn : msns) {
-                    String[] uids = searchForUids(String.format(Locale.US, "%s:%s", msn, msn));
-                    if (uids.length > 0) {
-                        imapIdleChanges.mMessageToFetch.add(uids[0]);
-                    } else {
-                        throw new MessagingException("Server could not resolve MSN " + msn);
+                // Transform MSNs to UIDs, all at once
+                if (!msns.isEmpty()) {
+                    final Map<String, String> uids = fetchUids(msns);
+                    for (String msn : msns) {
+                        final String uid = uids.get(msn);
+                        if (uid == null) {
+                            throw new MessagingException("Server could not resolve MSN " + msn);
+                        }
+                        if (!imapIdleChanges.mMessageToFetch.contains(uid)) {
+                            imapIdleChanges.mMessageToFetch.add(uid);
+                        }
                     }
                 }
             } catch (MessagingException ex) {
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the responses of all the idling IMAP connections from a single thread, rather than
+ * keeping a thread per connection blocked in a socket read.
+ *
+ * <p>A {@link Session} is registered for each IDLE the server accepted.  The reader thread
+ * selects on the channels of all of them, and calls a session when its channel has something to
+ * read, or when the time it asked for has come.  Sessions must not block there; whatever may
+ * block once a session is over, like the commands needed to report its changes, is handed to
+ * {@link #execute}, which runs it on another thread shared by all the sessions.
+ */
+/* package */ class ImapIdleReader implements Runnable {
+    /** Returned by the methods of {@link Session} when it doesn't need to be called anymore. */
+    public static final long FINISHED = -1;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * A connection watched by the reader.  All the methods are called on the reader thread.
+     */
+    public interface Session {
+        /**
+         * @return the channel to watch, or null if the connection was closed
+         */
+        public SelectableChannel getChannel();
+        /**
+         * Invoked when the channel may have something to read, and once right after the
+         * session is registered, since the connection may have read ahead.  This must read
+         * without blocking.
+         *
+         * @return the {@link SystemClock#uptimeMillis()} at which to call {@link #onDeadline},
+         * or {@link #FINISHED}
+         */
+        public long onReadable();
+        /**
+         * Invoked when the time returned last has come without the session finishing.
+         *
+         * @return the next deadline, or {@link #FINISHED}
+         */
+        public long onDeadline();
+    }
+
+    private static ImapIdleReader sInstance;
+
+    private final Selector mSelector;
+    private final ThreadPoolExecutor mExecutor;
+    // The work the other threads asked for, run by the reader thread before its next select
+    private final ArrayList<Runnable> mPendingTasks = new ArrayList<Runnable>();
+    // The registered sessions and their deadlines; only used by the reader thread
+    private final HashMap<Session, Long> mDeadlines = new HashMap<Session, Long>();
+    private final HashMap<Session, SelectionKey> mKeys = new HashMap<Session, SelectionKey>();
+
+    /**
+     * @return the reader shared by all the connections, started on first use
+     */
+    public static synchronized ImapIdleReader getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new ImapIdleReader();
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    /* package */ ImapIdleReader() throws IOException {
+        mSelector = Selector.open();
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "ImapIdleDispatcher");
+                    }
+                });
+        // Don't keep the thread around between changes
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /* package */ void start() {
+        new Thread(this, "ImapIdleReader").start();
+    }
+
+    /**
+     * Start watching {@code session}, until one of its methods returns {@link #FINISHED}.
+     *
+     * @param deadline the {@link SystemClock#uptimeMillis()} at which to call
+     * {@link Session#onDeadline}
+     */
+    public void register(final Session session, final long deadline) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                final SelectableChannel channel = session.getChannel();
+                try {
+                    if (channel == null) {
+                        throw new ClosedChannelException();
+                    }
+                    final SelectionKey key = channel.keyFor(mSelector);
+                    if (key != null && !key.isValid()) {
+                        // The key of a previous session is only dropped by the next select
+                        mSelector.selectNow();
+                    }
+                    mKeys.put(session,
+                            channel.register(mSelector, SelectionKey.OP_READ, session));
+                } catch (IOException e) {
+                    // Closed meanwhile; the session finds it out once it reads
+                    LogUtils.d(Logging.LOG_TAG, "Cannot watch an idling connection: " + e);
+                }
+                mDeadlines.put(session, deadline);
+                call(session, true);
+            }
+        });
+    }
+
+    /**
+     * Call {@link Session#onReadable} of {@code session} soon, whether its channel has
+     * something to read or not, e.g. because its connection was closed, which isn't reported by
+     * the selector.  Nothing is done if the session is over already.
+     */
+    public void check(final Session session) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mDeadlines.containsKey(session)) {
+                    call(session, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Run {@code r} on the thread the sessions hand their blocking work to.  The tasks run one
+     * at a time, in the order they were submitted.
+     */
+    public void execute(Runnable r) {
+        mExecutor.execute(r);
+    }
+
+    private void post(Runnable r) {
+        synchronized (mPendingTasks) {
+            mPendingTasks.add(r);
+        }
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                mSelector.select(getSelectTimeout());
+            } catch (IOException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Cannot select the idling connections");
+            }
+
+            final ArrayList<Runnable> tasks;
+            synchronized (mPendingTasks) {
+                tasks = new ArrayList<Runnable>(mPendingTasks);
+                mPendingTasks.clear();
+            }
+            for (Runnable task : tasks) {
+                task.run();
+            }
+
+            for (SelectionKey key : mSelector.selectedKeys()) {
+                final Session session = (Session) key.attachment();
+                if (key.isValid() && mDeadlines.containsKey(session)) {
+                    call(session, true);
+                }
+            }
+            mSelector.selectedKeys().clear();
+
+            final long now = SystemClock.uptimeMillis();
+            for (Session session : new ArrayList<Session>(mDeadlines.keySet())) {
+                final Long deadline = mDeadlines.get(session);
+                if (deadline != null && deadline <= now) {
+                    call(session, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how long to wait for the next deadline, or 0 if there is none
+     */
+    private long getSelectTimeout() {
+        final long now = SystemClock.uptimeMillis();
+        long timeout = 0;
+        for (long deadline : mDeadlines.values()) {
+            final long wait = Math.max(deadline - now, 1);
+            if (timeout == 0 || wait < timeout) {
+                timeout = wait;
+            }
+        }
+        return timeout;
+    }
+
+    private void call(Session session, boolean readable) {
+        long deadline;
+        try {
+            deadline = readable ? session.onReadable() : session.onDeadline();
+        } catch (RuntimeException e) {
+            // Keep reading the other connections
+            LogUtils.e(Logging.LOG_TAG, e, "Idling session failed");
+            deadline = FINISHED;
+        }
+        if (deadline == FINISHED) {
+            mDeadlines.remove(session);
+            final SelectionKey key = mKeys.remove(session);
+            if (key != null) {
+                key.cancel();
+            }
+        } else {
+            mDeadlines.put(session, deadline);
+        }
+    }
+}
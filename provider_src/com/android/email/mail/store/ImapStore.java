@@ -19,6 +19,7 @@ package com.android.email.mail.store;
 import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -30,6 +31,7 @@ import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapUtility;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.VendorPolicyLoader;
@@ -89,11 +91,46 @@ public class ImapStore extends Store {
     @VisibleForTesting String mPathPrefix;
     @VisibleForTesting String mPathSeparator;
 
+    /**
+     * Default limit for the length of the command lines we send.  RFC 7162 recommends clients
+     * to keep them under 8192 octets, and some servers reject longer lines.
+     */
+    @VisibleForTesting static final int DEFAULT_MAX_COMMAND_LENGTH = 8000;
+
     private boolean mUseOAuth;
 
+    /** Limit for the length of the command lines sent to this server. */
+    private int mMaxCommandLength = DEFAULT_MAX_COMMAND_LENGTH;
+
+    /**
+     * How long an authenticated connection is kept in the pool for reuse.  Servers may log out
+     * clients after 30 minutes of inactivity (RFC 3501), so stay under that.
+     */
+    @VisibleForTesting static final long POOLED_CONNECTION_TTL_MILLIS = 25 * 60 * 1000L;
+    /** Read timeout of the NOOP checking that a pooled connection still works. */
+    private static final int POOLED_CONNECTION_CHECK_TIMEOUT = 10 * 1000;
+    /** Connections kept in the pool; the others are closed when they are released. */
+    @VisibleForTesting static final int MAX_POOLED_CONNECTIONS = 2;
+
     private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
             new ConcurrentLinkedQueue<ImapConnection>();
 
+    /**
+     * How long what the server told about itself while a connection was set up is trusted, so
+     * that the next connections don't ask again.
+     */
+    @VisibleForTesting static final long SERVER_INFO_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Whether to remember what the server told about itself.  Not for unsaved settings, which
+     * are being checked.
+     */
+    @VisibleForTesting boolean mCacheServerInfo;
+    /** The capabilities announced before login, or null if they must be queried. */
+    private volatile ServerCapabilities mServerCapabilities;
+    /** When the path prefix and separator were last learned from NAMESPACE, or 0 if never. */
+    private volatile long mNamespaceTime;
+
     /**
      * Static named constructor.
      */
@@ -121,6 +158,18 @@ public class ImapStore extends Store {
         final Credential cred = recvAuth.getCredential(context);
         mUseOAuth = (cred != null);
         mPathPrefix = recvAuth.mDomain;
+        mCacheServerInfo = recvAuth.isSaved();
+    }
+
+    int getMaxCommandLength() {
+        return mMaxCommandLength;
+    }
+
+    /**
+     * Override the command line length limit, for servers known to have a different one.
+     */
+    void setMaxCommandLength(int maxCommandLength) {
+        mMaxCommandLength = maxCommandLength;
     }
 
     boolean getUseOAuth() {
@@ -536,6 +585,50 @@ public class ImapStore extends Store {
         mPathPrefix = pathPrefix;
     }
 
+    /**
+     * @return the capabilities the server announced before login, if still trusted, or null.
+     */
+    ServerCapabilities getServerCapabilities() {
+        final ServerCapabilities capabilities = mServerCapabilities;
+        if (capabilities == null || isServerInfoExpired(capabilities.mTime)) {
+            return null;
+        }
+        return capabilities;
+    }
+
+    /** Remembers the capabilities the server announced before login. */
+    void setServerCapabilities(ServerCapabilities capabilities) {
+        if (mCacheServerInfo) {
+            mServerCapabilities = capabilities;
+        }
+    }
+
+    /** @return whether the path prefix and separator from NAMESPACE are still trusted. */
+    boolean isNamespaceKnown() {
+        return mNamespaceTime != 0 && !isServerInfoExpired(mNamespaceTime);
+    }
+
+    /** Remembers that the path prefix and separator were just learned from NAMESPACE. */
+    void setNamespaceKnown() {
+        if (mCacheServerInfo) {
+            mNamespaceTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Forgets what the server told about itself, e.g. because setting up a connection failed
+     * and it may have changed.
+     */
+    void clearServerInfo() {
+        mServerCapabilities = null;
+        mNamespaceTime = 0;
+    }
+
+    private static boolean isServerInfoExpired(long time) {
+        final long age = SystemClock.elapsedRealtime() - time;
+        return age < 0 || age >= SERVER_INFO_TTL_MILLIS;
+    }
+
     /** Gets the context for this store */
     Context getContext() {
         return mContext;
@@ -561,6 +654,9 @@ public class ImapStore extends Store {
 
     /**
      * Gets a connection if one is available from the pool, or creates a new one if not.
+     * Pooled connections are still authenticated; they are checked with a NOOP before being
+     * reused, and dropped once they were pooled for longer than
+     * {@link #POOLED_CONNECTION_TTL_MILLIS}.
      */
     ImapConnection getConnection() {
         // TODO Why would we ever have (or need to have) more than one active connection?
@@ -568,15 +664,19 @@ public class ImapStore extends Store {
         // when we do this. So if that information has changed, this connection will fail.
         ImapConnection connection;
         while ((connection = mConnectionPool.poll()) != null) {
-            try {
-                connection.setStore(this);
-                connection.setReadTimeout(MailTransport.SOCKET_READ_TIMEOUT);
-                connection.executeSimpleCommand(ImapConstants.NOOP);
-                break;
-            } catch (MessagingException e) {
-                // Fall through
-            } catch (IOException e) {
-                // Fall through
+            if (!isExpired(connection, SystemClock.elapsedRealtime())) {
+                try {
+                    connection.setStore(this);
+                    // Don't wait long for a connection the network silently dropped
+                    connection.setReadTimeout(POOLED_CONNECTION_CHECK_TIMEOUT);
+                    connection.executeSimpleCommand(ImapConstants.NOOP);
+                    connection.setReadTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+                    break;
+                } catch (MessagingException e) {
+                    // Fall through
+                } catch (IOException e) {
+                    // Fall through
+                }
             }
             connection.close();
         }
@@ -593,11 +693,21 @@ public class ImapStore extends Store {
      */
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
+            if (mConnectionPool.size() >= MAX_POOLED_CONNECTIONS) {
+                connection.close();
+                return;
+            }
             connection.destroyResponses();
+            connection.setPooledTime(SystemClock.elapsedRealtime());
             mConnectionPool.add(connection);
         }
     }
 
+    private static boolean isExpired(ImapConnection connection, long now) {
+        final long pooledFor = now - connection.getPooledTime();
+        return pooledFor < 0 || pooledFor >= POOLED_CONNECTION_TTL_MILLIS;
+    }
+
     /**
      * Prepends the folder name with the given prefix and UTF-7 encodes it.
      */
@@ -647,6 +757,20 @@ public class ImapStore extends Store {
         return sb.toString();
     }
 
+    /**
+     * Returns UIDs of Messages as compressed UID sets, e.g. "1:3,7", each no longer than
+     * {@code maxLength}.
+     *
+     * @see ImapUtility#getImapSequenceSets
+     */
+    static List<String> getMessageUidSets(Message[] messages, int maxLength) {
+        final String[] uids = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            uids[i] = messages[i].getUid();
+        }
+        return ImapUtility.getImapSequenceSets(uids, maxLength);
+    }
+
     static class ImapMessage extends MimeMessage {
         ImapMessage(String uid, ImapFolder folder) {
             mUid = uid;
@@ -673,6 +797,26 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * The capabilities a server announced before login, after STARTTLS if any.
+     */
+    static class ServerCapabilities {
+        /** Whether STARTTLS was announced before TLS was started. */
+        final boolean mStartTls;
+        /** The capabilities, as ImapConnection.CAPABILITY_* flags. */
+        final int mCapabilities;
+        /** The capabilities as announced, for the vendor policy; see {@link #getImapId}. */
+        final String mCapabilityString;
+        final long mTime;
+
+        ServerCapabilities(boolean startTls, int capabilities, String capabilityString) {
+            mStartTls = startTls;
+            mCapabilities = capabilities;
+            mCapabilityString = capabilityString;
+            mTime = SystemClock.elapsedRealtime();
+        }
+    }
+
     static class ImapException extends MessagingException {
         private static final long serialVersionUID = 1L;
 
@@ -707,4 +851,15 @@ public class ImapStore extends Store {
             connection.close();
         }
     }
+
+    @Override
+    public void closeExpiredConnections() {
+        final long now = SystemClock.elapsedRealtime();
+        for (ImapConnection connection : mConnectionPool) {
+            // Unless getConnection() took it meanwhile
+            if (isExpired(connection, now) && mConnectionPool.remove(connection)) {
+                connection.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.emailcommon.mail.MessagingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the items of untagged FETCH responses while they are being parsed, so that no
+ * {@link ImapResponse} tree has to be built for them.
+ *
+ * <p>Items are passed in the order the server sends them, which is not necessarily the order
+ * they were requested in.  In particular UID may come after any other item, so implementations
+ * should hold on to what they receive until {@link #onFetchEnd()}.
+ *
+ * @see ImapResponseParser#readResponse(ImapFetchHandler)
+ */
+public interface ImapFetchHandler {
+    /**
+     * Called when a FETCH response starts.
+     *
+     * @param messageNumber the message sequence number of the response.
+     */
+    public void onFetchStart(String messageNumber) throws IOException, MessagingException;
+
+    /** Called with the value of UID. */
+    public void onUid(String uid) throws IOException, MessagingException;
+
+    /**
+     * Called once per flag in FLAGS.  The well-known system flags are passed as the
+     * {@link ImapConstants} instances, e.g. {@link ImapConstants#FLAG_SEEN}, regardless of the
+     * case the server used.
+     */
+    public void onFlag(String flag) throws IOException, MessagingException;
+
+    /**
+     * Called with the value of INTERNALDATE.  Like the values passed to {@link #onItem}, it
+     * stays valid until {@link #onFetchEnd()} returns.
+     */
+    public void onInternalDate(ImapString internalDate) throws IOException, MessagingException;
+
+    /** Called with the value of RFC822.SIZE. */
+    public void onSize(int size) throws IOException, MessagingException;
+
+    /**
+     * Called when the value of an item is a literal, before its content is read from the
+     * network.
+     *
+     * <p>The handler may read the content from {@code in} right away, e.g. to decode it straight
+     * into its final destination, and return true.  In that case the literal is not stored
+     * anywhere, and {@link #onItem} is not called for it.  If it returns false, the literal is
+     * read and passed to {@link #onItem} as usual.
+     */
+    public boolean onLiteral(String key, InputStream in) throws IOException, MessagingException;
+
+    /**
+     * Called for any other item, e.g. BODYSTRUCTURE or a BODY[...] literal.
+     *
+     * <p>{@code value} stays valid until {@link #onFetchEnd()} returns, and is destroyed right
+     * after that.
+     */
+    public void onItem(String key, ImapElement value) throws IOException, MessagingException;
+
+    /** Called when the FETCH response has been fully parsed. */
+    public void onFetchEnd() throws IOException, MessagingException;
+}
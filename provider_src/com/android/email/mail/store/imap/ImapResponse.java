@@ -37,6 +37,13 @@ public class ImapResponse extends ImapList {
                 || ImapConstants.BYE.equalsIgnoreCase(symbol);
     }
 
+    /**
+     * @return the tag of a tagged response, or null for an untagged one.
+     */
+    public String getTag() {
+        return mTag;
+    }
+
     /**
      * @return whether it's a tagged response.
      */
@@ -20,7 +20,6 @@ import android.text.TextUtils;
 
 import com.android.email.DebugUtils;
 import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.MessagingException;
@@ -29,6 +28,8 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
 /**
@@ -42,8 +43,61 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    /** Size of the buffer we read the network stream into. */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * How large {@link #mBuffer} may grow to hold a whole response, see {@link #readAvailable}.
+     */
+    private static final int MAX_AVAILABLE_BUFFER_SIZE = 128 * READ_BUFFER_SIZE;
+
+    /**
+     * Bytes are mapped 1:1 to chars, which is what the old byte-by-byte parser did when it
+     * appended {@code (char) byte}.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] CLOSING_BRACKET = {']'};
+
+    /** Flags {@link #parseFetchFlags} passes without creating a new String. */
+    private static final String[] WELL_KNOWN_FLAGS = {
+        ImapConstants.FLAG_SEEN, ImapConstants.FLAG_ANSWERED, ImapConstants.FLAG_FLAGGED,
+        ImapConstants.FLAG_DELETED,
+    };
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
+
+    /**
+     * Bytes read from {@link #mIn} but not parsed yet, between position and limit.  The parser
+     * scans this buffer directly rather than pulling one byte at a time from the stream.
+     */
+    private ByteBuffer mBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Stream used by literals.  It drains {@link #mBuffer} first, and then reads straight from
+     * {@link #mIn}, so the literal content is copied in bulk.
+     */
+    private final InputStream mLiteralIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mBuffer.hasRemaining()) {
+                return mBuffer.get() & 0xff;
+            }
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            final int remaining = mBuffer.remaining();
+            if (remaining > 0) {
+                final int count = Math.min(remaining, length);
+                mBuffer.get(b, offset, count);
+                return count;
+            }
+            return mIn.read(b, offset, length);
+        }
+    };
 
     /**
      * To log network activities when the parser crashes.
@@ -54,11 +108,9 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
-
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /** Used by readUntil() and parseBareString() for tokens spanning more than one read. */
+    private byte[] mToken = new byte[256];
+    private int mTokenLength;
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -96,7 +148,8 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = in;
+        mBuffer.limit(0);
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
@@ -114,34 +167,172 @@ public class ImapResponseParser {
     }
 
     /**
-     * Peek next one byte.
+     * Make sure {@link #mBuffer} has at least one byte to parse, reading from {@link #mIn} if
+     * needed.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
-    private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
+    private void fill() throws IOException {
+        if (mBuffer.hasRemaining()) {
+            return;
+        }
+        int count;
+        do {
+            count = mIn.read(mBuffer.array(), 0, mBuffer.capacity());
+        } while (count == 0);
+        if (count < 0) {
             throw newEOSException();
         }
-        return next;
+        mBuffer.position(0);
+        mBuffer.limit(count);
+    }
+
+    /**
+     * Read what {@link #mIn} has available, without blocking, and tell whether a whole response
+     * is now buffered, so that {@link #readResponse()} can return it without waiting for the
+     * server.  This is how a single thread reads many connections: it calls this method when
+     * one of them can be read, and then reads responses as long as it returns true.
+     *
+     * <p>The buffer grows as needed to hold a response, up to a limit.  A response larger than
+     * that is reported as buffered anyway, and reading it then waits for the rest of it.
+     *
+     * @throws IOException if {@link #mIn} reached its end, or any other network error
+     */
+    public boolean readAvailable() throws IOException {
+        for (;;) {
+            if (isResponseBuffered()) {
+                return true;
+            }
+            final int available = mIn.available();
+            if (available <= 0) {
+                return false;
+            }
+            mBuffer.compact();
+            if (!mBuffer.hasRemaining()) {
+                if (mBuffer.capacity() >= MAX_AVAILABLE_BUFFER_SIZE) {
+                    mBuffer.flip();
+                    return true;
+                }
+                final ByteBuffer larger = ByteBuffer.allocate(mBuffer.capacity() * 2);
+                mBuffer.flip();
+                larger.put(mBuffer);
+                mBuffer = larger;
+            }
+            final int count;
+            try {
+                count = mIn.read(mBuffer.array(), mBuffer.position(),
+                        Math.min(available, mBuffer.remaining()));
+            } finally {
+                mBuffer.flip();
+            }
+            if (count < 0) {
+                throw newEOSException();
+            }
+            mBuffer.limit(mBuffer.limit() + count);
+        }
+    }
+
+    /**
+     * @return whether {@link #mBuffer} holds a whole response, i.e. lines up to one which doesn't
+     * end with a literal, and the literals they announce
+     */
+    private boolean isResponseBuffered() {
+        final byte[] buf = mBuffer.array();
+        final int limit = mBuffer.limit();
+        long pos = mBuffer.position();
+        while (pos < limit) {
+            final int start = (int) pos;
+            int eol = start;
+            while (eol < limit && buf[eol] != '\n') {
+                eol++;
+            }
+            if (eol == limit) {
+                return false;
+            }
+            final long literalLength = getLiteralLengthAtEol(buf, start, eol);
+            if (literalLength < 0) {
+                return true;
+            }
+            pos = eol + 1 + literalLength;
+        }
+        return false;
+    }
+
+    /**
+     * @return the length of the literal announced at the end of the line from {@code start} to
+     * the LF at {@code eol}, e.g. "* 1 FETCH (BODY[] {12}\r\n", or -1 if there's none
+     */
+    private static long getLiteralLengthAtEol(byte[] buf, int start, int eol) {
+        int pos = eol - 1;
+        if (pos >= start && buf[pos] == '\r') {
+            pos--;
+        }
+        if (pos < start || buf[pos] != '}') {
+            return -1;
+        }
+        final int end = pos;
+        pos--;
+        while (pos >= start && '0' <= buf[pos] && buf[pos] <= '9') {
+            pos--;
+        }
+        final int digits = end - pos - 1;
+        if (pos < start || buf[pos] != '{' || digits == 0 || digits > 18) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = pos + 1; i < end; i++) {
+            length = length * 10 + (buf[i] - '0');
+        }
+        return length;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Peek next one byte.
+     *
+     * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
+     * we shouldn't see EOF during parsing.
+     */
+    private int peek() throws IOException {
+        fill();
+        return mBuffer.array()[mBuffer.position()] & 0xff;
+    }
+
+    /**
+     * Read and return one byte from {@link #mBuffer}, and put it in {@link #mDiscourseLogger}.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
-            throw newEOSException();
-        }
+        fill();
+        final int next = mBuffer.get() & 0xff;
         mDiscourseLogger.addReceivedByte(next);
         return next;
     }
 
+    /**
+     * Skip {@code count} bytes of {@link #mBuffer} that have been scanned, and put them in
+     * {@link #mDiscourseLogger}.
+     */
+    private void consume(int count) {
+        final int pos = mBuffer.position();
+        mDiscourseLogger.addReceivedBytes(mBuffer.array(), pos, count);
+        mBuffer.position(pos + count);
+    }
+
+    /** Append {@code length} bytes from {@code b} to {@link #mToken}. */
+    private void appendToken(byte[] b, int offset, int length) {
+        final int newLength = mTokenLength + length;
+        if (newLength > mToken.length) {
+            final byte[] newToken = new byte[Math.max(newLength, mToken.length * 2)];
+            System.arraycopy(mToken, 0, newToken, 0, mTokenLength);
+            mToken = newToken;
+        }
+        System.arraycopy(b, offset, mToken, mTokenLength, length);
+        mTokenLength = newLength;
+    }
+
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
      *
@@ -173,10 +364,22 @@ public class ImapResponseParser {
      * @exception ByeException when detects BYE.
      */
     public ImapResponse readResponse() throws IOException, MessagingException {
+        return readResponse(null);
+    }
+
+    /**
+     * Same as {@link #readResponse()}, except that untagged FETCH responses are not built into
+     * an {@link ImapResponse} when {@code fetchHandler} is not null.  Their items are passed to
+     * {@code fetchHandler} as they are parsed instead, and null is returned.
+     *
+     * @exception ByeException when detects BYE.
+     */
+    public ImapResponse readResponse(ImapFetchHandler fetchHandler)
+            throws IOException, MessagingException {
         ImapResponse response = null;
         try {
-            response = parseResponse();
-            if (DebugUtils.DEBUG) {
+            response = parseResponse(fetchHandler);
+            if (DebugUtils.DEBUG && response != null) {
                 LogUtils.d(Logging.LOG_TAG, getFormattedTag() + "<<< " + response.toString());
             }
 
@@ -197,6 +400,11 @@ public class ImapResponseParser {
             throw e;
         }
 
+        if (response == null) {
+            // Streamed to fetchHandler.
+            return null;
+        }
+
         // Handle this outside of try-catch.  We don't have to dump protocol log when getting BYE.
         if (response.is(0, ImapConstants.BYE)) {
             LogUtils.w(Logging.LOG_TAG, ByeException.MESSAGE);
@@ -244,14 +452,30 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+        mTokenLength = 0;
+        appendTokenUntil(end);
+        return new String(mToken, 0, mTokenLength, ISO_8859_1);
+    }
+
+    /**
+     * Scan {@link #mBuffer} for {@code end}, refilling it as needed, and append everything
+     * before it to {@link #mToken}.  The {@code end} will be consumed but not appended.
+     */
+    private void appendTokenUntil(char end) throws IOException {
         for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
+            fill();
+            final byte[] buf = mBuffer.array();
+            final int start = mBuffer.position();
+            final int limit = mBuffer.limit();
+            for (int pos = start; pos < limit; pos++) {
+                if (buf[pos] == end) {
+                    appendToken(buf, start, pos - start);
+                    consume(pos - start + 1);
+                    return;
+                }
             }
+            appendToken(buf, start, limit - start);
+            consume(limit - start);
         }
     }
 
@@ -273,9 +497,11 @@ public class ImapResponseParser {
     }
 
     /**
-     * Parse and return the response line.
+     * Parse and return the response line, or return null if it was an untagged FETCH response
+     * streamed to {@code fetchHandler}.
      */
-    private ImapResponse parseResponse() throws IOException, MessagingException {
+    private ImapResponse parseResponse(ImapFetchHandler fetchHandler)
+            throws IOException, MessagingException {
         // We need to destroy the response if we get an exception.
         // So, we first store the response that's being built in responseToDestroy, until it's
         // completely built, at which point we copy it into responseToReturn and null out
@@ -323,9 +549,36 @@ public class ImapResponseParser {
                 } else {
                     tag = readUntil(' ');
                 }
-                responseToDestroy = new ImapResponse(tag, false);
+                final ImapString firstString;
+                if (tag == null && fetchHandler != null) {
+                    if (scanAtom() == 0) {
+                        throw new MessagingException("Expected string, none found.");
+                    }
+                    if (tokenIsNumber() && peek() == ' ') {
+                        // "* n FETCH (...)", or some other response data, e.g. "* n EXISTS".
+                        final String messageNumber = tokenToString();
+                        readByte(); // skip ' '
+                        if (scanAtom() > 0 && tokenIs(ImapConstants.FETCH) && peek() == ' ') {
+                            readByte(); // skip ' '
+                            parseFetchItems(messageNumber, fetchHandler);
+                            return null;
+                        }
+                        responseToDestroy = new ImapResponse(null, false);
+                        responseToDestroy.add(new ImapSimpleString(messageNumber));
+                        if (mTokenLength > 0) {
+                            responseToDestroy.add(tokenToImapString());
+                        }
+                        parseElements(responseToDestroy, '\0');
 
-                final ImapString firstString = parseBareString();
+                        responseToReturn = responseToDestroy;
+                        responseToDestroy = null;
+                        return responseToReturn;
+                    }
+                    firstString = tokenToImapString();
+                } else {
+                    firstString = parseBareString();
+                }
+                responseToDestroy = new ImapResponse(tag, false);
                 responseToDestroy.add(firstString);
 
                 // parseBareString won't eat a space after the string, so we need to skip it,
@@ -406,42 +659,100 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        if (scanAtom() == 0) {
+            throw new MessagingException("Expected string, none found.");
+        }
+        return tokenToImapString();
+    }
+
+    /**
+     * Scan an atom, the same way {@link #parseBareString} does, into {@link #mToken} without
+     * creating any object.
+     *
+     * @return the length of the atom, which is 0 if the next char can't start an atom.
+     */
+    private int scanAtom() throws IOException {
+        mTokenLength = 0;
         for (;;) {
-            final int ch = peek();
+            fill();
+            final byte[] buf = mBuffer.array();
+            final int start = mBuffer.position();
+            final int limit = mBuffer.limit();
+            int pos = start;
+            while (pos < limit && !isAtomEnd(buf[pos] & 0xff) && buf[pos] != '[') {
+                pos++;
+            }
+            appendToken(buf, start, pos - start);
+            consume(pos - start);
+            if (pos == limit) {
+                // The atom continues in the next read.
+                continue;
+            }
+            if (buf[pos] == '[') {
+                // Eat all until next ']'
+                appendToken(buf, pos, 1);
+                consume(1);
+                appendTokenUntil(']');
+                appendToken(CLOSING_BRACKET, 0, 1); // appendTokenUntil won't include the end char.
+                continue;
+            }
+            return mTokenLength;
+        }
+    }
 
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
+    /**
+     * @return {@link #mToken} as an {@link ImapString}.  NIL will be always converted into the
+     * empty string.
+     */
+    private ImapString tokenToImapString() {
+        if (tokenIs(ImapConstants.NIL)) {
+            return ImapString.EMPTY;
+        }
+        return new ImapSimpleString(tokenToString());
+    }
 
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
-                }
-                return new ImapSimpleString(s);
-            } else if (ch == '[') {
-                // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
-            } else {
-                mParseBareString.append((char) readByte());
+    private String tokenToString() {
+        return new String(mToken, 0, mTokenLength, ISO_8859_1);
+    }
+
+    /**
+     * @return true if {@link #mToken} equals {@code s}, ignoring the case of ASCII letters.
+     */
+    private boolean tokenIs(String s) {
+        if (mTokenLength != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < mTokenLength; i++) {
+            final int a = mToken[i] & 0xff;
+            final int b = s.charAt(i);
+            if (a != b && toUpperAscii(a) != toUpperAscii(b)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    private static int toUpperAscii(int ch) {
+        return ('a' <= ch && ch <= 'z') ? ch - ('a' - 'A') : ch;
+    }
+
+    /**
+     * @return true if {@code ch} terminates an atom parsed by {@link #parseBareString}.
+     */
+    private static boolean isAtomEnd(int ch) {
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        return ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                // ']' is not part of atom (it's in resp-specials)
+                ch == ']' ||
+                // docs claim that flags are \ atom but atom isn't supposed to
+                // contain
+                // * and some flags contain *
+                // ch == '%' || ch == '*' ||
+                ch == '%' ||
+                // TODO probably should not allow \ and should recognize
+                // it as a flag instead
+                // ch == '"' || ch == '\' ||
+                ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f;
     }
 
     private void parseElements(ImapList list, char end)
@@ -475,7 +786,156 @@ public class ImapResponseParser {
         return list;
     }
 
+    /**
+     * Parse the items of a FETCH response, following "* n FETCH ", and pass them to
+     * {@code fetchHandler}.
+     */
+    private void parseFetchItems(String messageNumber, ImapFetchHandler fetchHandler)
+            throws IOException, MessagingException {
+        if (DebugUtils.DEBUG) {
+            LogUtils.d(Logging.LOG_TAG,
+                    getFormattedTag() + "<<< * " + messageNumber + " FETCH (streamed)");
+        }
+        // Elements passed to fetchHandler.onItem() live until onFetchEnd() returns.
+        final ImapList items = new ImapList();
+        try {
+            fetchHandler.onFetchStart(messageNumber);
+            expect('(');
+            for (;;) {
+                skipSpaces();
+                if (peek() == ')') {
+                    readByte();
+                    break;
+                }
+                if (scanAtom() == 0) {
+                    throw new MessagingException("Expected FETCH item, none found.");
+                }
+                if (tokenIs(ImapConstants.UID)) {
+                    skipSpaces();
+                    scanAtom();
+                    fetchHandler.onUid(tokenToString());
+                } else if (tokenIs(ImapConstants.RFC822_SIZE)) {
+                    skipSpaces();
+                    scanAtom();
+                    fetchHandler.onSize(tokenToNumberOrZero());
+                } else if (tokenIs(ImapConstants.FLAGS)) {
+                    skipSpaces();
+                    parseFetchFlags(fetchHandler);
+                } else {
+                    final boolean internalDate = tokenIs(ImapConstants.INTERNALDATE);
+                    final String key = internalDate ? ImapConstants.INTERNALDATE : tokenToString();
+                    skipSpaces();
+                    final ImapElement value;
+                    if (peek() == '{') {
+                        final FixedLengthInputStream in =
+                                new FixedLengthInputStream(mLiteralIn, parseLiteralLength());
+                        if (fetchHandler.onLiteral(key, in)) {
+                            // Consumed by the handler.  Skip whatever it didn't read.
+                            skipLiteral(in);
+                            continue;
+                        }
+                        value = newLiteral(in);
+                    } else {
+                        value = parseElement();
+                    }
+                    if (value == null) {
+                        throw new MessagingException("Missing value for FETCH item " + key);
+                    }
+                    items.add(value);
+                    if (internalDate && value.isString()) {
+                        fetchHandler.onInternalDate((ImapString) value);
+                    } else {
+                        fetchHandler.onItem(key, value);
+                    }
+                }
+            }
+            // Ignore anything else until EOL
+            mTokenLength = 0;
+            appendTokenUntil('\r');
+            expect('\n');
+            fetchHandler.onFetchEnd();
+        } finally {
+            items.destroy();
+        }
+    }
+
+    /**
+     * Parse a FLAGS list, passing each flag to {@code fetchHandler}.  The well-known flags are
+     * passed as the {@link ImapConstants} instances, so no String gets created for them.
+     */
+    private void parseFetchFlags(ImapFetchHandler fetchHandler)
+            throws IOException, MessagingException {
+        expect('(');
+        for (;;) {
+            skipSpaces();
+            if (peek() == ')') {
+                readByte();
+                return;
+            }
+            if (scanAtom() == 0) {
+                throw new MessagingException("Expected flag, none found.");
+            }
+            fetchHandler.onFlag(tokenToFlag());
+        }
+    }
+
+    private String tokenToFlag() {
+        for (String flag : WELL_KNOWN_FLAGS) {
+            if (tokenIs(flag)) {
+                return flag;
+            }
+        }
+        return tokenToString();
+    }
+
+    /**
+     * @return {@link #mToken} as a number, or 0 if it's not a valid one, in the same way
+     * {@link ImapString#getNumberOrZero()} does.
+     */
+    private int tokenToNumberOrZero() {
+        if (mTokenLength > 9) {
+            // Too long to be sure it fits in an int; leave it to ImapString.
+            return new ImapSimpleString(tokenToString()).getNumberOrZero();
+        }
+        int value = 0;
+        for (int i = 0; i < mTokenLength; i++) {
+            final int digit = mToken[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return true if {@link #mToken} only consists of digits.
+     */
+    private boolean tokenIsNumber() {
+        for (int i = 0; i < mTokenLength; i++) {
+            if (mToken[i] < '0' || mToken[i] > '9') {
+                return false;
+            }
+        }
+        return mTokenLength > 0;
+    }
+
+    private void skipSpaces() throws IOException {
+        while (peek() == ' ') {
+            readByte();
+        }
+    }
+
     private ImapString parseLiteral() throws IOException, MessagingException {
+        return newLiteral(new FixedLengthInputStream(mLiteralIn, parseLiteralLength()));
+    }
+
+    /**
+     * Parse "{size}\r\n", which precedes the content of a literal.
+     *
+     * @return the size of the literal.
+     */
+    private int parseLiteralLength() throws IOException, MessagingException {
         expect('{');
         final int size;
         try {
@@ -488,11 +948,24 @@ public class ImapResponseParser {
         }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
+        return size;
+    }
+
+    private ImapString newLiteral(FixedLengthInputStream in) throws IOException {
+        if (in.getLength() > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
             return new ImapMemoryLiteral(in);
         }
     }
+
+    /**
+     * Read and throw away the rest of the literal {@code in}.
+     */
+    private static void skipLiteral(FixedLengthInputStream in) throws IOException {
+        final byte[] buffer = new byte[1024];
+        while (in.read(buffer, 0, buffer.length) >= 0) {
+            // Just throw it away.
+        }
+    }
 }
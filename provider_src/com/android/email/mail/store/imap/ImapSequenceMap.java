@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.Arrays;
+
+/**
+ * Maps the message sequence numbers of a selected mailbox to the UIDs of its messages, so that
+ * responses which only carry sequence numbers, like EXPUNGE, can be applied without asking the
+ * server.  UIDs are kept in a sorted array of longs, which is also the message sequence order.
+ *
+ * <p>The UIDs of the last messages may be unknown (e.g. they were reported by EXISTS); they are
+ * only counted.
+ */
+public class ImapSequenceMap {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The UIDs of the messages with sequence numbers 1 to {@link #mSize}. */
+    private long[] mUids = new long[INITIAL_CAPACITY];
+    private int mSize;
+    /** The number of messages after {@link #mSize}, whose UIDs are unknown. */
+    private int mUnknownCount;
+
+    /** @return the number of messages whose UIDs are known. */
+    public int size() {
+        return mSize;
+    }
+
+    /** @return the number of messages in the mailbox, including those with an unknown UID. */
+    public int getMessageCount() {
+        return mSize + mUnknownCount;
+    }
+
+    /** @return the UID of the last known message, or null if there is none. */
+    public String getLastUid() {
+        return (mSize == 0) ? null : Long.toString(mUids[mSize - 1]);
+    }
+
+    /**
+     * @return the UID of the message with sequence number {@code msn}, or null if it is unknown.
+     */
+    public String getUid(int msn) {
+        return (msn >= 1 && msn <= mSize) ? Long.toString(mUids[msn - 1]) : null;
+    }
+
+    /**
+     * Adds the UIDs of the messages after the known ones, replacing as many unknown ones.
+     *
+     * @return false if {@code uids} are not all numbers higher than the last known UID, in which
+     * case nothing is added.
+     */
+    public boolean append(String[] uids) {
+        final long[] values = new long[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            if (!ImapUtility.isImapNumber(uids[i])) {
+                return false;
+            }
+            values[i] = Long.parseLong(uids[i]);
+        }
+        Arrays.sort(values);
+        if (values.length > 0 && mSize > 0 && values[0] <= mUids[mSize - 1]) {
+            return false;
+        }
+        if (mSize + values.length > mUids.length) {
+            mUids = Arrays.copyOf(mUids, Math.max(mUids.length * 2, mSize + values.length));
+        }
+        System.arraycopy(values, 0, mUids, mSize, values.length);
+        mSize += values.length;
+        mUnknownCount = Math.max(0, mUnknownCount - values.length);
+        return true;
+    }
+
+    /**
+     * Applies an EXISTS response.
+     *
+     * @return false if it reports fewer messages than expected, i.e. the map is out of date.
+     */
+    public boolean setMessageCount(int count) {
+        if (count < getMessageCount()) {
+            return false;
+        }
+        mUnknownCount = count - mSize;
+        return true;
+    }
+
+    /**
+     * Applies an EXPUNGE response: the message with sequence number {@code msn} was removed, and
+     * the ones after it were renumbered.
+     *
+     * @return the UID of the removed message, or null if it was unknown.
+     * @throws IllegalArgumentException if there is no such message
+     */
+    public String expunge(int msn) {
+        if (msn < 1 || msn > getMessageCount()) {
+            throw new IllegalArgumentException("No message " + msn + " to expunge");
+        }
+        if (msn > mSize) {
+            mUnknownCount--;
+            return null;
+        }
+        final long uid = mUids[msn - 1];
+        System.arraycopy(mUids, msn, mUids, msn - 1, mSize - msn);
+        mSize--;
+        return Long.toString(uid);
+    }
+
+    /**
+     * Applies a VANISHED response (RFC 7162) for a single UID.  A UID higher than the known ones
+     * is taken as one of the messages with an unknown UID, if any.
+     *
+     * @return whether a message with this UID was known, and removed.
+     */
+    public boolean remove(String uid) {
+        if (!ImapUtility.isImapNumber(uid)) {
+            return false;
+        }
+        final long value = Long.parseLong(uid);
+        final int index = Arrays.binarySearch(mUids, 0, mSize, value);
+        if (index < 0) {
+            if (mUnknownCount > 0 && (mSize == 0 || value > mUids[mSize - 1])) {
+                mUnknownCount--;
+            }
+            return false;
+        }
+        System.arraycopy(mUids, index + 1, mUids, index, mSize - index - 1);
+        mSize--;
+        return true;
+    }
+}
@@ -21,10 +21,7 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 
 /**
  * Class represents an IMAP "element" that is not a list.
@@ -55,15 +52,19 @@ public abstract class ImapString extends ImapElement {
         }
     };
 
-    // This is used only for parsing IMAP's FETCH ENVELOPE command, in which
-    // en_US-like date format is used like "01-Jan-2009 11:20:39 -0800", so this should be
-    // handled by Locale.US
-    private final static SimpleDateFormat DATE_TIME_FORMAT =
-            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+    /** Returned by {@link #getDateMillisOrMin()} when the value isn't a date. */
+    public static final long NOT_A_DATE = Long.MIN_VALUE;
+
+    // Month names of IMAP's date-time format, which is always en_US-like, e.g.
+    // "01-Jan-2009 11:20:39 -0800", regardless of the current locale.
+    private static final String[] MONTHS = {
+        "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+    };
 
     private boolean mIsInteger;
     private int mParsedInteger;
-    private Date mParsedDate;
+    private boolean mIsDateParsed;
+    private long mParsedDateMillis = NOT_A_DATE;
 
     @Override
     public final boolean isList() {
@@ -118,32 +119,130 @@ public abstract class ImapString extends ImapElement {
     }
 
     /**
-     * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
+     * @return whether it can be parsed as an IMAP date-time, e.g. "01-Jan-2009 11:20:39 -0800".
      */
     public final boolean isDate() {
-        if (mParsedDate != null) {
-            return true;
+        return getDateMillisOrMin() != NOT_A_DATE;
+    }
+
+    /**
+     * @return value it can be parsed as a {@link Date}, or null otherwise.
+     */
+    public final Date getDateOrNull() {
+        final long millis = getDateMillisOrMin();
+        if (millis == NOT_A_DATE) {
+            return null;
+        }
+        return new Date(millis);
+    }
+
+    /**
+     * @return value parsed as an IMAP date-time in milliseconds since the epoch, or
+     * {@link #NOT_A_DATE} if it can't be parsed.
+     */
+    public final long getDateMillisOrMin() {
+        if (mIsDateParsed) {
+            return mParsedDateMillis;
         }
         if (isEmpty()) {
-            return false;
+            return NOT_A_DATE;
         }
-        try {
-            mParsedDate = DATE_TIME_FORMAT.parse(getString());
-            return true;
-        } catch (ParseException e) {
+        mParsedDateMillis = parseDateTime(getString());
+        mIsDateParsed = true;
+        if (mParsedDateMillis == NOT_A_DATE) {
             LogUtils.w(Logging.LOG_TAG, getString() + " can't be parsed as a date.");
-            return false;
         }
+        return mParsedDateMillis;
     }
 
     /**
-     * @return value it can be parsed as a {@link Date}, or null otherwise.
+     * Parse an IMAP date-time (RFC 3501), i.e. "dd-MMM-yyyy HH:mm:ss Z" in Locale.US.
+     *
+     * <p>The format is fixed, so this simply reads the fields at their positions.  Unlike
+     * SimpleDateFormat, it's thread-safe and doesn't allocate anything.
+     *
+     * @return milliseconds since the epoch, or {@link #NOT_A_DATE} if {@code s} is not a valid
+     * date-time.
      */
-    public final Date getDateOrNull() {
-        if (!isDate()) {
-            return null;
+    /* package for test */ static long parseDateTime(String s) {
+        // The day may be one digit, or padded with a space or a zero.
+        int pos = (s.length() > 0 && s.charAt(0) == ' ') ? 1 : 0;
+        final int dayLength = (s.length() > pos + 1 && s.charAt(pos + 1) == '-') ? 1 : 2;
+        // The rest is "-MMM-yyyy HH:mm:ss +hhmm".
+        if (s.length() != pos + dayLength + 24) {
+            return NOT_A_DATE;
+        }
+        final int day = parseDigits(s, pos, dayLength);
+        pos += dayLength;
+        if (s.charAt(pos) != '-' || s.charAt(pos + 4) != '-') {
+            return NOT_A_DATE;
+        }
+        int month = -1;
+        for (int i = 0; i < MONTHS.length; i++) {
+            if (MONTHS[i].regionMatches(true, 0, s, pos + 1, 3)) {
+                month = i + 1;
+                break;
+            }
+        }
+        pos += 5;
+        final int year = parseDigits(s, pos, 4);
+        pos += 4;
+        if (s.charAt(pos) != ' ' || s.charAt(pos + 3) != ':' || s.charAt(pos + 6) != ':'
+                || s.charAt(pos + 9) != ' ') {
+            return NOT_A_DATE;
+        }
+        final int hour = parseDigits(s, pos + 1, 2);
+        final int minute = parseDigits(s, pos + 4, 2);
+        final int second = parseDigits(s, pos + 7, 2);
+        pos += 10;
+        final char sign = s.charAt(pos);
+        final int zoneHours = parseDigits(s, pos + 1, 2);
+        final int zoneMinutes = parseDigits(s, pos + 3, 2);
+
+        if (day < 1 || day > 31 || month < 0 || year < 0 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60
+                || (sign != '+' && sign != '-') || zoneHours < 0 || zoneMinutes < 0
+                || zoneMinutes > 59) {
+            return NOT_A_DATE;
+        }
+        int zoneOffsetMinutes = zoneHours * 60 + zoneMinutes;
+        if (sign == '-') {
+            zoneOffsetMinutes = -zoneOffsetMinutes;
         }
-        return mParsedDate;
+        final long minutes = (daysFromEpoch(year, month, day) * 24 + hour) * 60 + minute
+                - zoneOffsetMinutes;
+        return (minutes * 60 + second) * 1000;
+    }
+
+    /**
+     * @return the number made of the {@code length} digits at {@code start} in {@code s}, or -1
+     * if any of them is not a digit.
+     */
+    private static int parseDigits(String s, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            final int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of days from 1970-01-01 to the given date of the proleptic Gregorian
+     * calendar.  Days past the end of the month roll over to the next one, as they do with a
+     * lenient SimpleDateFormat.
+     */
+    private static long daysFromEpoch(int year, int month, int day) {
+        // Count from March, so that the leap day is the last day of the year.
+        final long y = (month <= 2) ? year - 1 : year;
+        final long era = y / 400;
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
     }
 
     /**
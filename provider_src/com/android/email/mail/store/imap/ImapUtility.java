@@ -20,6 +20,8 @@ import com.android.emailcommon.Logging;
 import com.android.mail.utils.LogUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Utility methods for use with IMAP.
@@ -123,4 +125,84 @@ public class ImapUtility {
         String[] stringList = new String[list.size()];
         return list.toArray(stringList);
     }
+
+    /**
+     * Build sequence sets per RFC 3501 out of the given values, which is the reverse of
+     * {@link #getImapSequenceValues}.  Numbers are sorted, duplicates are dropped, and runs of
+     * consecutive numbers are merged into ranges, e.g. {"3", "1", "2", "7"} becomes "1:3,7".
+     * Values that are not numbers are passed as-is, after the numbers.
+     *
+     * <p>The values are split into as few sets as possible, each no longer than
+     * {@code maxLength} chars, so that each one can be sent in a separate command without hitting
+     * the server's command line limit.  A single value longer than that gets a set on its own.
+     *
+     * @return the sequence sets, or an empty list if {@code values} is empty.
+     */
+    public static List<String> getImapSequenceSets(String[] values, int maxLength) {
+        final long[] numbers = new long[values.length];
+        int numberCount = 0;
+        final ArrayList<String> others = new ArrayList<String>();
+        for (String value : values) {
+            if (isImapNumber(value)) {
+                numbers[numberCount++] = Long.parseLong(value);
+            } else {
+                others.add(value);
+            }
+        }
+        Arrays.sort(numbers, 0, numberCount);
+
+        final ArrayList<String> sets = new ArrayList<String>();
+        final StringBuilder set = new StringBuilder();
+        int i = 0;
+        while (i < numberCount) {
+            final long first = numbers[i];
+            long last = first;
+            while (++i < numberCount && numbers[i] <= last + 1) {
+                last = numbers[i];
+            }
+            addToSequenceSet(sets, set,
+                    (first == last) ? Long.toString(first) : first + ":" + last, maxLength);
+        }
+        for (String other : others) {
+            addToSequenceSet(sets, set, other, maxLength);
+        }
+        if (set.length() > 0) {
+            sets.add(set.toString());
+        }
+        return sets;
+    }
+
+    /**
+     * Append {@code item} to {@code set}, or first move {@code set} to {@code sets} and start a
+     * new one if it would get longer than {@code maxLength}.
+     */
+    private static void addToSequenceSet(List<String> sets, StringBuilder set, String item,
+            int maxLength) {
+        if (set.length() > 0) {
+            if (set.length() + 1 + item.length() <= maxLength) {
+                set.append(',').append(item);
+                return;
+            }
+            sets.add(set.toString());
+            set.setLength(0);
+        }
+        set.append(item);
+    }
+
+    /**
+     * @return whether {@code s} is an nz-number per RFC 3501 that fits in a long.
+     */
+    public static boolean isImapNumber(String s) {
+        final int length = s.length();
+        if (length == 0 || length > 18 || s.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
 }
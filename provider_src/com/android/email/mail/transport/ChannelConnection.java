@@ -0,0 +1,598 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.os.SystemClock;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The streams of a {@link MailTransport}, over a connected {@link SocketChannel} which is never
+ * put back in blocking mode.
+ *
+ * <p>TLS is done with an {@link SSLEngine}, and COMPRESS=DEFLATE (RFC 4978) with an
+ * {@link Inflater} and a {@link Deflater}, all on buffers.  So what the server sent can also be
+ * decoded without blocking: {@link InputStream#available()} of {@link #getInputStream()} reads
+ * and decodes whatever the channel has, and returns how much of it is ready.  That lets a single
+ * thread select on many connections and read them, see
+ * {@link com.android.email.mail.store.ImapIdleReader}.
+ *
+ * <p>Otherwise the streams block like those of a socket: reads wait until the read timeout, with
+ * a selector of their own.  One thread may write while another one reads, e.g. to send DONE
+ * while an IDLE is read.
+ */
+class ChannelConnection {
+    /** Size of the buffers, unless TLS needs more. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel mChannel;
+    private volatile int mReadTimeout;
+    private SSLEngine mEngine;
+
+    // The fields below are guarded by mReadLock.
+    private final Object mReadLock = new Object();
+    private volatile Selector mReadSelector;
+    /** Bytes read from the channel but not decrypted yet, between position and limit. */
+    private ByteBuffer mNetIn = newEmptyBuffer(BUFFER_SIZE);
+    /** Decrypted bytes not inflated yet; the same buffer as {@link #mNetIn} without TLS. */
+    private ByteBuffer mPlainIn = mNetIn;
+    /** Bytes ready to be read; the same buffer as {@link #mPlainIn} without compression. */
+    private ByteBuffer mAppIn = mPlainIn;
+    private boolean mEndOfStream;
+    private Inflater mInflater;
+    private byte[] mInflaterInput;
+    private final byte[] mOneByte = new byte[1];
+
+    // The fields below are guarded by mWriteLock, which may be taken while holding mReadLock.
+    private final Object mWriteLock = new Object();
+    private volatile Selector mWriteSelector;
+    /** Bytes written to the output stream but not encoded yet, before the position. */
+    private final ByteBuffer mPlainOut = ByteBuffer.allocate(BUFFER_SIZE);
+    /** Encrypted bytes to send, between position and limit. */
+    private ByteBuffer mNetOut;
+    private Deflater mDeflater;
+    private byte[] mDeflaterOutput;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            synchronized (mReadLock) {
+                final int count = read(mOneByte, 0, 1);
+                return count < 0 ? -1 : mOneByte[0] & 0xff;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            synchronized (mReadLock) {
+                final int available = fill(true);
+                if (available < 0) {
+                    return -1;
+                }
+                final int count = Math.min(available, length);
+                mAppIn.get(b, offset, count);
+                return count;
+            }
+        }
+
+        /**
+         * Reads and decodes what the channel has without blocking, and returns the number of
+         * bytes which can then be read right away.
+         *
+         * @throws EOFException if the server closed the connection, and nothing is left to read
+         */
+        @Override
+        public int available() throws IOException {
+            synchronized (mReadLock) {
+                final int available = fill(false);
+                if (available < 0) {
+                    throw new EOFException("End of stream reached");
+                }
+                return available;
+            }
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int oneByte) throws IOException {
+            synchronized (mWriteLock) {
+                if (!mPlainOut.hasRemaining()) {
+                    encodePlainOut(false);
+                }
+                mPlainOut.put((byte) oneByte);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            synchronized (mWriteLock) {
+                while (length > 0) {
+                    if (!mPlainOut.hasRemaining()) {
+                        encodePlainOut(false);
+                    }
+                    final int count = Math.min(length, mPlainOut.remaining());
+                    mPlainOut.put(b, offset, count);
+                    offset += count;
+                    length -= count;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mWriteLock) {
+                encodePlainOut(true);
+            }
+        }
+    };
+
+    /**
+     * @param channel a connected channel, which is put in non-blocking mode
+     */
+    ChannelConnection(SocketChannel channel) throws IOException {
+        mChannel = channel;
+        mChannel.configureBlocking(false);
+    }
+
+    SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * @param timeout how long reads wait for the server, in milliseconds, or 0 to wait forever
+     */
+    void setReadTimeout(int timeout) {
+        mReadTimeout = timeout;
+    }
+
+    boolean isOpen() {
+        return mChannel.isOpen() && mChannel.isConnected();
+    }
+
+    /**
+     * Starts TLS with {@code engine}, and waits for the handshake to be done.  Nothing else may
+     * be read or written in the meantime.
+     */
+    void startTls(SSLEngine engine) throws IOException {
+        synchronized (mReadLock) {
+            synchronized (mWriteLock) {
+                final SSLSession session = engine.getSession();
+                mEngine = engine;
+                mNetIn = grow(mNetIn, session.getPacketBufferSize());
+                mPlainIn = newEmptyBuffer(session.getApplicationBufferSize());
+                if (mInflater == null) {
+                    mAppIn = mPlainIn;
+                }
+                mNetOut = newEmptyBuffer(session.getPacketBufferSize());
+                engine.beginHandshake();
+                handshake();
+            }
+        }
+    }
+
+    /**
+     * Inflates everything read and deflates everything written from now on, with raw DEFLATE
+     * (RFC 1951).  Bytes already read from the channel but not read from the input stream yet
+     * are inflated too.
+     */
+    void startCompression() {
+        synchronized (mReadLock) {
+            mInflater = new Inflater(true);
+            mInflaterInput = new byte[BUFFER_SIZE];
+            mAppIn = newEmptyBuffer(BUFFER_SIZE);
+        }
+        synchronized (mWriteLock) {
+            mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            mDeflaterOutput = new byte[BUFFER_SIZE];
+        }
+    }
+
+    boolean isCompressed() {
+        synchronized (mReadLock) {
+            return mInflater != null;
+        }
+    }
+
+    /** @return the number of bytes inflated, and the number of bytes they came from */
+    long[] getInflaterCounts() {
+        synchronized (mReadLock) {
+            return new long[] { mInflater.getBytesWritten(), mInflater.getBytesRead() };
+        }
+    }
+
+    /** @return the number of bytes deflated, and the number of bytes they were turned into */
+    long[] getDeflaterCounts() {
+        synchronized (mWriteLock) {
+            return new long[] { mDeflater.getBytesRead(), mDeflater.getBytesWritten() };
+        }
+    }
+
+    /**
+     * Closes the channel.  A thread waiting for it in a stream is woken up, and gets an
+     * IOException.
+     */
+    void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // May fail if the connection is already closed.
+        }
+        closeSelector(mReadSelector);
+        closeSelector(mWriteSelector);
+        if (mInflater != null) {
+            mInflater.end();
+        }
+        if (mDeflater != null) {
+            mDeflater.end();
+        }
+    }
+
+    private static void closeSelector(Selector selector) {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    private static ByteBuffer newEmptyBuffer(int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.limit(0);
+        return buffer;
+    }
+
+    /** @return {@code buffer}, or a copy of its remaining bytes with a larger capacity */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(capacity);
+        larger.put(buffer);
+        larger.flip();
+        return larger;
+    }
+
+    /**
+     * Makes sure there's something in {@link #mAppIn}, reading from the channel if needed.
+     *
+     * @param block whether to wait for the server, until the read timeout
+     * @return the number of bytes ready, which is 0 if there's none and {@code block} is false,
+     * or -1 at the end of the stream
+     */
+    private int fill(boolean block) throws IOException {
+        for (;;) {
+            decode();
+            if (mAppIn.hasRemaining()) {
+                return mAppIn.remaining();
+            }
+            if (mEndOfStream) {
+                return -1;
+            }
+            if (!readChannel()) {
+                if (!block) {
+                    return 0;
+                }
+                mReadSelector = await(mReadSelector, SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Reads what the channel has into {@link #mNetIn}, without blocking.
+     *
+     * @return whether anything was read, or the end of the stream was reached
+     */
+    private boolean readChannel() throws IOException {
+        final int count;
+        mNetIn.compact();
+        try {
+            count = mChannel.read(mNetIn);
+        } finally {
+            mNetIn.flip();
+        }
+        if (count < 0) {
+            mEndOfStream = true;
+            return true;
+        }
+        return count > 0;
+    }
+
+    /**
+     * Waits until the channel is ready for {@code ops}, or the read timeout is over.
+     *
+     * @param selector the selector to wait with, or null if it wasn't opened yet
+     * @return the selector waited with
+     */
+    private Selector await(Selector selector, int ops) throws IOException {
+        try {
+            if (selector == null) {
+                selector = Selector.open();
+                mChannel.register(selector, ops);
+            } else {
+                mChannel.keyFor(selector).interestOps(ops);
+            }
+            final int timeout = mReadTimeout;
+            final long start = SystemClock.uptimeMillis();
+            for (;;) {
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = start + timeout - SystemClock.uptimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Timed out waiting for the server");
+                    }
+                }
+                if (selector.select(wait) > 0) {
+                    selector.selectedKeys().clear();
+                    return selector;
+                }
+                if (!mChannel.isOpen()) {
+                    throw new SocketException("Socket closed");
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+            }
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            // close() was called meanwhile
+            throw new SocketException("Socket closed");
+        }
+    }
+
+    /** Decrypts and inflates what was read from the channel, as far as the buffers allow. */
+    private void decode() throws IOException {
+        if (mEngine != null) {
+            unwrap();
+        }
+        if (mInflater != null) {
+            inflate();
+        }
+    }
+
+    private void unwrap() throws IOException {
+        while (mNetIn.hasRemaining()) {
+            final SSLEngineResult result;
+            mPlainIn.compact();
+            try {
+                result = mEngine.unwrap(mNetIn, mPlainIn);
+            } finally {
+                mPlainIn.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // The rest of the record wasn't read yet
+                    mNetIn = grow(mNetIn, mEngine.getSession().getPacketBufferSize());
+                    return;
+                case BUFFER_OVERFLOW:
+                    if (mPlainIn.hasRemaining()) {
+                        // Let it be read first
+                        return;
+                    }
+                    mPlainIn = grow(mPlainIn, mEngine.getSession().getApplicationBufferSize());
+                    if (mInflater == null) {
+                        mAppIn = mPlainIn;
+                    }
+                    break;
+                case CLOSED:
+                    mEndOfStream = true;
+                    return;
+                default:
+                    switch (result.getHandshakeStatus()) {
+                        case NEED_TASK:
+                            runDelegatedTasks();
+                            break;
+                        case NEED_WRAP:
+                            // e.g. to answer a key update
+                            synchronized (mWriteLock) {
+                                wrap(EMPTY);
+                            }
+                            break;
+                        default:
+                            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                                return;
+                            }
+                            break;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void handshake() throws IOException {
+        for (;;) {
+            switch (mEngine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return;
+                default:
+                    // NEED_UNWRAP
+                    unwrap();
+                    if (mEngine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+                        if (mEndOfStream) {
+                            throw new SSLException("Connection closed during handshake");
+                        }
+                        if (!readChannel()) {
+                            mReadSelector = await(mReadSelector, SelectionKey.OP_READ);
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void inflate() throws IOException {
+        if (mAppIn.hasRemaining()) {
+            return;
+        }
+        mAppIn.clear();
+        try {
+            for (;;) {
+                if (mInflater.needsInput()) {
+                    if (!mPlainIn.hasRemaining()) {
+                        break;
+                    }
+                    // The inflater keeps using its input, so give it a copy
+                    final int count = Math.min(mPlainIn.remaining(), mInflaterInput.length);
+                    mPlainIn.get(mInflaterInput, 0, count);
+                    mInflater.setInput(mInflaterInput, 0, count);
+                }
+                final int count = mInflater.inflate(mAppIn.array(), mAppIn.position(),
+                        mAppIn.remaining());
+                mAppIn.position(mAppIn.position() + count);
+                if (!mAppIn.hasRemaining() || mInflater.finished()
+                        || (count == 0 && !mInflater.needsInput())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            mAppIn.flip();
+        }
+    }
+
+    /**
+     * Deflates and encrypts the bytes of {@link #mPlainOut}, and sends them.
+     *
+     * @param flush whether the server must get everything written so far, rather than only
+     * what the deflater can already tell
+     */
+    private void encodePlainOut(boolean flush) throws IOException {
+        mPlainOut.flip();
+        try {
+            if (mDeflater != null) {
+                deflate(flush);
+            } else if (mPlainOut.hasRemaining()) {
+                encode(mPlainOut);
+            }
+        } finally {
+            mPlainOut.clear();
+        }
+    }
+
+    private void deflate(boolean flush) throws IOException {
+        mDeflater.setInput(mPlainOut.array(), 0, mPlainOut.limit());
+        for (;;) {
+            final int count = mDeflater.deflate(mDeflaterOutput, 0, mDeflaterOutput.length,
+                    flush ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+            if (count > 0) {
+                encode(ByteBuffer.wrap(mDeflaterOutput, 0, count));
+            }
+            if (flush ? count < mDeflaterOutput.length : mDeflater.needsInput()) {
+                return;
+            }
+        }
+    }
+
+    private void encode(ByteBuffer src) throws IOException {
+        if (mEngine != null) {
+            wrap(src);
+        } else {
+            send(src);
+        }
+    }
+
+    private void wrap(ByteBuffer src) throws IOException {
+        for (;;) {
+            final SSLEngineResult result;
+            mNetOut.clear();
+            try {
+                result = mEngine.wrap(src, mNetOut);
+            } finally {
+                mNetOut.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    mNetOut = newEmptyBuffer(Math.max(mNetOut.capacity() * 2,
+                            mEngine.getSession().getPacketBufferSize()));
+                    continue;
+                case CLOSED:
+                    throw new SSLException("Connection closed");
+                default:
+                    break;
+            }
+            send(mNetOut);
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            }
+            if (!src.hasRemaining()) {
+                return;
+            }
+        }
+    }
+
+    private void send(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (mChannel.write(src) == 0) {
+                mWriteSelector = await(mWriteSelector, SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
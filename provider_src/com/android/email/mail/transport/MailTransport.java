@@ -27,24 +27,28 @@ import com.android.emailcommon.utility.SSLUtils;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.utils.LogUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocket;
 
+/**
+ * A connection to a mail server.  It is made over a {@link SocketChannel}, see
+ * {@link ChannelConnection}, so that it can also be read without blocking, with
+ * {@link #getChannel()} and {@link InputStream#available()}.
+ */
 public class MailTransport {
 
     // TODO protected eventually
@@ -59,9 +63,8 @@ public class MailTransport {
     private final Context mContext;
     protected final HostAuth mHostAuth;
 
-    private Socket mSocket;
-    private InputStream mIn;
-    private OutputStream mOut;
+    private SocketChannel mChannel;
+    private ChannelConnection mConnection;
 
     public MailTransport(Context context, String debugLabel, HostAuth hostAuth) {
         super();
@@ -116,30 +119,15 @@ public class MailTransport {
 
         try {
             SocketAddress socketAddress = new InetSocketAddress(getHost(), getPort());
+            mChannel = SocketChannel.open();
+            mChannel.socket().connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
+            mConnection = new ChannelConnection(mChannel);
+            mConnection.setReadTimeout(SOCKET_READ_TIMEOUT);
             if (canTrySslSecurity()) {
-                mSocket = SSLUtils.getSSLSocketFactory(
-                        mContext, mHostAuth, null, canTrustAllCertificates()).createSocket();
-            } else {
-                mSocket = new Socket();
-            }
-            mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
-            // After the socket connects to an SSL server, confirm that the hostname is as expected
-            if (canTrySslSecurity() && !canTrustAllCertificates()) {
-                verifyHostname(mSocket, getHost());
+                startTls();
             }
             Analytics.getInstance().sendEvent("socket_certificates",
                     "open", Boolean.toString(canTrustAllCertificates()), 0);
-            if (mSocket instanceof SSLSocket) {
-                final SSLSocket sslSocket = (SSLSocket) mSocket;
-                if (sslSocket.getSession() != null) {
-                    Analytics.getInstance().sendEvent("cipher_suite",
-                            sslSocket.getSession().getProtocol(),
-                            sslSocket.getSession().getCipherSuite(), 0);
-                }
-            }
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
-            mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e.toString());
@@ -159,30 +147,13 @@ public class MailTransport {
     }
 
     /**
-     * Attempts to reopen a TLS connection using the Uri supplied for connection parameters.
-     *
-     * NOTE: No explicit hostname verification is required here, because it's handled automatically
-     * by the call to createSocket().
-     *
-     * TODO should we explicitly close the old socket?  This seems funky to abandon it.
+     * Starts TLS on the open connection, e.g. after STARTTLS.
      */
     public void reopenTls() throws MessagingException {
         try {
-            mSocket = SSLUtils.getSSLSocketFactory(mContext, mHostAuth, null,
-                    canTrustAllCertificates())
-                    .createSocket(mSocket, getHost(), getPort(), true);
-            mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
-
+            startTls();
             Analytics.getInstance().sendEvent("socket_certificates",
                     "reopenTls", Boolean.toString(canTrustAllCertificates()), 0);
-            final SSLSocket sslSocket = (SSLSocket) mSocket;
-            if (sslSocket.getSession() != null) {
-                Analytics.getInstance().sendEvent("cipher_suite",
-                        sslSocket.getSession().getProtocol(),
-                        sslSocket.getSession().getCipherSuite(), 0);
-            }
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e.toString());
@@ -196,12 +167,59 @@ public class MailTransport {
         }
     }
 
+    /**
+     * Does the TLS handshake, and then confirms that the hostname is as expected.
+     */
+    private void startTls() throws IOException {
+        final SSLEngine engine = SSLUtils.createSSLEngine(mContext, mHostAuth, null,
+                canTrustAllCertificates(), getHost(), getPort());
+        mConnection.startTls(engine);
+        final SSLSession session = engine.getSession();
+        if (!canTrustAllCertificates()) {
+            verifyHostname(session, getHost());
+        }
+        Analytics.getInstance().sendEvent("cipher_suite",
+                session.getProtocol(), session.getCipherSuite(), 0);
+    }
+
+    /**
+     * Compresses everything sent and received from now on with raw DEFLATE (RFC 1951), as
+     * used by the IMAP COMPRESS extension (RFC 4978).  Must be called right after the server
+     * accepted to compress, before anything else is read or written.
+     *
+     * <p>The deflater is sync-flushed by {@link #flush}, so that each command reaches the
+     * server as soon as it's written, e.g. "DONE" to end an IDLE.  Bytes already read from the
+     * socket but not consumed yet are inflated too.
+     */
+    public void startCompression() {
+        mConnection.startCompression();
+    }
+
+    public boolean isCompressed() {
+        return mConnection != null && mConnection.isCompressed();
+    }
+
+    /**
+     * Logs how much was read and written since compression started, before and after
+     * compression.  Does nothing if the connection isn't compressed.
+     */
+    public void logCompressionStats() {
+        if (!isCompressed()) {
+            return;
+        }
+        final long[] inflated = mConnection.getInflaterCounts();
+        final long[] deflated = mConnection.getDeflaterCounts();
+        LogUtils.d(Logging.LOG_TAG, "%sCompression: read %d bytes (%d inflated), "
+                + "wrote %d bytes (%d deflated)", getFormattedDebugTag(),
+                inflated[1], inflated[0], deflated[1], deflated[0]);
+    }
+
     public int getReadTimeout() throws IOException {
-        return mSocket.getSoTimeout();
+        return mConnection.getReadTimeout();
     }
 
     public void setReadTimeout(int timeout) throws IOException {
-        mSocket.setSoTimeout(timeout);
+        mConnection.setReadTimeout(timeout);
     }
 
     /**
@@ -209,29 +227,17 @@ public class MailTransport {
      * service but is not in the public API.
      *
      * Verify the hostname of the certificate used by the other end of a
-     * connected socket.  You MUST call this if you did not supply a hostname
-     * to SSLCertificateSocketFactory.createSocket().  It is harmless to call this method
-     * redundantly if the hostname has already been verified.
+     * connection, once the TLS handshake is done.
      *
      * <p>Wildcard certificates are allowed to verify any matching hostname,
      * so "foo.bar.example.com" is verified if the peer has a certificate
      * for "*.example.com".
      *
-     * @param socket An SSL socket which has been connected to a server
+     * @param session The session of the handshake with the server
      * @param hostname The expected hostname of the remote server
-     * @throws IOException if something goes wrong handshaking with the server
      * @throws SSLPeerUnverifiedException if the server cannot prove its identity
       */
-    private static void verifyHostname(Socket socket, String hostname) throws IOException {
-        // The code at the start of OpenSSLSocketImpl.startHandshake()
-        // ensures that the call is idempotent, so we can safely call it.
-        SSLSocket ssl = (SSLSocket) socket;
-        ssl.startHandshake();
-
-        SSLSession session = ssl.getSession();
-        if (session == null) {
-            throw new SSLException("Cannot verify SSL socket without session");
-        }
+    private static void verifyHostname(SSLSession session, String hostname) throws IOException {
         // TODO: Instead of reporting the name of the server we think we're connecting to,
         // we should be reporting the bad name in the certificate.  Unfortunately this is buried
         // in the verifier code and is not available in the verifier API, and extracting the
@@ -248,7 +254,7 @@ public class MailTransport {
      * @throws SocketException
      */
     public int getSoTimeout() throws SocketException {
-        return mSocket.getSoTimeout();
+        return mConnection.getReadTimeout();
     }
 
     /**
@@ -257,44 +263,43 @@ public class MailTransport {
      *            {@code 0} for an infinite timeout.
      */
     public void setSoTimeout(int timeoutMilliseconds) throws SocketException {
-        mSocket.setSoTimeout(timeoutMilliseconds);
+        mConnection.setReadTimeout(timeoutMilliseconds);
     }
 
     public boolean isOpen() {
-        return (mIn != null && mOut != null &&
-                mSocket != null && mSocket.isConnected() && !mSocket.isClosed());
+        return mConnection != null && mConnection.isOpen();
+    }
+
+    /**
+     * @return the channel of the open connection, which a selector may watch for reading
+     */
+    public SelectableChannel getChannel() {
+        return mChannel;
     }
 
     /**
      * Close the connection.  MUST NOT return any exceptions - must be "best effort" and safe.
      */
     public void close() {
-        try {
-            mIn.close();
-        } catch (Exception e) {
-            // May fail if the connection is already closed.
-        }
-        try {
-            mOut.close();
-        } catch (Exception e) {
-            // May fail if the connection is already closed.
-        }
-        try {
-            mSocket.close();
-        } catch (Exception e) {
-            // May fail if the connection is already closed.
+        if (mConnection != null) {
+            mConnection.close();
+        } else if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (Exception e) {
+                // May fail if the connection is already closed.
+            }
         }
-        mIn = null;
-        mOut = null;
-        mSocket = null;
+        mChannel = null;
+        mConnection = null;
     }
 
     public InputStream getInputStream() {
-        return mIn;
+        return mConnection != null ? mConnection.getInputStream() : null;
     }
 
     public OutputStream getOutputStream() {
-        return mOut;
+        return mConnection != null ? mConnection.getOutputStream() : null;
     }
 
     private String getFormattedDebugTag() {
@@ -308,6 +313,15 @@ public class MailTransport {
      * Writes a single line to the server using \r\n termination.
      */
     public void writeLine(String s, String sensitiveReplacement) throws IOException {
+        writeLineWithoutFlush(s, sensitiveReplacement);
+        flush();
+    }
+
+    /**
+     * Writes a single line using \r\n termination, but leaves it in the output buffer until
+     * {@link #flush} is called.  Used to send several commands in a single packet.
+     */
+    public void writeLineWithoutFlush(String s, String sensitiveReplacement) throws IOException {
         if (DebugUtils.DEBUG) {
             String output = sensitiveReplacement != null && !Logging.DEBUG_SENSITIVE
                     ? sensitiveReplacement : s;
@@ -318,7 +332,13 @@ public class MailTransport {
         out.write(s.getBytes());
         out.write('\r');
         out.write('\n');
-        out.flush();
+    }
+
+    /**
+     * Sends everything written so far to the server.
+     */
+    public void flush() throws IOException {
+        getOutputStream().flush();
     }
 
     /**
@@ -350,7 +370,7 @@ public class MailTransport {
 
     public InetAddress getLocalAddress() {
         if (isOpen()) {
-            return mSocket.getLocalAddress();
+            return mChannel.socket().getLocalAddress();
         } else {
             return null;
         }
@@ -356,6 +356,16 @@ public class EmailProvider extends ContentProvider
 
     private static final String SYNC_STATUS_CALLBACK_METHOD = "sync_status";
 
+    /**
+     * Method of {@link #call} deleting the messages the server doesn't have anymore, see
+     * {@link #deleteSyncedMessages}.  Their ids are in the {@link #MESSAGE_IDS_EXTRA} extra.
+     */
+    public static final String DELETE_SYNCED_MESSAGES_METHOD = "delete_synced_messages";
+    public static final String MESSAGE_IDS_EXTRA = "message_ids";
+
+    // The maximum number of messages deleted by a single statement
+    private static final int MAX_MESSAGES_PER_DELETE = 500;
+
     private static final String[] MIME_TYPE_PROJECTION = new String[]{AttachmentColumns.MIME_TYPE};
 
     private static final String[] CACHED_FILE_QUERY_PROJECTION = new String[]
@@ -1919,6 +1929,39 @@ public class EmailProvider extends ContentProvider
         return false;
     }
 
+    /**
+     * Forget the IMAP sync state of the mailboxes whose sync window changed, so that their next
+     * sync looks at the whole new window rather than only at what changed since the last one.
+     * @param context A {@link Context}.
+     * @param db The {@link SQLiteDatabase}.
+     * @param accountId The id of the account.
+     * @param mailboxId The id of the mailbox whose window changed, or null for all the mailboxes
+     *                  of the account.
+     */
+    private static void resetImapSyncKeys(final Context context, final SQLiteDatabase db,
+            final String accountId, final String mailboxId) {
+        final Cursor c = db.rawQuery(GET_ACCOUNT_DETAILS, new String[] {accountId});
+        if (c == null) {
+            return;
+        }
+        try {
+            if (!c.moveToFirst() || !context.getString(R.string.protocol_legacy_imap)
+                    .equals(c.getString(INDEX_PROTOCOL))) {
+                return;
+            }
+        } finally {
+            c.close();
+        }
+        final ContentValues cv = new ContentValues(1);
+        cv.putNull(MailboxColumns.SYNC_KEY);
+        if (mailboxId != null) {
+            db.update(Mailbox.TABLE_NAME, cv, WHERE_ID, new String[] {mailboxId});
+        } else {
+            db.update(Mailbox.TABLE_NAME, cv, MailboxColumns.ACCOUNT_KEY + "=?",
+                    new String[] {accountId});
+        }
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
         LogUtils.d(TAG, "Update: " + uri);
@@ -2123,12 +2166,18 @@ public class EmailProvider extends ContentProvider
                     } else if (match == MAILBOX_ID) {
                         final long accountId = Mailbox.getAccountIdForMailbox(context, id);
                         notifyUIFolder(id, accountId);
+                        if (values.containsKey(MailboxColumns.SYNC_LOOKBACK)) {
+                            resetImapSyncKeys(context, db, Long.toString(accountId), id);
+                        }
                         restartPushForMailbox(context, db, values, Long.toString(accountId));
                     } else if (match == ACCOUNT_ID) {
                         updateAccountSyncInterval(Long.parseLong(id), values);
                         // Notify individual account and "all accounts"
                         notifyUI(UIPROVIDER_ACCOUNT_NOTIFIER, id);
                         notifyUI(UIPROVIDER_ALL_ACCOUNTS_NOTIFIER, null);
+                        if (values.containsKey(AccountColumns.SYNC_LOOKBACK)) {
+                            resetImapSyncKeys(context, db, id, null);
+                        }
                         restartPushForAccount(context, db, values, id);
                     }
                     break;
@@ -2322,6 +2371,10 @@ public class EmailProvider extends ContentProvider
             fixParentKeys(getDatabase(getContext()));
             return null;
         }
+        if (TextUtils.equals(method, DELETE_SYNCED_MESSAGES_METHOD)) {
+            deleteSyncedMessages(extras.getLongArray(MESSAGE_IDS_EXTRA));
+            return null;
+        }
 
         // Handle send & save.
         final Uri accountUri = Uri.parse(arg);
@@ -2351,6 +2404,96 @@ public class EmailProvider extends ContentProvider
         return result;
     }
 
+    /**
+     * Deletes messages which the server doesn't have anymore, along with their updated and
+     * deleted rows, bodies and attachments, in a single transaction.  Unlike deleting each message
+     * by its URI, this doesn't cost a few statements and notifications per message, and the body
+     * and attachment files are removed in the background.
+     *
+     * @param messageIds the ids of the messages to delete
+     */
+    private void deleteSyncedMessages(final long[] messageIds) {
+        if (messageIds == null || messageIds.length == 0) {
+            return;
+        }
+        final Context context = getContext();
+        final SQLiteDatabase db = getDatabase(context);
+        final ArrayList<File> attachmentFiles = new ArrayList<File>();
+        final HashSet<Long> mailboxIds = new HashSet<Long>();
+        db.beginTransaction();
+        try {
+            for (int start = 0; start < messageIds.length; start += MAX_MESSAGES_PER_DELETE) {
+                final int end = Math.min(start + MAX_MESSAGES_PER_DELETE, messageIds.length);
+                // The ids are numbers, so they can go in the statement itself
+                final StringBuilder ids = new StringBuilder(" IN (");
+                for (int i = start; i < end; i++) {
+                    if (i > start) {
+                        ids.append(',');
+                    }
+                    ids.append(messageIds[i]);
+                }
+                final String inIds = ids.append(')').toString();
+
+                Cursor c = db.query(Message.TABLE_NAME,
+                        new String[] { MessageColumns.MAILBOX_KEY }, BaseColumns._ID + inIds,
+                        null, MessageColumns.MAILBOX_KEY, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        mailboxIds.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                // Find the attachment files before their rows are deleted by the trigger
+                c = db.query(Attachment.TABLE_NAME,
+                        new String[] { BaseColumns._ID, AttachmentColumns.ACCOUNT_KEY },
+                        AttachmentColumns.MESSAGE_KEY + inIds, null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        attachmentFiles.add(AttachmentUtilities.getAttachmentFilename(context,
+                                c.getLong(1), c.getLong(0)));
+                    }
+                } finally {
+                    c.close();
+                }
+
+                db.delete(Message.UPDATED_TABLE_NAME, BaseColumns._ID + inIds, null);
+                db.delete(Message.DELETED_TABLE_NAME, BaseColumns._ID + inIds, null);
+                db.delete(Message.TABLE_NAME, BaseColumns._ID + inIds, null);
+                db.delete(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY + inIds, null);
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            checkDatabases();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                for (final File attachmentFile : attachmentFiles) {
+                    // Best-effort only, like AttachmentUtilities.deleteAllAttachmentFiles()
+                    attachmentFile.delete();
+                }
+                for (final long messageId : messageIds) {
+                    try {
+                        deleteBodyFiles(context, messageId);
+                    } catch (final IllegalStateException e) {
+                        LogUtils.v(LogUtils.TAG, e, "Exception while deleting bodies");
+                    }
+                }
+            }
+        });
+
+        for (final long mailboxId : mailboxIds) {
+            notifyUIConversationMailbox(mailboxId);
+        }
+        sendNotifierChange(Message.NOTIFIER_URI, NOTIFICATION_OP_DELETE, null);
+        notifyUI(EmailContent.CONTENT_URI, null);
+    }
+
     private static void deleteBodyFiles(final Context c, final long messageId)
             throws IllegalStateException {
         final ContentValues emptyValues = new ContentValues(2);
@@ -17,12 +17,18 @@
 package com.android.email.provider;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 
 import com.android.email.LegacyConversions;
 import com.android.emailcommon.Logging;
@@ -33,6 +39,9 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
@@ -45,8 +54,21 @@ import org.apache.commons.io.IOUtils;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 public class Utilities {
+    /**
+     * The most messages copied by a single batch, below the limit of SQLite on the number of
+     * arguments of the queries for their local copies.
+     */
+    private static final int MAX_MESSAGES_PER_BATCH = 100;
+
+    private static final String[] BODY_MESSAGE_KEY_PROJECTION = {
+            BodyColumns._ID, BodyColumns.MESSAGE_KEY
+    };
+
     /**
      * Copy one downloaded message (which may have partially-loaded sections)
      * into a newly created EmailProvider Message, given the account and mailbox
@@ -197,6 +219,347 @@ public class Utilities {
         }
     }
 
+    /**
+     * A downloaded message being copied by a batch, and the operations of the batch which save it.
+     */
+    private static class BatchedMessage {
+        private final Message mMessage;
+        private final EmailContent.Message mLocalMessage;
+        /** The operation which saves the message, whose result is its id if it is new. */
+        private int mMessageOperation;
+        /** The operation which saves each attachment, or -1 if it is saved already. */
+        private final ArrayList<Integer> mAttachmentOperations = new ArrayList<Integer>();
+        /** The part of each attachment, or null if it has none. */
+        private final ArrayList<Part> mAttachmentParts = new ArrayList<Part>();
+        private final ArrayList<InputStream> mBodyInputStreams = new ArrayList<InputStream>();
+
+        private BatchedMessage(Message message, EmailContent.Message localMessage) {
+            mMessage = message;
+            mLocalMessage = localMessage;
+        }
+    }
+
+    /**
+     * Same as {@link #copyOneMessageToProvider(Context, Message, Account, Mailbox, int)} for
+     * several messages, which are copied by batches: each one is written in a single
+     * transaction, with one notification of the changes, and the new messages are linked to
+     * their bodies and attachments with back references.  Attachments whose content was
+     * downloaded are written to their files after the batch, since the files are named by id.
+     *
+     * <p>If a batch fails, its messages are copied one by one.
+     */
+    public static void copyMessagesToProvider(Context context, List<? extends Message> messages,
+            Account account, Mailbox folder, int loadStatus) {
+        for (int start = 0; start < messages.size(); start += MAX_MESSAGES_PER_BATCH) {
+            copyMessageBatchToProvider(context, messages.subList(start,
+                    Math.min(start + MAX_MESSAGES_PER_BATCH, messages.size())),
+                    account, folder, loadStatus);
+        }
+    }
+
+    private static void copyMessageBatchToProvider(Context context,
+            List<? extends Message> messages, Account account, Mailbox folder, int loadStatus) {
+        final ContentResolver resolver = context.getContentResolver();
+
+        // Look up the local copies of the messages, their bodies and attachments at once
+        final String[] selectionArgs = new String[messages.size() + 2];
+        selectionArgs[0] = String.valueOf(account.mId);
+        selectionArgs[1] = String.valueOf(folder.mId);
+        for (int i = 0; i < messages.size(); i++) {
+            selectionArgs[i + 2] = messages.get(i).getUid();
+        }
+        final HashMap<String, EmailContent.Message> localMessages =
+                new HashMap<String, EmailContent.Message>();
+        Cursor c = resolver.query(EmailContent.Message.CONTENT_URI,
+                EmailContent.Message.CONTENT_PROJECTION,
+                MessageColumns.ACCOUNT_KEY + "=? AND " + MessageColumns.MAILBOX_KEY + "=? AND "
+                        + makeInSelection(SyncColumns.SERVER_ID, messages.size()),
+                selectionArgs, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                final EmailContent.Message localMessage =
+                        EmailContent.getContent(context, c, EmailContent.Message.class);
+                localMessages.put(localMessage.mServerId, localMessage);
+            }
+        } finally {
+            c.close();
+        }
+
+        final HashMap<Long, Long> bodyIds = new HashMap<Long, Long>();
+        final HashMap<Long, ArrayList<Attachment>> dbAttachments =
+                new HashMap<Long, ArrayList<Attachment>>();
+        if (!localMessages.isEmpty()) {
+            final String[] messageIds = new String[localMessages.size()];
+            int i = 0;
+            for (EmailContent.Message localMessage : localMessages.values()) {
+                messageIds[i++] = String.valueOf(localMessage.mId);
+            }
+            c = resolver.query(Body.CONTENT_URI, BODY_MESSAGE_KEY_PROJECTION,
+                    makeInSelection(BodyColumns.MESSAGE_KEY, messageIds.length), messageIds, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        bodyIds.put(c.getLong(1), c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            c = resolver.query(Attachment.CONTENT_URI, Attachment.CONTENT_PROJECTION,
+                    makeInSelection(AttachmentColumns.MESSAGE_KEY, messageIds.length),
+                    messageIds, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        final Attachment attachment = new Attachment();
+                        attachment.restore(c);
+                        ArrayList<Attachment> attachments =
+                                dbAttachments.get(attachment.mMessageKey);
+                        if (attachments == null) {
+                            attachments = new ArrayList<Attachment>();
+                            dbAttachments.put(attachment.mMessageKey, attachments);
+                        }
+                        attachments.add(attachment);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        }
+
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        final ArrayList<BatchedMessage> batchedMessages = new ArrayList<BatchedMessage>();
+        try {
+            for (Message message : messages) {
+                EmailContent.Message localMessage = localMessages.get(message.getUid());
+                if (localMessage == null) {
+                    localMessage = new EmailContent.Message();
+                }
+                localMessage.mMailboxKey = folder.mId;
+                localMessage.mAccountKey = account.mId;
+                final BatchedMessage batchedMessage = new BatchedMessage(message, localMessage);
+                try {
+                    ops.addAll(makeCopyOps(batchedMessage, loadStatus, ops.size(),
+                            bodyIds.get(localMessage.mId), dbAttachments.get(localMessage.mId)));
+                    batchedMessages.add(batchedMessage);
+                } catch (MessagingException me) {
+                    LogUtils.e(Logging.LOG_TAG, "Error while copying downloaded message." + me);
+                    closeQuietly(batchedMessage.mBodyInputStreams);
+                } catch (RuntimeException rte) {
+                    LogUtils.e(Logging.LOG_TAG, "Error while storing downloaded message."
+                            + rte.toString());
+                    closeQuietly(batchedMessage.mBodyInputStreams);
+                }
+            }
+            if (ops.isEmpty()) {
+                return;
+            }
+
+            ContentProviderResult[] results = null;
+            try {
+                results = resolver.applyBatch(EmailContent.AUTHORITY, ops);
+            } catch (RemoteException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Error while storing downloaded messages.");
+            } catch (OperationApplicationException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Error while storing downloaded messages.");
+            }
+            if (results == null) {
+                for (BatchedMessage batchedMessage : batchedMessages) {
+                    copyOneMessageToProvider(context, batchedMessage.mMessage, account, folder,
+                            loadStatus);
+                }
+                return;
+            }
+
+            // Now that the ids are known, write the downloaded attachments
+            for (BatchedMessage batchedMessage : batchedMessages) {
+                final EmailContent.Message localMessage = batchedMessage.mLocalMessage;
+                if (!localMessage.isSaved()) {
+                    localMessage.mId =
+                            ContentUris.parseId(results[batchedMessage.mMessageOperation].uri);
+                }
+                if (localMessage.mAttachments == null) {
+                    continue;
+                }
+                for (int i = 0; i < localMessage.mAttachments.size(); i++) {
+                    final Attachment attachment = localMessage.mAttachments.get(i);
+                    final int operation = batchedMessage.mAttachmentOperations.get(i);
+                    if (operation >= 0) {
+                        attachment.mId = ContentUris.parseId(results[operation].uri);
+                    }
+                    attachment.mMessageKey = localMessage.mId;
+                    final Part part = batchedMessage.mAttachmentParts.get(i);
+                    if (part == null) {
+                        continue;
+                    }
+                    try {
+                        LegacyConversions.saveAttachmentBody(context, part, attachment,
+                                account.mId);
+                    } catch (MessagingException me) {
+                        LogUtils.e(Logging.LOG_TAG, "Error while copying downloaded message."
+                                + me);
+                    } catch (IOException ioe) {
+                        LogUtils.e(Logging.LOG_TAG, "Error while storing attachment."
+                                + ioe.toString());
+                    }
+                }
+            }
+        } finally {
+            // Close any parts that may still be open
+            for (BatchedMessage batchedMessage : batchedMessages) {
+                closeQuietly(batchedMessage.mBodyInputStreams);
+            }
+        }
+    }
+
+    private static void closeQuietly(List<InputStream> streams) {
+        for (final InputStream is : streams) {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Build the operations which save a downloaded message, its body and its attachments, like
+     * {@link #copyOneMessageToProvider(Context, Message, EmailContent.Message, int)} does.
+     *
+     * @param firstOperation the index in the batch of the first operation returned
+     * @param bodyId the id of the body of the message, or null if it has none yet
+     * @param dbAttachments the attachments of the message in the database, or null if none
+     */
+    private static ArrayList<ContentProviderOperation> makeCopyOps(
+            BatchedMessage batchedMessage, int loadStatus, int firstOperation, Long bodyId,
+            List<Attachment> dbAttachments) throws MessagingException {
+        final Message message = batchedMessage.mMessage;
+        final EmailContent.Message localMessage = batchedMessage.mLocalMessage;
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+
+        // Copy the fields that are available into the message object
+        LegacyConversions.updateMessageFields(localMessage, message,
+                localMessage.mAccountKey, localMessage.mMailboxKey);
+
+        // Now process body parts & attachments
+        ArrayList<Part> viewables = new ArrayList<Part>();
+        ArrayList<Part> attachments = new ArrayList<Part>();
+        MimeUtility.collectParts(message, viewables, attachments);
+
+        // Don't close the viewables attachment InputStream until the batch is done
+        final ConversionUtilities.BodyFieldData data = ConversionUtilities.parseBodyFields(
+                viewables, batchedMessage.mBodyInputStreams);
+
+        // set body and local message values
+        localMessage.setFlags(data.isQuotedReply, data.isQuotedForward);
+        localMessage.mSnippet = data.snippet;
+
+        if (loadStatus != EmailContent.Message.FLAG_LOADED_PARTIAL
+                && loadStatus != EmailContent.Message.FLAG_LOADED_UNKNOWN) {
+            LegacyConversions.makeAttachments(localMessage, attachments, viewables,
+                    dbAttachments != null ? dbAttachments : Collections.<Attachment>emptyList(),
+                    batchedMessage.mAttachmentParts);
+        } else {
+            // A placeholder for the rest of the message, see copyOneMessageToProvider
+            final Attachment att = new Attachment();
+            att.mFileName = "";
+            att.mSize = message.getSize();
+            att.mMimeType = "text/plain";
+            att.mAccountKey = localMessage.mAccountKey;
+            att.mFlags = Attachment.FLAG_DUMMY_ATTACHMENT;
+            localMessage.mAttachments = new ArrayList<Attachment>();
+            localMessage.mAttachments.add(att);
+            localMessage.mFlagAttachment = true;
+            batchedMessage.mAttachmentParts.add(null);
+        }
+        localMessage.mFlagLoaded = loadStatus;
+
+        // The message
+        final boolean isNew = !localMessage.isSaved();
+        batchedMessage.mMessageOperation = firstOperation;
+        if (isNew) {
+            ops.add(ContentProviderOperation.newInsert(EmailContent.Message.CONTENT_URI)
+                    .withValues(localMessage.toContentValues())
+                    .build());
+        } else {
+            ops.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                    EmailContent.Message.CONTENT_URI, localMessage.mId))
+                    .withValues(localMessage.toContentValues())
+                    .build());
+        }
+
+        // Its body
+        if (bodyId != null) {
+            ops.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Body.CONTENT_URI, bodyId))
+                    .withValue(BodyColumns.TEXT_CONTENT, data.textContent)
+                    .withValue(BodyColumns.HTML_CONTENT, data.htmlContent)
+                    .build());
+        } else {
+            final Body body = new Body();
+            body.mMessageKey = localMessage.mId;
+            body.mTextContent = data.textContent;
+            body.mHtmlContent = data.htmlContent;
+            final ContentProviderOperation.Builder b =
+                    ContentProviderOperation.newInsert(Body.CONTENT_URI)
+                    .withValues(body.toContentValues());
+            if (isNew) {
+                b.withValueBackReference(BodyColumns.MESSAGE_KEY, firstOperation);
+            }
+            ops.add(b.build());
+        }
+
+        // And the attachments which aren't saved yet
+        if (localMessage.mAttachments != null) {
+            for (Attachment att : localMessage.mAttachments) {
+                if (att.isSaved()) {
+                    batchedMessage.mAttachmentOperations.add(-1);
+                    continue;
+                }
+                att.mMessageKey = localMessage.mId;
+                final ContentProviderOperation.Builder b =
+                        ContentProviderOperation.newInsert(Attachment.CONTENT_URI)
+                        .withValues(att.toContentValues());
+                if (isNew) {
+                    b.withValueBackReference(AttachmentColumns.MESSAGE_KEY, firstOperation);
+                }
+                batchedMessage.mAttachmentOperations.add(firstOperation + ops.size());
+                ops.add(b.build());
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * @return a selection of the rows whose {@code column} is one of {@code count} arguments.
+     */
+    public static String makeInSelection(String column, int count) {
+        final StringBuilder selection = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Delete the local copies of messages which the server doesn't have anymore, along with their
+     * bodies, attachments and any pending change, in a single transaction.
+     *
+     * @param messageIds the ids of the messages to delete
+     */
+    public static void deleteSyncedMessages(Context context, List<Long> messageIds) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        final long[] ids = new long[messageIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = messageIds.get(i);
+        }
+        final Bundle extras = new Bundle(1);
+        extras.putLongArray(EmailProvider.MESSAGE_IDS_EXTRA, ids);
+        context.getContentResolver().call(EmailContent.CONTENT_URI,
+                EmailProvider.DELETE_SYNCED_MESSAGES_METHOD, null, extras);
+    }
+
     public static void saveOrUpdate(EmailContent content, Context context) {
         if (content.isSaved()) {
             content.update(context, content.toContentValues());
@@ -30,6 +30,7 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
@@ -63,6 +64,10 @@ import com.android.emailcommon.utility.Utility;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashSet;
 
 /**
@@ -220,20 +225,29 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             storeMessage.setBody(multipart);
 
             // 4. Now ask for the attachment to be fetched
-            final FetchProfile fp = new FetchProfile();
-            fp.add(storePart);
-            remoteFolder.fetch(new Message[] { storeMessage }, fp,
-                    new MessageRetrievalListenerBridge(messageId, attachmentId, cb));
-
-            // If we failed to load the attachment, throw an Exception here, so that
-            // AttachmentService knows that we failed
-            if (storePart.getBody() == null) {
-                throw new MessagingException("Attachment not loaded.");
-            }
+            final MessageRetrievalListener listener =
+                    new MessageRetrievalListenerBridge(messageId, attachmentId, cb);
+            if (remoteFolder instanceof ImapFolder
+                    && attachment.mUiDestination == UIProvider.AttachmentDestination.CACHE) {
+                // Decode the attachment straight into its final file as it arrives, rather
+                // than into temp files we'd have to copy it from again.
+                loadAttachmentToFile((ImapFolder) remoteFolder, storeMessage, storePart,
+                        attachment, listener);
+            } else {
+                final FetchProfile fp = new FetchProfile();
+                fp.add(storePart);
+                remoteFolder.fetch(new Message[] { storeMessage }, fp, listener);
+
+                // If we failed to load the attachment, throw an Exception here, so that
+                // AttachmentService knows that we failed
+                if (storePart.getBody() == null) {
+                    throw new MessagingException("Attachment not loaded.");
+                }
 
-            // Save the attachment to wherever it's going
-            AttachmentUtilities.saveAttachment(mContext, storePart.getBody().getInputStream(),
-                    attachment);
+                // Save the attachment to wherever it's going
+                AttachmentUtilities.saveAttachment(mContext,
+                        storePart.getBody().getInputStream(), attachment);
+            }
 
             // 6. Report success
             cb.loadAttachmentStatus(messageId, attachmentId, EmailServiceStatus.SUCCESS, 0);
@@ -255,6 +269,44 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
 
     }
 
+    /**
+     * Fetch {@code storePart} from {@code folder}, and decode it directly into the file returned
+     * by {@link AttachmentUtilities#getAttachmentFilename}, instead of having
+     * {@link AttachmentUtilities#saveAttachment} copy it there afterwards.
+     */
+    private void loadAttachmentToFile(final ImapFolder folder, final Message storeMessage,
+            final MimeBodyPart storePart, final Attachment attachment,
+            final MessageRetrievalListener listener) throws MessagingException {
+        final File file = AttachmentUtilities.getAttachmentFilename(mContext,
+                attachment.mAccountKey, attachment.mId);
+        final File dir = file.getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        long size = -1;
+        try {
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                size = folder.fetchPart(storeMessage, storePart, out, listener);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new MessagingException("Can't write attachment", ioe);
+        } finally {
+            if (size < 0) {
+                file.delete();
+            }
+        }
+
+        // If we failed to load the attachment, throw an Exception here, so that
+        // AttachmentService knows that we failed
+        if (size < 0) {
+            throw new MessagingException("Attachment not loaded.");
+        }
+        AttachmentUtilities.saveAttachmentFile(mContext, attachment, size);
+    }
+
     /**
      * Bridge to intercept {@link MessageRetrievalListener#loadAttachmentProgress} and
      * pass down to {@link IEmailServiceCallback}.
@@ -380,7 +432,7 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                 localFolderCursor.close();
             }
             if (store != null) {
-                store.closeConnections();
+                store.closeExpiredConnections();
             }
             // If we just created the inbox, sync it
             if (inboxId != -1) {
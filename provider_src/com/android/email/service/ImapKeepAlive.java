@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+import java.util.HashMap;
+
+/**
+ * How long an IDLE connection may stay silent on a network before it must be kicked, learned
+ * from the connections which survived or died there.
+ *
+ * <p>Some networks, mostly NATs of mobile carriers, drop the connections which stay silent for a
+ * few minutes; others keep them for as long as the server does.  The interval starts low, and
+ * grows by {@link #STEP} each time a connection survives it, up to {@link #MAX_INTERVAL}.  When a
+ * connection dies after it, the interval goes back one step, and won't be probed up to the one
+ * which failed for {@link #LIMIT_TTL}.
+ *
+ * <p>The intervals are kept by network, a Wi-Fi network or a mobile carrier, in preferences.
+ */
+/* package */ class ImapKeepAlive {
+    /* package */ static final long MIN_INTERVAL = 4 * 60 * 1000L;
+    /* package */ static final long INITIAL_INTERVAL = 10 * 60 * 1000L;
+    // Below the 29 minutes after which the server may drop the connection (RFC 2177)
+    /* package */ static final long MAX_INTERVAL = 25 * 60 * 1000L;
+    /* package */ static final long STEP = 3 * 60 * 1000L;
+    // Networks change, so probe again after a while
+    /* package */ static final long LIMIT_TTL = 7 * 24 * 60 * 60 * 1000L;
+
+    private static final String PREFERENCES_FILE = "ImapKeepAlive";
+    private static final String SEPARATOR = ":";
+
+    /** The intervals of the networks seen since the process started, by network. */
+    private static final HashMap<String, ImapKeepAlive> sNetworks =
+            new HashMap<String, ImapKeepAlive>();
+
+    /** The network, or null if unknown; then nothing is kept. */
+    private final String mNetwork;
+    private long mInterval;
+    /** The shortest interval after which a connection died, or 0 if none did. */
+    private long mLimit;
+    private long mLimitTime;
+
+    /* package */ ImapKeepAlive(String network, long interval, long limit, long limitTime) {
+        mNetwork = network;
+        mInterval = interval;
+        mLimit = limit;
+        mLimitTime = limitTime;
+    }
+
+    /**
+     * @return the interval learned for the active network.
+     */
+    public static ImapKeepAlive getForActiveNetwork(Context context) {
+        final String network = getActiveNetwork(context);
+        if (network == null) {
+            return new ImapKeepAlive(null, INITIAL_INTERVAL, 0, 0);
+        }
+        synchronized (sNetworks) {
+            ImapKeepAlive keepAlive = sNetworks.get(network);
+            if (keepAlive == null) {
+                keepAlive = fromString(network,
+                        getPreferences(context).getString(network, null));
+                sNetworks.put(network, keepAlive);
+            }
+            return keepAlive;
+        }
+    }
+
+    /**
+     * @return the key of the active network, or null if there is none.  Wi-Fi networks are
+     * told apart by a hash of their SSID, mobile ones by their operator.
+     */
+    private static String getActiveNetwork(Context context) {
+        final ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null) {
+            return null;
+        }
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+                final String ssid = info.getExtraInfo();
+                return "wifi-" + (ssid == null ? "" : Integer.toHexString(ssid.hashCode()));
+            case ConnectivityManager.TYPE_MOBILE:
+                final TelephonyManager tm =
+                        (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                return "mobile-" + tm.getNetworkOperator();
+            default:
+                return info.getTypeName();
+        }
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+    }
+
+    /* package */ static ImapKeepAlive fromString(String network, String s) {
+        if (s != null) {
+            final String[] fields = s.split(SEPARATOR);
+            try {
+                if (fields.length == 3) {
+                    return new ImapKeepAlive(network, Long.parseLong(fields[0]),
+                            Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+                }
+            } catch (NumberFormatException e) {
+                // Start again
+            }
+        }
+        return new ImapKeepAlive(network, INITIAL_INTERVAL, 0, 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mInterval + SEPARATOR + mLimit + SEPARATOR + mLimitTime;
+    }
+
+    /**
+     * @return how long an IDLE connection may stay silent before it is kicked.
+     */
+    public synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * A connection stayed silent for {@code interval} and is still alive.
+     */
+    public void onSurvived(Context context, long interval) {
+        if (survived(interval, System.currentTimeMillis())) {
+            save(context);
+        }
+    }
+
+    /**
+     * A connection died after it stayed silent for {@code interval}.
+     */
+    public void onDied(Context context, long interval) {
+        if (died(interval, System.currentTimeMillis())) {
+            save(context);
+        }
+    }
+
+    /**
+     * @return whether the interval changed.
+     */
+    /* package */ synchronized boolean survived(long interval, long now) {
+        if (mLimit > 0 && now - mLimitTime > LIMIT_TTL) {
+            mLimit = 0;
+        }
+        // Only probe further from the current interval, once
+        if (interval < mInterval || mInterval >= MAX_INTERVAL
+                || (mLimit > 0 && mInterval + STEP >= mLimit)) {
+            return false;
+        }
+        mInterval = Math.min(MAX_INTERVAL, mInterval + STEP);
+        return true;
+    }
+
+    /**
+     * @return whether the interval changed.
+     */
+    /* package */ synchronized boolean died(long interval, long now) {
+        if (mLimit == 0 || interval < mLimit) {
+            mLimit = interval;
+        }
+        mLimitTime = now;
+        final long previous = mInterval;
+        mInterval = Math.max(MIN_INTERVAL, Math.min(mInterval, interval - STEP));
+        return mInterval != previous;
+    }
+
+    private void save(Context context) {
+        if (mNetwork == null) {
+            return;
+        }
+        final String value = toString();
+        if (Logging.LOGD) {
+            LogUtils.d(Logging.LOG_TAG, "IDLE keep-alive for " + mNetwork + ": " + value);
+        }
+        getPreferences(context).edit().putString(mNetwork, value).apply();
+    }
+}
@@ -19,11 +19,14 @@ package com.android.email.service;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.NetworkInfo;
@@ -78,7 +81,6 @@ import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailService;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.service.SyncWindow;
-import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
@@ -87,9 +89,10 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ImapService extends Service {
     // TODO get these from configurations or settings.
@@ -98,6 +101,13 @@ public class ImapService extends Service {
 
     // The maximum number of messages to fetch in a single command.
     private static final int MAX_MESSAGES_TO_FETCH = 500;
+    // The maximum number of messages to look up or update in a single query, below the limit of
+    // SQLite on the number of arguments.
+    private static final int MAX_MESSAGES_PER_QUERY = 500;
+    // The maximum number of downloaded messages to save in a single batch.
+    private static final int MAX_MESSAGES_TO_SAVE = 20;
+    // The maximum number of downloaded envelopes to save in a single batch.
+    private static final int MAX_ENVELOPES_TO_SAVE = 100;
     private static final int MINIMUM_MESSAGES_TO_SYNC = 10;
     private static final int LOAD_MORE_MIN_INCREMENT = 10;
     private static final int LOAD_MORE_MAX_INCREMENT = 20;
@@ -107,8 +117,8 @@ public class ImapService extends Service {
     private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
     private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
 
-    // Kick idle connection every ~25 minutes (in a window between 25 and 28 minutes)
-    private static final int KICK_IDLE_CONNECTION_TIMEOUT = 25 * 60 * 1000;
+    // Kick idle connection after the keep-alive interval learned for the network, in a window
+    // of up to 3 minutes
     private static final int KICK_IDLE_CONNECTION_MAX_DELAY = 3 * 60 * 1000;
 
     // Restart idle connection between 30 seconds and 1 minute after re-gaining connectivity
@@ -119,6 +129,7 @@ public class ImapService extends Service {
      * Simple cache for last search result mailbox by account and serverId, since the most common
      * case will be repeated use of the same mailbox
      */
+    private static final Object sLastSearchLock = new Object();
     private static long mLastSearchAccountKey = Account.NO_ACCOUNT;
     private static String mLastSearchServerId = null;
     private static Mailbox mLastSearchRemoteMailbox = null;
@@ -131,7 +142,13 @@ public class ImapService extends Service {
     private static final HashMap<Long, SortableMessage[]> sSearchResults =
             new HashMap<Long, SortableMessage[]>();
 
-    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+    /**
+     * Threads running the background work.  Work on an account is serialized anyway, and the
+     * tasks waiting for the lock of their account don't take a thread meanwhile.
+     */
+    private static final int MAX_WORKER_THREADS = 3;
+    private static final ImapTaskExecutor sExecutor =
+            new ImapTaskExecutor("ImapService", MAX_WORKER_THREADS);
 
     /**
      * We write this into the serverId field of messages that will never be upsynced.
@@ -152,7 +169,22 @@ public class ImapService extends Service {
 
     private static String sMessageDecodeErrorString;
 
-    private static boolean mSyncLock;
+    /**
+     * Serializes the work on each account: syncs, upsyncs and IDLE changes of its mailboxes share
+     * the account's Store and its connections.  Work on other accounts goes on in parallel.  The
+     * locks are released with {@link ImapTaskExecutor#unlock}, so that the tasks of
+     * {@link #sExecutor} waiting for them are queued again; those tasks take the lock with
+     * {@link ImapTaskExecutor#execute(int, String, ReentrantLock, Runnable)} rather than
+     * blocking a thread.
+     */
+    private static final HashMap<Long, ReentrantLock> sAccountLocks =
+            new HashMap<Long, ReentrantLock>();
+
+    /**
+     * Accounts being synced, with the number of syncs of each one, which may be nested while the
+     * account lock is held; the local changes made meanwhile are upsynced later.
+     */
+    private static final HashMap<Long, Integer> sSyncingAccounts = new HashMap<Long, Integer>();
 
     /**
      * Used in ImapFolder for base64 errors. Cached here because ImapFolder does not have access
@@ -171,6 +203,18 @@ public class ImapService extends Service {
         private final Account mAccount;
         private final Mailbox mMailbox;
 
+        // Changes notified by the server and not processed yet
+        private final Object mPendingChangesLock = new Object();
+        private boolean mPendingNeedSync;
+        private final ArrayList<String> mPendingFetchMessages = new ArrayList<String>();
+        private final ArrayList<String> mPendingExpungedMessages = new ArrayList<String>();
+
+        // The keep-alive interval of the network when idling started, to learn from how the
+        // connection fared
+        private volatile ImapKeepAlive mKeepAlive;
+        private volatile long mKeepAliveInterval;
+        private volatile long mIdledTime;
+
         public ImapIdleListener(Context context, Account account, Mailbox mailbox) {
             super();
             mContext = context;
@@ -180,18 +224,24 @@ public class ImapService extends Service {
 
         @Override
         public void onIdled() {
-            scheduleKickIdleConnection();
+            final ImapKeepAlive keepAlive = ImapKeepAlive.getForActiveNetwork(mContext);
+            mKeepAliveInterval = keepAlive.getInterval();
+            mIdledTime = SystemClock.elapsedRealtime();
+            mKeepAlive = keepAlive;
+            scheduleKickIdleConnection(mKeepAliveInterval);
         }
 
         @Override
         public void onIdlingDone() {
+            learnKeepAlive(true);
             cancelKickIdleConnection();
             cancelPing();
             resetPingDelay();
         }
 
         @Override
-        public void onNewServerChange(final boolean needSync, final List<String> fetchMessages) {
+        public void onNewServerChange(final boolean needSync, final List<String> fetchMessages,
+                final List<String> expungedMessages) {
             // Instead of checking every received change, request a sync of the mailbox
             if (Logging.LOGD) {
                 LogUtils.d(LOG_TAG, "Server notified new changes for mailbox " + mMailbox.mId);
@@ -200,13 +250,34 @@ public class ImapService extends Service {
             cancelPing();
             resetPingDelay();
 
-            // Request a sync but wait a bit for new incoming messages from server
-            sExecutor.execute(new Runnable() {
+            // Add the changes to the pending ones, which a queued task for this mailbox
+            // processes all at once
+            synchronized (mPendingChangesLock) {
+                mPendingNeedSync |= needSync;
+                mPendingFetchMessages.removeAll(fetchMessages);
+                mPendingFetchMessages.addAll(fetchMessages);
+                mPendingExpungedMessages.addAll(expungedMessages);
+            }
+            sExecutor.execute(ImapTaskExecutor.PRIORITY_PUSH, "idle-changes:" + mMailbox.mId,
+                    getAccountLock(mAccount.mId), new Runnable() {
                 @Override
                 public void run() {
-                    // Selectively process all the retrieved changes
-                    processImapIdleChangesLocked(mContext, mAccount, mMailbox,
-                            needSync, fetchMessages);
+                    final boolean pendingNeedSync;
+                    final List<String> pendingFetchMessages;
+                    final List<String> pendingExpungedMessages;
+                    synchronized (mPendingChangesLock) {
+                        pendingNeedSync = mPendingNeedSync;
+                        pendingFetchMessages = new ArrayList<String>(mPendingFetchMessages);
+                        pendingExpungedMessages = new ArrayList<String>(mPendingExpungedMessages);
+                        mPendingNeedSync = false;
+                        mPendingFetchMessages.clear();
+                        mPendingExpungedMessages.clear();
+                    }
+
+                    // Selectively process all the retrieved changes; with none, this still
+                    // restarts idling
+                    processImapIdleChanges(mContext, mAccount, mMailbox, pendingNeedSync,
+                            pendingFetchMessages, pendingExpungedMessages);
                 }
             });
         }
@@ -215,6 +286,7 @@ public class ImapService extends Service {
         public void onTimeout() {
             // Timeout reschedule a new ping
             LogUtils.i(LOG_TAG, "Ping timeout for mailbox " + mMailbox.mId + ". Reschedule.");
+            learnKeepAlive(false);
             cancelKickIdleConnection();
             internalUnregisterFolderIdle();
             reschedulePing(RESCHEDULE_PING_DELAY);
@@ -225,11 +297,27 @@ public class ImapService extends Service {
         public void onException(MessagingException ex) {
             // Reschedule a new ping
             LogUtils.e(LOG_TAG, ex, "Ping exception for mailbox " + mMailbox.mId);
+            learnKeepAlive(false);
             cancelKickIdleConnection();
             internalUnregisterFolderIdle();
             reschedulePing(increasePingDelay());
         }
 
+        private void learnKeepAlive(boolean survived) {
+            final ImapKeepAlive keepAlive = mKeepAlive;
+            mKeepAlive = null;
+            // Only a connection which stayed silent for the whole interval tells about it
+            if (keepAlive == null
+                    || SystemClock.elapsedRealtime() - mIdledTime < mKeepAliveInterval) {
+                return;
+            }
+            if (survived) {
+                keepAlive.onSurvived(mContext, mKeepAliveInterval);
+            } else {
+                keepAlive.onDied(mContext, mKeepAliveInterval);
+            }
+        }
+
         private void internalUnregisterFolderIdle() {
             ImapIdleFolderHolder holder = ImapIdleFolderHolder.getInstance();
             synchronized (holder.mIdledFolders) {
@@ -285,11 +373,13 @@ public class ImapService extends Service {
                     PendingIntent.FLAG_UPDATE_CURRENT);
         }
 
-        private void scheduleKickIdleConnection() {
+        private void scheduleKickIdleConnection(long interval) {
             PendingIntent pi = getKickIdleConnectionPendingIntent();
-            long due = SystemClock.elapsedRealtime() + KICK_IDLE_CONNECTION_TIMEOUT;
-            long windowLength = KICK_IDLE_CONNECTION_MAX_DELAY;
-            LogUtils.d(LOG_TAG, "Scheduling IDLE connection kick for mailbox " + mMailbox.mId);
+            long due = SystemClock.elapsedRealtime() + interval;
+            // Not much later, or a connection which survived the interval may be found dead
+            long windowLength = Math.min(KICK_IDLE_CONNECTION_MAX_DELAY, interval / 8);
+            LogUtils.d(LOG_TAG, "Scheduling IDLE connection kick for mailbox " + mMailbox.mId
+                    + " in " + interval + "ms");
             AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
             am.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, due, windowLength, pi);
         }
@@ -312,6 +402,22 @@ public class ImapService extends Service {
     private static class ImapIdleFolderHolder {
         private static ImapIdleFolderHolder sInstance;
         private SparseArray<ImapFolder> mIdledFolders = new SparseArray<>();
+        /**
+         * Mailboxes watched with NOTIFY from the idled folder of another mailbox of the same
+         * account, by id.  Guarded by {@link #mIdledFolders}.
+         */
+        private SparseArray<NotifiedMailbox> mNotifiedMailboxes = new SparseArray<>();
+
+        private static class NotifiedMailbox {
+            /** The mailbox whose idled folder watches {@link #mMailbox}. */
+            private final long mWatcherId;
+            private final Mailbox mMailbox;
+
+            private NotifiedMailbox(long watcherId, Mailbox mailbox) {
+                mWatcherId = watcherId;
+                mMailbox = mailbox;
+            }
+        }
 
         private static ImapIdleFolderHolder getInstance() {
             if (sInstance == null) {
@@ -327,8 +433,34 @@ public class ImapService extends Service {
             }
         }
 
+        /**
+         * @return the folder of {@code mailboxId} if it is registered for idle but doesn't idle
+         * right now, e.g. while the mailbox is synced.  Its connection still has the mailbox
+         * selected, and can be used until the folder idles again.
+         */
+        private ImapFolder getSuspendedMailbox(long mailboxId) {
+            synchronized (mIdledFolders) {
+                final ImapFolder folder = mIdledFolders.get((int) mailboxId);
+                return folder != null && folder.isOpen() && !folder.isIdling() ? folder : null;
+            }
+        }
+
         private boolean isMailboxIdled(long mailboxId) {
-            return getIdledMailbox(mailboxId) != null;
+            return getIdledMailbox(mailboxId) != null || getNotifyingMailbox(mailboxId) != null;
+        }
+
+        /**
+         * @return the idled folder which watches {@code mailboxId} with NOTIFY, or null
+         */
+        private ImapFolder getNotifyingMailbox(long mailboxId) {
+            synchronized (mIdledFolders) {
+                final NotifiedMailbox notified = mNotifiedMailboxes.get((int) mailboxId);
+                if (notified == null) {
+                    return null;
+                }
+                final ImapFolder folder = getIdledMailbox(notified.mWatcherId);
+                return folder != null && folder.canNotify() ? folder : null;
+            }
         }
 
         private boolean registerMailboxForIdle(Context context, Account account, Mailbox mailbox)
@@ -357,6 +489,17 @@ public class ImapService extends Service {
                     return false;
                 }
 
+                // Let the folder watching the mailbox with NOTIFY do it, if it still can
+                final NotifiedMailbox notified = mNotifiedMailboxes.get((int) mailbox.mId);
+                if (notified != null) {
+                    if (registerNotifiedMailbox(context, account, notified)) {
+                        LogUtils.i(LOG_TAG, "Registered notify for mailbox " + mailbox.mId
+                                + " on mailbox " + notified.mWatcherId);
+                        return true;
+                    }
+                    mNotifiedMailboxes.remove((int) mailbox.mId);
+                }
+
                 // And now just idle the folder
                 try {
                     Store remoteStore = Store.getInstance(account, context);
@@ -366,6 +509,15 @@ public class ImapService extends Service {
                         mIdledFolders.put((int) mailbox.mId, folder);
                     }
                     folder.open(OpenMode.READ_WRITE);
+                    if (folder.canNotify()) {
+                        for (int i = 0; i < mNotifiedMailboxes.size(); i++) {
+                            final NotifiedMailbox other = mNotifiedMailboxes.valueAt(i);
+                            if (other.mWatcherId == mailbox.mId) {
+                                folder.addNotifyMailbox(other.mMailbox.mServerId,
+                                        new ImapIdleListener(context, account, other.mMailbox));
+                            }
+                        }
+                    }
                     folder.startIdling(new ImapIdleListener(context,
                             remoteStore.getAccount(), mailbox));
 
@@ -378,6 +530,33 @@ public class ImapService extends Service {
             }
         }
 
+        /**
+         * Add {@code notified} to the mailboxes watched by the idled folder of its watcher,
+         * idling the latter first if needed.
+         *
+         * @return false if the watcher can't watch it, and the mailbox must be idled on its own
+         */
+        private boolean registerNotifiedMailbox(Context context, Account account,
+                NotifiedMailbox notified) throws MessagingException {
+            ImapFolder watcher = mIdledFolders.get((int) notified.mWatcherId);
+            if (watcher == null || !watcher.isIdling()) {
+                final Mailbox mailbox = Mailbox.restoreMailboxWithId(context, notified.mWatcherId);
+                if (mailbox == null || !registerMailboxForIdle(context, account, mailbox)) {
+                    return false;
+                }
+                watcher = mIdledFolders.get((int) notified.mWatcherId);
+            }
+            if (watcher == null || !watcher.canNotify()) {
+                if (watcher != null) {
+                    watcher.removeNotifyMailbox(notified.mMailbox.mServerId);
+                }
+                return false;
+            }
+            watcher.addNotifyMailbox(notified.mMailbox.mServerId,
+                    new ImapIdleListener(context, account, notified.mMailbox));
+            return true;
+        }
+
         private void unregisterIdledMailbox(long mailboxId, boolean remove)
                 throws MessagingException {
             final ImapFolder folder;
@@ -391,6 +570,10 @@ public class ImapService extends Service {
 
         private ImapFolder unregisterIdledMailboxLocked(long mailboxId, boolean remove)
                 throws MessagingException {
+            if (remove) {
+                removeNotifiedMailboxesLocked(mailboxId);
+            }
+
             // Check that the folder is already registered
             ImapFolder folder = mIdledFolders.get((int) mailboxId);
             if (folder == null || !folder.isIdling()) {
@@ -406,6 +589,27 @@ public class ImapService extends Service {
             return folder;
         }
 
+        /**
+         * Stop watching {@code mailboxId} with NOTIFY, and forget the mailboxes its idled folder
+         * watches: they are idled on their own the next time they are registered.
+         */
+        private void removeNotifiedMailboxesLocked(long mailboxId) {
+            final NotifiedMailbox notified = mNotifiedMailboxes.get((int) mailboxId);
+            if (notified != null) {
+                final ImapFolder watcher = mIdledFolders.get((int) notified.mWatcherId);
+                if (watcher != null) {
+                    watcher.removeNotifyMailbox(notified.mMailbox.mServerId);
+                }
+                mNotifiedMailboxes.remove((int) mailboxId);
+                LogUtils.i(LOG_TAG, "Unregistered notify for mailbox " + mailboxId);
+            }
+            for (int i = mNotifiedMailboxes.size() - 1; i >= 0; i--) {
+                if (mNotifiedMailboxes.valueAt(i).mWatcherId == mailboxId) {
+                    mNotifiedMailboxes.removeAt(i);
+                }
+            }
+        }
+
         private void registerAccountForIdle(Context context, Account account)
                 throws MessagingException {
             // Check that the account is ready for push
@@ -419,10 +623,20 @@ public class ImapService extends Service {
                     context.getContentResolver(), account.mId);
             if (c != null) {
                 try {
-                    boolean hasSyncMailboxes = false;
+                    final ArrayList<Mailbox> mailboxes = new ArrayList<>();
                     while (c.moveToNext()) {
                         long mailboxId = c.getLong(c.getColumnIndex(BaseColumns._ID));
                         final Mailbox mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
+                        if (mailbox != null) {
+                            mailboxes.add(mailbox.mType == Mailbox.TYPE_INBOX ? 0
+                                    : mailboxes.size(), mailbox);
+                        }
+                    }
+                    watchWithNotify(mailboxes);
+
+                    boolean hasSyncMailboxes = false;
+                    for (Mailbox mailbox : mailboxes) {
+                        final long mailboxId = mailbox.mId;
                         boolean registered = isMailboxIdled(mailboxId);
                         if (!registered) {
                             registered = registerMailboxForIdle(context, account, mailbox);
@@ -447,6 +661,28 @@ public class ImapService extends Service {
             }
         }
 
+        /**
+         * Have the first of {@code mailboxes}, the inbox if any, watch the others with NOTIFY once
+         * it is idled.  The ones the server doesn't let it watch are idled on their own.
+         */
+        private void watchWithNotify(List<Mailbox> mailboxes) {
+            synchronized (mIdledFolders) {
+                if (mailboxes.size() < 2 || mIdledFolders.get((int) mailboxes.get(0).mId) != null
+                        || mNotifiedMailboxes.get((int) mailboxes.get(0).mId) != null) {
+                    return;
+                }
+                final long watcherId = mailboxes.get(0).mId;
+                for (Mailbox mailbox : mailboxes.subList(1, mailboxes.size())) {
+                    if (mailbox.mType != Mailbox.TYPE_DRAFTS && mailbox.mType != Mailbox.TYPE_OUTBOX
+                            && mIdledFolders.get((int) mailbox.mId) == null
+                            && mNotifiedMailboxes.get((int) mailbox.mId) == null) {
+                        mNotifiedMailboxes.put((int) mailbox.mId,
+                                new NotifiedMailbox(watcherId, mailbox));
+                    }
+                }
+            }
+        }
+
         private void kickAccountIdledMailboxes(Context context, Account account)
                 throws MessagingException {
             synchronized (mIdledFolders) {
@@ -487,6 +723,13 @@ public class ImapService extends Service {
                                 + mailboxId + " for account " + accountId);
                     }
                 }
+                if (remove) {
+                    for (int i = mNotifiedMailboxes.size() - 1; i >= 0; i--) {
+                        if (mNotifiedMailboxes.valueAt(i).mMailbox.mAccountKey == accountId) {
+                            mNotifiedMailboxes.removeAt(i);
+                        }
+                    }
+                }
             }
             stopIdlingForFoldersInBackground(foldersToStop);
         }
@@ -504,6 +747,7 @@ public class ImapService extends Service {
                             foldersToStop.add(folder);
                         }
                     }
+                    mNotifiedMailboxes.clear();
                 }
                 mIdledFolders.clear();
             }
@@ -514,7 +758,7 @@ public class ImapService extends Service {
             if (folders.isEmpty()) {
                 return;
             }
-            sExecutor.execute(new Runnable() {
+            sExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, new Runnable() {
                 @Override
                 public void run() {
                     for (ImapFolder folder : folders) {
@@ -560,6 +804,14 @@ public class ImapService extends Service {
             // Only remove references. We have no network to kill idled connections
             ImapIdleFolderHolder.getInstance().unregisterAllIdledMailboxes(false);
             cancelIdleConnectionRestart();
+
+            // The connections kept for reuse are dead too
+            sExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, new Runnable() {
+                @Override
+                public void run() {
+                    Store.closeAllConnections();
+                }
+            });
         }
 
         private void scheduleIdleConnectionRestart() {
@@ -599,8 +851,10 @@ public class ImapService extends Service {
                 final String op = segments.get(1);
                 final long id = Long.parseLong(uri.getLastPathSegment());
 
-                // Run the changes processor outside the ui thread
-                sExecutor.execute(new Runnable() {
+                // Run the changes processor outside the ui thread, before the work the user
+                // isn't waiting for.  Successive changes of an item are upsynced at once.
+                sExecutor.execute(ImapTaskExecutor.PRIORITY_USER, type + "-" + op + ":" + id,
+                        new Runnable() {
                     @Override
                     public void run() {
                         // Apply the change
@@ -623,6 +877,7 @@ public class ImapService extends Service {
             if (op.equals(EmailProvider.NOTIFICATION_OP_DELETE)) {
                 ImapIdleFolderHolder.getInstance()
                         .unregisterAccountIdledMailboxes(mContext, id, true);
+                Store.removeInstancesForAccount(id);
                 stopImapPushServiceIfNecessary(mContext);
                 return;
             }
@@ -702,10 +957,7 @@ public class ImapService extends Service {
             }
         }
 
-        private void processMessageChanged(String op, long id) {
-            if (mSyncLock) {
-                return;
-            }
+        private void processMessageChanged(String op, final long id) {
             EmailContent.Message msg = EmailContent.Message.restoreMessageWithId(mContext, id);
             if (msg == null) {
                 return;
@@ -721,13 +973,26 @@ public class ImapService extends Service {
             if (account.getSyncInterval() != Account.CHECK_INTERVAL_PUSH) {
                 return;
             }
-
-            try {
-                Store remoteStore = Store.getInstance(account, mContext);
-                processPendingActionsSynchronous(mContext, account, remoteStore, false);
-            } catch (MessagingException me) {
-                LogUtils.e(LOG_TAG, me, "Failed to process imap message " + id + " changes.");
+            if (isAccountSyncing(account.mId)) {
+                return;
             }
+
+            // Upsync once the account is free, along with the other changes made meanwhile
+            final Account changedAccount = account;
+            sExecutor.execute(ImapTaskExecutor.PRIORITY_USER, "upsync:" + account.mId,
+                    getAccountLock(account.mId), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Store remoteStore = Store.getInstance(changedAccount, mContext);
+                        processPendingActionsSynchronous(mContext, changedAccount, remoteStore,
+                                false);
+                    } catch (MessagingException me) {
+                        LogUtils.e(LOG_TAG, me, "Failed to process imap message " + id
+                                + " changes.");
+                    }
+                }
+            });
         }
     }
 
@@ -792,7 +1057,8 @@ public class ImapService extends Service {
 
             mIdleRefreshWakeLock.acquire();
 
-            sExecutor.execute(new Runnable() {
+            if (!sExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, action,
+                    new Runnable() {
                 @Override
                 public void run() {
                     ContentResolver cr = context.getContentResolver();
@@ -827,7 +1093,10 @@ public class ImapService extends Service {
                         mIdleRefreshWakeLock.release();
                     }
                 }
-            });
+            })) {
+                // Already queued
+                mIdleRefreshWakeLock.release();
+            }
         } else if (ACTION_RESTART_IDLE_CONNECTION.equals(action)) {
             final long mailboxId = intent.getLongExtra(EXTRA_MAILBOX, -1);
             if (mailboxId < 0) {
@@ -836,7 +1105,8 @@ public class ImapService extends Service {
 
             mIdleRefreshWakeLock.acquire();
 
-            sExecutor.execute(new Runnable() {
+            if (!sExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, action + ":" + mailboxId,
+                    new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -865,7 +1135,9 @@ public class ImapService extends Service {
                         mIdleRefreshWakeLock.release();
                     }
                 }
-            });
+            })) {
+                mIdleRefreshWakeLock.release();
+            }
         } else if (ACTION_KICK_IDLE_CONNECTION.equals(action)) {
             final long mailboxId = intent.getLongExtra(EXTRA_MAILBOX, -1);
             if (mailboxId <= -1) {
@@ -874,7 +1146,8 @@ public class ImapService extends Service {
 
             mIdleRefreshWakeLock.acquire();
 
-            sExecutor.execute(new Runnable() {
+            if (!sExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, action + ":" + mailboxId,
+                    new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -897,7 +1170,9 @@ public class ImapService extends Service {
                         mIdleRefreshWakeLock.release();
                     }
                 }
-            });
+            })) {
+                mIdleRefreshWakeLock.release();
+            }
         }
 
         return Service.START_STICKY;
@@ -1033,6 +1308,44 @@ public class ImapService extends Service {
         return acct.getProtocol(ctx).equals(sLegacyImapProtocol);
     }
 
+    /**
+     * @return the lock serializing the work on the account with id {@code accountId}.
+     */
+    private static ReentrantLock getAccountLock(long accountId) {
+        synchronized (sAccountLocks) {
+            ReentrantLock lock = sAccountLocks.get(accountId);
+            if (lock == null) {
+                lock = new ReentrantLock();
+                sAccountLocks.put(accountId, lock);
+            }
+            return lock;
+        }
+    }
+
+    private static boolean isAccountSyncing(long accountId) {
+        synchronized (sSyncingAccounts) {
+            return sSyncingAccounts.containsKey(accountId);
+        }
+    }
+
+    /**
+     * Start or end a sync of the account.  Syncs may be nested, e.g. a fetch of the changes pushed
+     * while idling within the processing of those changes: the account is syncing until the
+     * outermost one ends.
+     */
+    private static void setAccountSyncing(long accountId, boolean syncing) {
+        synchronized (sSyncingAccounts) {
+            final Integer count = sSyncingAccounts.get(accountId);
+            if (syncing) {
+                sSyncingAccounts.put(accountId, count == null ? 1 : count + 1);
+            } else if (count != null && count > 1) {
+                sSyncingAccounts.put(accountId, count - 1);
+            } else {
+                sSyncingAccounts.remove(accountId);
+            }
+        }
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is called by
      * synchronizeMailbox or checkMail.
@@ -1040,7 +1353,20 @@ public class ImapService extends Service {
      * @return The status code for whether this operation succeeded.
      * @throws MessagingException
      */
-    public static synchronized int synchronizeMailboxSynchronous(Context context,
+    public static int synchronizeMailboxSynchronous(Context context,
+            final Account account, final Mailbox folder, final boolean loadMore,
+            final boolean uiRefresh) throws MessagingException {
+        final ReentrantLock lock = getAccountLock(account.mId);
+        lock.lock();
+        try {
+            return synchronizeMailboxSynchronousLocked(context, account, folder, loadMore,
+                    uiRefresh);
+        } finally {
+            sExecutor.unlock(lock);
+        }
+    }
+
+    private static int synchronizeMailboxSynchronousLocked(Context context,
             final Account account, final Mailbox folder, final boolean loadMore,
             final boolean uiRefresh) throws MessagingException {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
@@ -1048,18 +1374,22 @@ public class ImapService extends Service {
         Store remoteStore = null;
         ImapIdleFolderHolder imapHolder = ImapIdleFolderHolder.getInstance();
         try {
-            mSyncLock = true;
+            setAccountSyncing(account.mId, true);
 
-            // Unregister the imap idle
+            // Unregister the imap idle, and sync on its connection, which has the mailbox
+            // selected already
+            ImapFolder idledFolder = null;
             if (account.getSyncInterval() == Account.CHECK_INTERVAL_PUSH) {
                 imapHolder.unregisterIdledMailbox(folder.mId, false);
+                idledFolder = imapHolder.getSuspendedMailbox(folder.mId);
             } else {
                 imapHolder.unregisterAccountIdledMailboxes(context, account.mId, false);
             }
 
             remoteStore = Store.getInstance(account, context);
             processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
-            synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore, uiRefresh);
+            synchronizeMailboxGeneric(context, account, remoteStore, idledFolder, folder,
+                    loadMore, uiRefresh);
 
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(account.mId);
@@ -1073,10 +1403,10 @@ public class ImapService extends Service {
             }
             throw e;
         } finally {
-            mSyncLock = false;
+            setAccountSyncing(account.mId, false);
 
             if (remoteStore != null) {
-                remoteStore.closeConnections();
+                remoteStore.closeExpiredConnections();
             }
 
             // Register the imap idle again
@@ -1102,6 +1432,8 @@ public class ImapService extends Service {
         private static final int COLUMN_SERVER_ID = 4;
         private static final int COLUMN_FLAGS =  5;
         private static final int COLUMN_TIMESTAMP =  6;
+        // The order of the UIDs, which are numbers (RFC 3501)
+        private static final String UID_ORDER = "CAST(" + SyncColumns.SERVER_ID + " AS INTEGER)";
         private static final String[] PROJECTION = {
                 MessageColumns._ID,
                 MessageColumns.FLAG_READ,
@@ -1155,6 +1487,7 @@ public class ImapService extends Service {
         fp.add(FetchProfile.Item.STRUCTURE);
         remoteFolder.fetch(messages.toArray(new Message[messages.size()]), fp, null);
         Message [] oneMessageArray = new Message[1];
+        final ArrayList<Message> loadedMessages = new ArrayList<Message>();
         for (Message message : messages) {
             // Build a list of parts we are interested in. Text parts will be downloaded
             // right now, attachments will be left for later.
@@ -1168,9 +1501,120 @@ public class ImapService extends Service {
                 fp.add(part);
                 remoteFolder.fetch(oneMessageArray, fp, null);
             }
-            // Store the updated message locally and mark it fully loaded
-            Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
-                    EmailContent.Message.FLAG_LOADED_COMPLETE);
+            // Store the updated messages locally by batches and mark them fully loaded
+            loadedMessages.add(message);
+            if (loadedMessages.size() >= MAX_MESSAGES_TO_SAVE) {
+                Utilities.copyMessagesToProvider(context, loadedMessages, account, toMailbox,
+                        EmailContent.Message.FLAG_LOADED_COMPLETE);
+                loadedMessages.clear();
+            }
+        }
+        Utilities.copyMessagesToProvider(context, loadedMessages, account, toMailbox,
+                EmailContent.Message.FLAG_LOADED_COMPLETE);
+    }
+
+    /**
+     * Downloaded envelopes, saved to the provider by batches of {@link #MAX_ENVELOPES_TO_SAVE}
+     * with a single transaction each.  If a batch fails, its envelopes are saved one by one.
+     */
+    private static class EnvelopeBatch {
+        private final Context mContext;
+        private final ArrayList<Long> mUnseenMessages;
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>();
+        // For each operation, the id of the message, or NO_MESSAGE if it is inserted
+        private final ArrayList<Long> mMessageIds = new ArrayList<Long>();
+        private final ArrayList<ContentValues> mValues = new ArrayList<ContentValues>();
+        private final ArrayList<Boolean> mUnseen = new ArrayList<Boolean>();
+        private boolean mFailed;
+
+        public EnvelopeBatch(Context context, ArrayList<Long> unseenMessages) {
+            mContext = context;
+            mUnseenMessages = unseenMessages;
+        }
+
+        public void add(long messageId, ContentValues values, boolean unseen) {
+            if (messageId == EmailContent.Message.NO_MESSAGE) {
+                mOps.add(ContentProviderOperation.newInsert(EmailContent.Message.CONTENT_URI)
+                        .withValues(values).build());
+            } else {
+                mOps.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                        EmailContent.Message.CONTENT_URI, messageId)).withValues(values).build());
+            }
+            mMessageIds.add(messageId);
+            mValues.add(values);
+            mUnseen.add(unseen);
+            if (mOps.size() >= MAX_ENVELOPES_TO_SAVE) {
+                save();
+            }
+        }
+
+        public void save() {
+            if (mOps.isEmpty()) {
+                return;
+            }
+            try {
+                ContentProviderResult[] results = null;
+                try {
+                    results = mContext.getContentResolver().applyBatch(
+                            EmailContent.AUTHORITY, mOps);
+                } catch (RemoteException e) {
+                    LogUtils.e(Logging.LOG_TAG, e, "Error while storing downloaded messages.");
+                } catch (OperationApplicationException e) {
+                    LogUtils.e(Logging.LOG_TAG, e, "Error while storing downloaded messages.");
+                }
+                for (int i = 0; i < mOps.size(); i++) {
+                    long messageId = mMessageIds.get(i);
+                    if (results == null) {
+                        messageId = saveOne(messageId, mValues.get(i));
+                    } else if (messageId == EmailContent.Message.NO_MESSAGE) {
+                        messageId = ContentUris.parseId(results[i].uri);
+                    }
+                    if (messageId == EmailContent.Message.NO_MESSAGE) {
+                        mFailed = true;
+                    } else if (mUnseenMessages != null && mUnseen.get(i)) {
+                        // Track the "new" ness of the downloaded message
+                        mUnseenMessages.add(messageId);
+                    }
+                }
+            } finally {
+                mOps.clear();
+                mMessageIds.clear();
+                mValues.clear();
+                mUnseen.clear();
+            }
+        }
+
+        /**
+         * Save a single envelope, after its batch failed.
+         *
+         * @return the id of the message, or NO_MESSAGE if it couldn't be saved.
+         */
+        private long saveOne(long messageId, ContentValues values) {
+            final ContentResolver resolver = mContext.getContentResolver();
+            try {
+                if (messageId == EmailContent.Message.NO_MESSAGE) {
+                    final Uri uri = resolver.insert(EmailContent.Message.CONTENT_URI, values);
+                    return uri != null ? ContentUris.parseId(uri) : EmailContent.Message.NO_MESSAGE;
+                }
+                // Nothing to update if the message was deleted meanwhile
+                resolver.update(ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI,
+                        messageId), values, null, null);
+                return messageId;
+            } catch (RuntimeException e) {
+                LogUtils.e(Logging.LOG_TAG, e, "Error while storing downloaded message.");
+                return EmailContent.Message.NO_MESSAGE;
+            }
+        }
+
+        /**
+         * @throws MessagingException if some envelopes couldn't be saved, so that the sync
+         * doesn't go past them and they are downloaded again by the next one.
+         */
+        public void checkSaved() throws MessagingException {
+            if (mFailed) {
+                throw new MessagingException("Couldn't save the downloaded envelopes.");
+            }
         }
     }
 
@@ -1189,59 +1633,138 @@ public class ImapService extends Service {
             localMapCopy = new HashMap<String, LocalMessageInfo>();
         }
 
-        remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
-                new MessageRetrievalListener() {
-                    @Override
-                    public void messageRetrieved(Message message) {
-                        try {
-                            // Determine if the new message was already known (e.g. partial)
-                            // And create or reload the full message info
-                            final LocalMessageInfo localMessageInfo =
-                                    localMapCopy.get(message.getUid());
-                            final boolean localExists = localMessageInfo != null;
-
-                            if (!localExists && message.isSet(Flag.DELETED)) {
-                                // This is a deleted message that we don't have locally, so don't
-                                // create it
-                                return;
-                            }
-
-                            final EmailContent.Message localMessage;
-                            if (!localExists) {
-                                localMessage = new EmailContent.Message();
-                            } else {
-                                localMessage = EmailContent.Message.restoreMessageWithId(
-                                        context, localMessageInfo.mId);
-                            }
+        final EnvelopeBatch batch = new EnvelopeBatch(context, unseenMessages);
+        try {
+            remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
+                    new MessageRetrievalListener() {
+                        @Override
+                        public void messageRetrieved(Message message) {
+                            try {
+                                // Determine if the new message was already known (e.g. partial)
+                                final LocalMessageInfo localMessageInfo =
+                                        localMapCopy.get(message.getUid());
+                                final boolean localExists = localMessageInfo != null;
+
+                                if (!localExists && message.isSet(Flag.DELETED)) {
+                                    // This is a deleted message that we don't have locally, so
+                                    // don't create it
+                                    return;
+                                }
 
-                            if (localMessage != null) {
-                                try {
-                                    // Copy the fields that are available into the message
+                                final long messageId;
+                                final ContentValues values;
+                                if (!localExists) {
+                                    final EmailContent.Message localMessage =
+                                            new EmailContent.Message();
                                     LegacyConversions.updateMessageFields(localMessage,
                                             message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    Utilities.saveOrUpdate(localMessage, context);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
-                                    }
-                                } catch (MessagingException me) {
-                                    LogUtils.e(Logging.LOG_TAG,
-                                            "Error while copying downloaded message." + me);
+                                    messageId = EmailContent.Message.NO_MESSAGE;
+                                    values = localMessage.toContentValues();
+                                } else {
+                                    // Update the known message from the fields we already have,
+                                    // rather than reading it again
+                                    final EmailContent.Message localMessage =
+                                            new EmailContent.Message();
+                                    localMessage.mId = localMessageInfo.mId;
+                                    localMessage.mFlagLoaded = localMessageInfo.mFlagLoaded;
+                                    localMessage.mFlags = localMessageInfo.mFlags;
+                                    localMessage.mTimeStamp = localMessageInfo.mTimestamp;
+                                    messageId = localMessageInfo.mId;
+                                    values = LegacyConversions.getMessageFieldsValues(
+                                            localMessage, message, account.mId, mailbox.mId);
                                 }
+                                batch.add(messageId, values, !message.isSet(Flag.SEEN));
+                            } catch (MessagingException me) {
+                                LogUtils.e(Logging.LOG_TAG,
+                                        "Error while copying downloaded message." + me);
                             }
                         }
-                        catch (Exception e) {
-                            LogUtils.e(Logging.LOG_TAG,
-                                    "Error while storing downloaded message." + e.toString());
+
+                        @Override
+                        public void loadAttachmentProgress(int progress) {
                         }
-                    }
+                    });
+        } finally {
+            // Save what was downloaded, even if the connection failed meanwhile
+            batch.save();
+        }
+        batch.checkSaved();
+    }
 
-                    @Override
-                    public void loadAttachmentProgress(int progress) {
-                    }
-                });
+    /**
+     * Update the SEEN/FLAGGED/ANSWERED flags of the local messages which differ from the remote
+     * ones.  The messages which end up with the same flags are updated together, all of them in a
+     * single transaction, so that a change to many messages (e.g. all of them were read on another
+     * client) doesn't cost an update and a notification per message.
+     */
+    private static void updateFlags(final Context context, final Message[] remoteMessages,
+            final HashMap<String, LocalMessageInfo> localMessageMap,
+            final boolean remoteSupportsSeen, final boolean remoteSupportsFlagged,
+            final boolean remoteSupportsAnswered) throws MessagingException {
+        // The ids of the messages to update, by the values to update them with
+        final HashMap<ContentValues, ArrayList<String>> updates =
+                new HashMap<ContentValues, ArrayList<String>>();
+        for (Message remoteMessage : remoteMessages) {
+            LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
+            if (localMessageInfo == null) {
+                continue;
+            }
+            boolean localSeen = localMessageInfo.mFlagRead;
+            boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
+            boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
+            boolean localFlagged = localMessageInfo.mFlagFavorite;
+            boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
+            boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
+            int localFlags = localMessageInfo.mFlags;
+            boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
+            boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
+            boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
+            if (newSeen || newFlagged || newAnswered) {
+                ContentValues updateValues = new ContentValues();
+                updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
+                updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
+                if (remoteAnswered) {
+                    localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
+                } else {
+                    localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
+                }
+                updateValues.put(MessageColumns.FLAGS, localFlags);
+                ArrayList<String> ids = updates.get(updateValues);
+                if (ids == null) {
+                    ids = new ArrayList<String>();
+                    updates.put(updateValues, ids);
+                }
+                ids.add(String.valueOf(localMessageInfo.mId));
+            }
+        }
+        if (updates.isEmpty()) {
+            return;
+        }
 
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (Map.Entry<ContentValues, ArrayList<String>> update : updates.entrySet()) {
+            final ArrayList<String> ids = update.getValue();
+            for (int start = 0; start < ids.size(); start += MAX_MESSAGES_PER_QUERY) {
+                final int end = Math.min(start + MAX_MESSAGES_PER_QUERY, ids.size());
+                final String selection = Utilities.makeInSelection(MessageColumns._ID, end - start);
+                final String[] selectionArgs =
+                        ids.subList(start, end).toArray(new String[end - start]);
+                ops.add(ContentProviderOperation.newUpdate(EmailContent.Message.CONTENT_URI)
+                        .withValues(update.getKey())
+                        .withSelection(selection, selectionArgs).build());
+                // The server state wins over any change still to upsync, as it does when a
+                // single message is updated
+                ops.add(ContentProviderOperation.newDelete(EmailContent.Message.UPDATED_CONTENT_URI)
+                        .withSelection(selection, selectionArgs).build());
+            }
+        }
+        try {
+            context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            LogUtils.e(Logging.LOG_TAG, e, "Error while updating message flags.");
+        } catch (OperationApplicationException e) {
+            LogUtils.e(Logging.LOG_TAG, e, "Error while updating message flags.");
+        }
     }
 
     /**
@@ -1250,14 +1773,18 @@ public class ImapService extends Service {
      * TODO Break this method up into smaller chunks.
      *
      * @param account the account to sync
+     * @param idledFolder the folder of the mailbox registered for idle, if it doesn't idle
+     * right now: it is used instead of opening another one, and left open for the next idle
      * @param mailbox the mailbox to sync
      * @param loadMore whether we should be loading more older messages
      * @param uiRefresh whether this request is in response to a user action
      * @throws MessagingException
+     *
+     * <p>The caller must hold the lock of the account, see {@link #getAccountLock}.
      */
-    private synchronized static void synchronizeMailboxGeneric(final Context context,
-            final Account account, Store remoteStore, final Mailbox mailbox, final boolean loadMore,
-            final boolean uiRefresh)
+    private static void synchronizeMailboxGeneric(final Context context,
+            final Account account, Store remoteStore, final ImapFolder idledFolder,
+            final Mailbox mailbox, final boolean loadMore, final boolean uiRefresh)
             throws MessagingException {
 
         LogUtils.d(Logging.LOG_TAG, "synchronizeMailboxGeneric " + account + " " + mailbox + " "
@@ -1306,7 +1833,8 @@ public class ImapService extends Service {
             LogUtils.d(Logging.LOG_TAG, "account is apparently deleted");
             return;
         }
-        final Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
+        final Folder remoteFolder = (idledFolder != null)
+                ? idledFolder : remoteStore.getFolder(mailbox.mServerId);
 
         // If the folder is a "special" folder we need to see if it exists
         // on the remote server. It if does not exist we'll try to create it. If we
@@ -1322,7 +1850,42 @@ public class ImapService extends Service {
                 }
             }
         }
-        remoteFolder.open(OpenMode.READ_WRITE);
+        // Take a snapshot of the mailbox with STATUS before syncing it, so that anything that
+        // arrives meanwhile is picked up by the next sync.  For a quick sync, this is also enough
+        // to tell that nothing changed since the last sync.
+        final ImapFolder imapFolder =
+                (remoteFolder instanceof ImapFolder) ? (ImapFolder) remoteFolder : null;
+        final ImapSyncState syncState = ImapSyncState.fromSyncKey(mailbox.mSyncKey);
+        final ImapSyncState remoteStatus =
+                (imapFolder != null) ? getRemoteStatus(imapFolder) : null;
+        final boolean quickSync = !fullSync && !loadMore && remoteStatus != null;
+        if (quickSync && syncState.isUnchanged(remoteStatus)) {
+            LogUtils.d(Logging.LOG_TAG, "quick sync: mailbox unchanged");
+            return;
+        }
+
+        // If the server supports QRESYNC (RFC 7162), it reports what changed since the last sync
+        // while opening the folder, and a quick sync doesn't need to look at the whole sync window.
+        // A full sync still does, to catch up with whatever the incremental ones may have missed
+        // (e.g. messages which failed to load, or a wider sync window).
+        if (imapFolder != null && quickSync) {
+            imapFolder.open(OpenMode.READ_WRITE, syncState.mUidValidity,
+                    syncState.mHighestModSeq);
+        } else {
+            remoteFolder.open(OpenMode.READ_WRITE);
+        }
+        final boolean qresync = quickSync && imapFolder.isQresynced();
+
+        // Otherwise if only new messages arrived, the ones from the last UIDNEXT are all we need.
+        Message[] newMessages = null;
+        if (!qresync && quickSync && syncState.mayOnlyHaveNewMessages(remoteStatus)) {
+            newMessages = imapFolder.getMessagesFromUid(syncState.mUidNext);
+            if (newMessages.length != syncState.getNewMessageCount(remoteStatus)) {
+                // Some messages were also expunged
+                newMessages = null;
+            }
+        }
+        final boolean deltaSync = qresync || newMessages != null;
 
         // 3. Trash any remote messages that are marked as trashed locally.
         // TODO - this comment was here, but no code was here.
@@ -1335,9 +1898,20 @@ public class ImapService extends Service {
         // 5. Save folder message count locally.
         mailbox.updateMessageCount(context, remoteMessageCount);
 
-        // 6. Get all message Ids in our sync window:
+        // 6. Get all message Ids in our sync window, or only the changed or new ones:
         Message[] remoteMessages;
-        remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        final HashSet<String> vanishedUids = new HashSet<String>();
+        if (qresync) {
+            remoteMessages = imapFolder.getChangedMessages();
+            vanishedUids.addAll(imapFolder.getVanishedUids());
+            LogUtils.d(Logging.LOG_TAG, "qresync: " + remoteMessages.length + " changed, "
+                    + vanishedUids.size() + " vanished");
+        } else if (newMessages != null) {
+            remoteMessages = newMessages;
+            LogUtils.d(Logging.LOG_TAG, "quick sync: new messages only");
+        } else {
+            remoteMessages = remoteFolder.getMessages(0, endDate, null);
+        }
         LogUtils.d(Logging.LOG_TAG, "received " + remoteMessages.length + " messages");
 
         // 7. See if we need any additional messages beyond our date query range results.
@@ -1355,7 +1929,7 @@ public class ImapService extends Service {
         LogUtils.d(Logging.LOG_TAG, "need " + totalCountNeeded + " total");
 
         final int additionalMessagesNeeded = totalCountNeeded - remoteMessages.length;
-        if (additionalMessagesNeeded > 0) {
+        if (!deltaSync && additionalMessagesNeeded > 0) {
             LogUtils.d(Logging.LOG_TAG, "trying to get " + additionalMessagesNeeded + " more");
             long startDate = endDate - 1;
             Message[] additionalMessages = new Message[0];
@@ -1415,8 +1989,26 @@ public class ImapService extends Service {
         // Note that this complicates deletion: It's not okay to delete anything that is in the
         // localMessageMap but not in the remote result, because we know that we may be getting
         // Ids of local messages that are outside the IMAP query window.
+        // The local messages are read in the order of their UIDs, and merged with the remote
+        // messages sorted the same way, so that only the local messages which are also remote are
+        // kept in localMessageMap; the others are either left alone or deleted in step 13.
+        final Message[] sortedRemoteMessages = remoteMessages.clone();
+        Arrays.sort(sortedRemoteMessages, new Comparator<Message>() {
+            @Override
+            public int compare(Message m1, Message m2) {
+                final long uid1 = getUidOrZero(m1.getUid());
+                final long uid2 = getUidOrZero(m2.getUid());
+                return uid1 < uid2 ? -1 : (uid1 == uid2 ? 0 : 1);
+            }
+        });
+        final HashMap<String, LocalMessageInfo> localMessageMap =
+                new HashMap<String, LocalMessageInfo>();
+        // The local messages which aren't remote anymore
+        final ArrayList<Long> messagesToDelete = new ArrayList<Long>();
+        // With QRESYNC, the changed messages we don't have and that are older than the newest one
+        // we have are outside of our sync window, so we don't want them.
+        long newestLocalUid = 0;
         Cursor localUidCursor = null;
-        HashMap<String, LocalMessageInfo> localMessageMap = new HashMap<String, LocalMessageInfo>();
         try {
             // FLAG: There is a problem that causes us to store the wrong date on some messages,
             // so messages get a date of zero. If we filter these messages out and don't put them
@@ -1434,15 +2026,33 @@ public class ImapService extends Service {
                             String.valueOf(account.mId),
                             String.valueOf(mailbox.mId),
                             String.valueOf(queryEndDate) },
-                    null);
+                    LocalMessageInfo.UID_ORDER);
+            int remoteIndex = 0;
             while (localUidCursor.moveToNext()) {
-                LocalMessageInfo info = new LocalMessageInfo(localUidCursor);
+                final String serverId = localUidCursor.getString(LocalMessageInfo.COLUMN_SERVER_ID);
                 // If the message has no server id, it's local only. This should only happen for
                 // mail created on the client that has failed to upsync. We want to ignore such
                 // mail during synchronization (i.e. leave it as-is and let the next sync try again
                 // to upsync).
-                if (!TextUtils.isEmpty(info.mServerId)) {
-                    localMessageMap.put(info.mServerId, info);
+                if (TextUtils.isEmpty(serverId)) {
+                    continue;
+                }
+                final long uid = getUidOrZero(serverId);
+                newestLocalUid = Math.max(newestLocalUid, uid);
+                while (remoteIndex < sortedRemoteMessages.length
+                        && getUidOrZero(sortedRemoteMessages[remoteIndex].getUid()) < uid) {
+                    remoteIndex++;
+                }
+                if (remoteIndex < sortedRemoteMessages.length
+                        && serverId.equals(sortedRemoteMessages[remoteIndex].getUid())) {
+                    localMessageMap.put(serverId, new LocalMessageInfo(localUidCursor));
+                } else if (deltaSync ? vanishedUids.contains(serverId)
+                        : localUidCursor.getLong(LocalMessageInfo.COLUMN_TIMESTAMP) >= endDate) {
+                    // If this message is inside our sync window, and we cannot find it in our
+                    // list of remote messages, then we know it's been deleted from the server.
+                    // With QRESYNC, the server told us exactly which messages were deleted; when
+                    // only new messages arrived, none were.
+                    messagesToDelete.add(localUidCursor.getLong(LocalMessageInfo.COLUMN_ID));
                 }
             }
         } finally {
@@ -1477,6 +2087,10 @@ public class ImapService extends Service {
             if (localMessage == null ||
                     (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_UNLOADED) ||
                     (localMessage.mFlagLoaded == EmailContent.Message.FLAG_LOADED_PARTIAL)) {
+                if (localMessage == null && deltaSync
+                        && getUidOrZero(message.getUid()) <= newestLocalUid) {
+                    continue;
+                }
                 unsyncedMessages.add(message);
             }
         }
@@ -1496,22 +2110,27 @@ public class ImapService extends Service {
         // the flags and envelope for previously.
         // TODO: the fetch() function, and others, should take List<>s of messages, not
         // arrays of messages.
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        if (remoteMessages.length > MAX_MESSAGES_TO_FETCH) {
-            List<Message> remoteMessageList = Arrays.asList(remoteMessages);
-            for (int start = 0; start < remoteMessageList.size(); start += MAX_MESSAGES_TO_FETCH) {
-                int end = start + MAX_MESSAGES_TO_FETCH;
-                if (end >= remoteMessageList.size()) {
-                    end = remoteMessageList.size() - 1;
-                }
-                List<Message> chunk = remoteMessageList.subList(start, end);
-                final Message[] partialArray = chunk.toArray(new Message[chunk.size()]);
-                // Fetch this one chunk of messages
-                remoteFolder.fetch(partialArray, fp, null);
+        // With QRESYNC, the changed messages came with their flags already, and new messages
+        // just got theirs.
+        if (!deltaSync) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            if (remoteMessages.length > MAX_MESSAGES_TO_FETCH) {
+                List<Message> remoteMessageList = Arrays.asList(remoteMessages);
+                for (int start = 0; start < remoteMessageList.size();
+                        start += MAX_MESSAGES_TO_FETCH) {
+                    int end = start + MAX_MESSAGES_TO_FETCH;
+                    if (end >= remoteMessageList.size()) {
+                        end = remoteMessageList.size() - 1;
+                    }
+                    List<Message> chunk = remoteMessageList.subList(start, end);
+                    final Message[] partialArray = chunk.toArray(new Message[chunk.size()]);
+                    // Fetch this one chunk of messages
+                    remoteFolder.fetch(partialArray, fp, null);
+                }
+            } else {
+                remoteFolder.fetch(remoteMessages, fp, null);
             }
-        } else {
-            remoteFolder.fetch(remoteMessages, fp, null);
         }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
@@ -1530,36 +2149,8 @@ public class ImapService extends Service {
 
         // 12. Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
         if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
-                LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
-                if (localMessageInfo == null) {
-                    continue;
-                }
-                boolean localSeen = localMessageInfo.mFlagRead;
-                boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
-                boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
-                boolean localFlagged = localMessageInfo.mFlagFavorite;
-                boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
-                boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
-                int localFlags = localMessageInfo.mFlags;
-                boolean localAnswered = (localFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0;
-                boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
-                boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
-                if (newSeen || newFlagged || newAnswered) {
-                    Uri uri = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
-                    ContentValues updateValues = new ContentValues();
-                    updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
-                    updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
-                    if (remoteAnswered) {
-                        localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
-                    } else {
-                        localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
-                    }
-                    updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
-                }
-            }
+            updateFlags(context, remoteMessages, localMessageMap, remoteSupportsSeen,
+                    remoteSupportsFlagged, remoteSupportsAnswered);
         }
 
         // 12.5 Remove messages that are marked as deleted so that we drop them from the DB in the
@@ -1568,6 +2159,7 @@ public class ImapService extends Service {
             if (remoteMessage.isSet(Flag.DELETED)) {
                 remoteUidMap.remove(remoteMessage.getUid());
                 unsyncedMessages.remove(remoteMessage);
+                vanishedUids.add(remoteMessage.getUid());
             }
         }
 
@@ -1575,28 +2167,20 @@ public class ImapService extends Service {
         // but no longer on the remote store. Note that localMessageMap can contain messages
         // that are not actually in our sync window. We need to check the timestamp to ensure
         // that it is before deleting.
+        // With QRESYNC, the server told us exactly which messages were deleted; when only new
+        // messages arrived, none were.
+        // The local messages missing from the remote list were found in step 8, so only the
+        // remote messages marked as deleted are left to check.
         for (final LocalMessageInfo info : localMessageMap.values()) {
             // If this message is inside our sync window, and we cannot find it in our list
             // of remote messages, then we know it's been deleted from the server.
-            if (info.mTimestamp >= endDate && !remoteUidMap.containsKey(info.mServerId)) {
-                // Delete associated data (attachment files)
-                // Attachment & Body records are auto-deleted when we delete the Message record
-                AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId, info.mId);
-
-                // Delete the message itself
-                final Uri uriToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.CONTENT_URI, info.mId);
-                resolver.delete(uriToDelete, null, null);
-
-                // Delete extra rows (e.g. updated or deleted)
-                final Uri updateRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                resolver.delete(updateRowToDelete, null, null);
-                final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                resolver.delete(deleteRowToDelete, null, null);
+            final boolean deleted = deltaSync ? vanishedUids.contains(info.mServerId)
+                    : (info.mTimestamp >= endDate && !remoteUidMap.containsKey(info.mServerId));
+            if (deleted) {
+                messagesToDelete.add(info.mId);
             }
         }
+        Utilities.deleteSyncedMessages(context, messagesToDelete);
 
         loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
 
@@ -1604,11 +2188,47 @@ public class ImapService extends Service {
             mailbox.updateLastFullSyncTime(context, SystemClock.elapsedRealtime());
         }
 
+        // 13.5 Remember the state of the remote mailbox, so that the next sync can only ask for
+        // what changed since this one
+        if (imapFolder != null) {
+            mailbox.updateSyncKey(context, ImapSyncState.afterSync(imapFolder.getUidValidity(),
+                    imapFolder.getHighestModSeq(), remoteStatus).toSyncKey());
+        }
+
         // 14. Clean up and report results
-        remoteFolder.close(false);
+        if (remoteFolder != idledFolder) {
+            remoteFolder.close(false);
+        }
     }
 
-    private synchronized static void processImapFetchChanges(Context ctx, Account acct,
+    /**
+     * @return the STATUS of {@code folder} for {@link ImapSyncState#STATUS_ITEMS}, or null if the
+     * server can't tell.
+     */
+    private static ImapSyncState getRemoteStatus(ImapFolder folder) throws MessagingException {
+        try {
+            return ImapSyncState.fromStatuses(folder.getStatuses(ImapSyncState.STATUS_ITEMS));
+        } catch (MessagingException me) {
+            if (me.getExceptionType() == MessagingException.IOERROR) {
+                throw me;
+            }
+            LogUtils.d(Logging.LOG_TAG, me, "STATUS failed");
+            return null;
+        }
+    }
+
+    /**
+     * @return the UID of a message as a number, or 0 if it isn't one.
+     */
+    private static long getUidOrZero(String uid) {
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void processImapFetchChangesLocked(Context ctx, Account acct,
             Mailbox mailbox, List<String> uids) throws MessagingException {
 
         PowerManager pm = (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
@@ -1620,7 +2240,7 @@ public class ImapService extends Service {
         final ImapIdleFolderHolder imapHolder = ImapIdleFolderHolder.getInstance();
 
         try {
-            mSyncLock = true;
+            setAccountSyncing(acct.mId, true);
             wl.acquire();
 
             TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(ctx, acct));
@@ -1635,12 +2255,10 @@ public class ImapService extends Service {
                 return;
             }
 
-            // 1. Open the remote store & folder
-            ImapFolder remoteFolder;
-            synchronized (imapHolder.mIdledFolders) {
-                remoteFolder = imapHolder.mIdledFolders.get((int) mailbox.mId);
-            }
-            if (remoteFolder == null || remoteFolder.isIdling()) {
+            // 1. Open the remote store & folder, reusing the connection of the idled folder,
+            // which has the mailbox selected already
+            ImapFolder remoteFolder = imapHolder.getSuspendedMailbox(mailbox.mId);
+            if (remoteFolder == null) {
                 remoteFolder = (ImapFolder) remoteStore.getFolder(mailbox.mServerId);
             }
             if (!remoteFolder.exists()) {
@@ -1733,41 +2351,12 @@ public class ImapService extends Service {
 
             // 7. Update SEEN/FLAGGED/ANSWERED (star) flags
             if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-                for (Message remoteMessage : remoteMessages) {
-                    LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
-                    if (localMessageInfo == null) {
-                        continue;
-                    }
-                    boolean localSeen = localMessageInfo.mFlagRead;
-                    boolean remoteSeen = remoteMessage.isSet(Flag.SEEN);
-                    boolean newSeen = (remoteSupportsSeen && (remoteSeen != localSeen));
-                    boolean localFlagged = localMessageInfo.mFlagFavorite;
-                    boolean remoteFlagged = remoteMessage.isSet(Flag.FLAGGED);
-                    boolean newFlagged = (remoteSupportsFlagged && (localFlagged != remoteFlagged));
-                    int localFlags = localMessageInfo.mFlags;
-                    boolean localAnswered = (localFlags &
-                            EmailContent.Message.FLAG_REPLIED_TO) != 0;
-                    boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
-                    boolean newAnswered = (remoteSupportsAnswered &&
-                            (localAnswered != remoteAnswered));
-                    if (newSeen || newFlagged || newAnswered) {
-                        Uri uri = ContentUris.withAppendedId(
-                                EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
-                        updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
-                        if (remoteAnswered) {
-                            localFlags |= EmailContent.Message.FLAG_REPLIED_TO;
-                        } else {
-                            localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
-                        }
-                        updateValues.put(MessageColumns.FLAGS, localFlags);
-                        resolver.update(uri, updateValues, null, null);
-                    }
-                }
+                updateFlags(ctx, remoteMessages, localMessageMap, remoteSupportsSeen,
+                        remoteSupportsFlagged, remoteSupportsAnswered);
             }
 
             // 8.- Remove remote deleted messages
+            final ArrayList<Long> messagesToDelete = new ArrayList<Long>();
             for (final Message remoteMessage : remoteMessages) {
                 if (!remoteMessage.isSet(Flag.DELETED)) {
                     continue;
@@ -1782,23 +2371,9 @@ public class ImapService extends Service {
                     continue;
                 }
 
-                // Delete associated data (attachment files)
-                // Attachment & Body records are auto-deleted when we delete the Message record
-                AttachmentUtilities.deleteAllAttachmentFiles(ctx, acct.mId, info.mId);
-
-                // Delete the message itself
-                final Uri uriToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.CONTENT_URI, info.mId);
-                resolver.delete(uriToDelete, null, null);
-
-                // Delete extra rows (e.g. updated or deleted)
-                final Uri updateRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                resolver.delete(updateRowToDelete, null, null);
-                final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                resolver.delete(deleteRowToDelete, null, null);
+                messagesToDelete.add(info.mId);
             }
+            Utilities.deleteSyncedMessages(ctx, messagesToDelete);
 
             // 9.- Load unsynced messages
             loadUnsyncedMessages(ctx, acct, remoteFolder, unsyncedMessages, mailbox);
@@ -1810,28 +2385,15 @@ public class ImapService extends Service {
             long endDate = System.currentTimeMillis() -
                     (SyncWindow.toDays(syncLookBack) * DateUtils.DAY_IN_MILLIS);
             LogUtils.d(Logging.LOG_TAG, "full sync: original window: now - " + endDate);
+            messagesToDelete.clear();
             for (final LocalMessageInfo info : localMessageMap.values()) {
                 // If this message is inside our sync window, and we cannot find it in our list
                 // of remote messages, then we know it's been deleted from the server.
                 if (info.mTimestamp < endDate) {
-                    // Delete associated data (attachment files)
-                    // Attachment & Body records are auto-deleted when we delete the Message record
-                    AttachmentUtilities.deleteAllAttachmentFiles(ctx, acct.mId, info.mId);
-
-                    // Delete the message itself
-                    final Uri uriToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, info.mId);
-                    resolver.delete(uriToDelete, null, null);
-
-                    // Delete extra rows (e.g. updated or deleted)
-                    final Uri updateRowToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                    resolver.delete(updateRowToDelete, null, null);
-                    final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                            EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                    resolver.delete(deleteRowToDelete, null, null);
+                    messagesToDelete.add(info.mId);
                 }
             }
+            Utilities.deleteSyncedMessages(ctx, messagesToDelete);
 
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(acct.mId);
@@ -1848,11 +2410,11 @@ public class ImapService extends Service {
             }
             throw ex;
         } finally {
-            mSyncLock = false;
+            setAccountSyncing(acct.mId, false);
             wl.release();
 
             if (remoteStore != null) {
-                remoteStore.closeConnections();
+                remoteStore.closeExpiredConnections();
 
                 final boolean registered;
                 synchronized (imapHolder.mIdledFolders) {
@@ -1911,9 +2473,11 @@ public class ImapService extends Service {
         if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
             long accountKey = message.mAccountKey;
             String protocolSearchInfo = message.mProtocolSearchInfo;
-            if (accountKey == mLastSearchAccountKey &&
-                    protocolSearchInfo.equals(mLastSearchServerId)) {
-                return mLastSearchRemoteMailbox;
+            synchronized (sLastSearchLock) {
+                if (accountKey == mLastSearchAccountKey &&
+                        protocolSearchInfo.equals(mLastSearchServerId)) {
+                    return mLastSearchRemoteMailbox;
+                }
             }
             Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
                     Mailbox.CONTENT_PROJECTION, Mailbox.PATH_AND_ACCOUNT_SELECTION,
@@ -1923,9 +2487,11 @@ public class ImapService extends Service {
                 if (c.moveToNext()) {
                     Mailbox mailbox = new Mailbox();
                     mailbox.restore(c);
-                    mLastSearchAccountKey = accountKey;
-                    mLastSearchServerId = protocolSearchInfo;
-                    mLastSearchRemoteMailbox = mailbox;
+                    synchronized (sLastSearchLock) {
+                        mLastSearchAccountKey = accountKey;
+                        mLastSearchServerId = protocolSearchInfo;
+                        mLastSearchRemoteMailbox = mailbox;
+                    }
                     return mailbox;
                 } else {
                     return null;
@@ -2049,7 +2615,7 @@ public class ImapService extends Service {
                         upsyncs1.close();
                     }
                     if (remoteStore != null) {
-                        remoteStore.closeConnections();
+                        remoteStore.closeExpiredConnections();
                     }
                 }
             }
@@ -2082,6 +2648,8 @@ public class ImapService extends Service {
         try {
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
+            // Consecutive moves between the same two mailboxes, upsynced together
+            PendingMoves moves = null;
             // loop through messages marked as needing updates
             while (updates.moveToNext()) {
                 boolean changeMoveToTrash = false;
@@ -2121,10 +2689,20 @@ public class ImapService extends Service {
                 }
 
                 // Dispatch here for specific change types
-                if (changeMoveToTrash) {
-                    // Move message to trash
-                    processPendingMoveToTrash(context, remoteStore, mailbox, oldMessage,
-                            newMessage);
+                if (changeMoveToTrash
+                        || (changeMailbox && !changeRead && !changeFlagged && !changeAnswered)) {
+                    // Move message to trash or to another mailbox
+                    final Mailbox fromMailbox = getRemoteMailboxForMessage(context, oldMessage);
+                    if (moves != null && !moves.isBetween(fromMailbox, mailbox)) {
+                        processPendingMoves(context, remoteStore, moves);
+                        moves = null;
+                    }
+                    if (moves == null) {
+                        moves = new PendingMoves(fromMailbox, mailbox);
+                    }
+                    moves.add(oldMessage, newMessage);
+                    // The update is deleted once the move is done
+                    continue;
                 } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
                     processPendingDataChange(context, remoteStore, mailbox, changeRead,
                             changeFlagged, changeMailbox, changeAnswered, oldMessage, newMessage);
@@ -2135,6 +2713,9 @@ public class ImapService extends Service {
                         oldMessage.mId);
                 resolver.delete(uri, null, null);
             }
+            if (moves != null) {
+                processPendingMoves(context, remoteStore, moves);
+            }
 
         } catch (MessagingException me) {
             // Presumably an error here is an account connection failure, so there is
@@ -2270,8 +2851,8 @@ public class ImapService extends Service {
             }
             // We may need the message id to search for the message in the destination folder
             remoteMessage.setMessageId(newMessage.mMessageId);
-            // Copy the message to its new folder
-            remoteFolder.copyMessages(messages, toFolder, new MessageUpdateCallbacks() {
+            // Move the message to its new folder
+            moveRemoteMessages(remoteFolder, messages, toFolder, new MessageUpdateCallbacks() {
                 @Override
                 public void onMessageUidChange(Message message, String newUid) {
                     ContentValues cv = new ContentValues();
@@ -2286,95 +2867,138 @@ public class ImapService extends Service {
                 public void onMessageNotFound(Message message) {
                 }
             });
-            // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
         }
         remoteFolder.close(false);
     }
 
     /**
-     * Process a pending trash message command.
-     *
-     * @param remoteStore the remote store we're working in
-     * @param newMailbox The local trash mailbox
-     * @param oldMessage The message copy that was saved in the updates shadow table
-     * @param newMessage The message that was moved to the mailbox
+     * Moves of messages from the same remote mailbox to the same local mailbox, which are
+     * upsynced together by {@link #processPendingMoves}.
      */
-    private static void processPendingMoveToTrash(final Context context, Store remoteStore,
-            Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+    private static class PendingMoves {
+        /** The remote mailbox the messages were in, or null if it can't be found. */
+        final Mailbox mFromMailbox;
+        /** The mailbox the messages were moved to. */
+        final Mailbox mToMailbox;
+        /** The message copies that were saved in the updates shadow table. */
+        final ArrayList<EmailContent.Message> mOldMessages = new ArrayList<EmailContent.Message>();
+        /** The messages that were moved, in the same order. */
+        final ArrayList<EmailContent.Message> mNewMessages = new ArrayList<EmailContent.Message>();
 
-        // 0. No remote move if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
-            return;
+        PendingMoves(Mailbox fromMailbox, Mailbox toMailbox) {
+            mFromMailbox = fromMailbox;
+            mToMailbox = toMailbox;
         }
 
-        // 1. Escape early if we can't find the local mailbox
-        // TODO smaller projection here
-        Mailbox oldMailbox = getRemoteMailboxForMessage(context, oldMessage);
-        if (oldMailbox == null) {
-            // can't find old mailbox, it may have been deleted.  just return.
-            return;
+        boolean isBetween(Mailbox fromMailbox, Mailbox toMailbox) {
+            final long fromId = (fromMailbox == null) ? Mailbox.NO_MAILBOX : fromMailbox.mId;
+            final long myFromId = (mFromMailbox == null) ? Mailbox.NO_MAILBOX : mFromMailbox.mId;
+            return fromId == myFromId && toMailbox.mId == mToMailbox.mId;
         }
-        // 2. We don't support delete-from-trash here
-        if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
-            return;
+
+        void add(EmailContent.Message oldMessage, EmailContent.Message newMessage) {
+            mOldMessages.add(oldMessage);
+            mNewMessages.add(newMessage);
+        }
+    }
+
+    /**
+     * Process pending moves of messages to the trash or to another mailbox.  All the messages
+     * are moved on the server at once, then their updates are deleted.
+     *
+     * @param remoteStore the remote store we're working in
+     * @param moves the moves to upsync
+     */
+    private static void processPendingMoves(final Context context, Store remoteStore,
+            PendingMoves moves) throws MessagingException {
+        final Mailbox fromMailbox = moves.mFromMailbox;
+        final Mailbox toMailbox = moves.mToMailbox;
+        final boolean toTrash = toMailbox.mType == Mailbox.TYPE_TRASH;
+
+        // 1. Escape early if we can't find the remote mailbox (it may have been deleted), or
+        // if it's one we don't upsync moves from.  We don't support delete-from-trash here.
+        if (fromMailbox != null && (toTrash ? fromMailbox.mType != Mailbox.TYPE_TRASH
+                : fromMailbox.mType != Mailbox.TYPE_DRAFTS
+                        && fromMailbox.mType != Mailbox.TYPE_OUTBOX)) {
+            // 2. Skip local-only messages, and map the others by their remote UID
+            final HashMap<String, EmailContent.Message> localMessages =
+                    new HashMap<String, EmailContent.Message>();
+            for (int i = 0; i < moves.mNewMessages.size(); i++) {
+                final EmailContent.Message newMessage = moves.mNewMessages.get(i);
+                if (newMessage.mServerId == null || newMessage.mServerId.equals("")
+                        || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
+                    continue;
+                }
+                localMessages.put(moves.mOldMessages.get(i).mServerId, newMessage);
+            }
+            if (!localMessages.isEmpty()) {
+                moveMessagesOnServer(context, remoteStore, fromMailbox, toMailbox,
+                        localMessages);
+            }
         }
 
-        // The rest of this method handles server-side deletion
+        // 3. Delete all the updates at once
+        final StringBuilder selection = new StringBuilder(EmailContent.RECORD_ID + " IN (");
+        for (int i = 0; i < moves.mOldMessages.size(); i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(moves.mOldMessages.get(i).mId);
+        }
+        selection.append(')');
+        context.getContentResolver().delete(EmailContent.Message.UPDATED_CONTENT_URI,
+                selection.toString(), null);
+    }
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
+    /**
+     * Moves messages on the server, and updates their UIDs in the local mailbox.
+     *
+     * @param fromMailbox the remote mailbox the messages were in
+     * @param toMailbox the local mailbox the messages were moved to
+     * @param localMessages the moved messages, by their UID in {@code fromMailbox}
+     */
+    private static void moveMessagesOnServer(final Context context, Store remoteStore,
+            Mailbox fromMailbox, Mailbox toMailbox,
+            final HashMap<String, EmailContent.Message> localMessages)
+            throws MessagingException {
+        // 1. Find the remote mailbox (that we moved from), and open it
+        Folder remoteFolder = remoteStore.getFolder(fromMailbox.mServerId);
         if (!remoteFolder.exists()) {
             return;
         }
-
         remoteFolder.open(OpenMode.READ_WRITE);
         if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
             remoteFolder.close(false);
             return;
         }
-
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteFolder.close(false);
-            return;
+        final ArrayList<Message> remoteMessages = new ArrayList<Message>(localMessages.size());
+        for (Map.Entry<String, EmailContent.Message> entry : localMessages.entrySet()) {
+            final Message remoteMessage = remoteFolder.createMessage(entry.getKey());
+            // We may need the message id to search for the message in the destination folder
+            remoteMessage.setMessageId(entry.getValue().mMessageId);
+            remoteMessages.add(remoteMessage);
         }
+        final Message[] messages = remoteMessages.toArray(new Message[remoteMessages.size()]);
 
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
+        // 2. Find the remote destination folder; create the trash if not found
+        Folder toFolder = remoteStore.getFolder(toMailbox.mServerId);
+        final boolean toTrash = toMailbox.mType == Mailbox.TYPE_TRASH;
+        if (toTrash && !toFolder.exists()) {
+            toFolder.create(FolderType.HOLDS_MESSAGES);
         }
 
-        // 7. Try to copy the message into the remote trash folder
-        // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
-            /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
-             */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
-                return;
-            }
-
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
-                    new Folder.MessageUpdateCallbacks() {
+        if (toFolder.exists()) {
+            // 3. Move the messages, and update their UIDs in the local mailbox, because some
+            // stores will have to change them
+            moveRemoteMessages(remoteFolder, messages, toFolder, new MessageUpdateCallbacks() {
                 @Override
                 public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    context.getContentResolver().update(newMessage.getUri(), cv, null, null);
+                    final EmailContent.Message newMessage = localMessages.get(message.getUid());
+                    if (newMessage != null) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(MessageColumns.SERVER_ID, newUid);
+                        context.getContentResolver().update(newMessage.getUri(), cv, null, null);
+                    }
                 }
 
                 /**
@@ -2384,18 +3008,36 @@ public class ImapService extends Service {
                  */
                 @Override
                 public void onMessageNotFound(Message message) {
-                    context.getContentResolver().delete(newMessage.getUri(), null, null);
+                    final EmailContent.Message newMessage = localMessages.get(message.getUid());
+                    if (toTrash && newMessage != null) {
+                        context.getContentResolver().delete(newMessage.getUri(), null, null);
+                    }
                 }
             });
-            remoteTrashFolder.close(false);
+        } else if (toTrash) {
+            // 4. No remote trash; just delete the messages from the remote source folder
+            remoteFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            remoteFolder.expunge();
         }
-
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
         remoteFolder.close(false);
     }
 
+    /**
+     * Moves {@code messages} from {@code remoteFolder} to {@code toFolder}, in a single command
+     * if the server supports IMAP MOVE.  Otherwise they are copied, then deleted from
+     * {@code remoteFolder}.
+     */
+    private static void moveRemoteMessages(Folder remoteFolder, Message[] messages,
+            Folder toFolder, MessageUpdateCallbacks callbacks) throws MessagingException {
+        if (remoteFolder instanceof ImapFolder) {
+            ((ImapFolder) remoteFolder).moveMessages(messages, toFolder, callbacks);
+        } else {
+            remoteFolder.copyMessages(messages, toFolder, callbacks);
+            remoteFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            remoteFolder.expunge();
+        }
+    }
+
     /**
      * Process a pending trash message command.
      *
@@ -2712,6 +3354,7 @@ public class ImapService extends Service {
             // This means attachment contents are not yet loaded, but that's okay,
             // we'll load them as needed, same as in synced messages.
             Message[] oneMessageArray = new Message[1];
+            final ArrayList<Message> loadedMessages = new ArrayList<>();
             for (Message message : messageArray) {
                 // Build a list of parts we are interested in. Text parts will be downloaded
                 // right now, attachments will be left for later.
@@ -2725,14 +3368,20 @@ public class ImapService extends Service {
                     fp.add(part);
                     remoteFolder.fetch(oneMessageArray, fp, null);
                 }
-                // Store the updated message locally and mark it fully loaded
-                Utilities.copyOneMessageToProvider(context, message, account, destMailbox,
-                        EmailContent.Message.FLAG_LOADED_COMPLETE);
+                // Store the updated messages locally by batches and mark them fully loaded
+                loadedMessages.add(message);
+                if (loadedMessages.size() >= MAX_MESSAGES_TO_SAVE) {
+                    Utilities.copyMessagesToProvider(context, loadedMessages, account,
+                            destMailbox, EmailContent.Message.FLAG_LOADED_COMPLETE);
+                    loadedMessages.clear();
+                }
             }
+            Utilities.copyMessagesToProvider(context, loadedMessages, account, destMailbox,
+                    EmailContent.Message.FLAG_LOADED_COMPLETE);
 
         } finally {
             if (remoteStore != null) {
-                remoteStore.closeConnections();
+                remoteStore.closeExpiredConnections();
             }
             // Tell UI that we're done loading messages
             statusValues.put(Mailbox.SYNC_TIME, System.currentTimeMillis());
@@ -2743,8 +3392,63 @@ public class ImapService extends Service {
         return numSearchResults;
     }
 
-    private static synchronized void processImapIdleChangesLocked(Context context, Account account,
-            Mailbox mailbox, boolean needSync, List<String> fetchMessages) {
+    /**
+     * Deletes the local copies of messages that were expunged from a mailbox while idling.
+     *
+     * @param serverIds the UIDs of the expunged messages
+     */
+    private static void processImapIdleExpunges(Context context, Account account,
+            Mailbox mailbox, List<String> serverIds) {
+        final ContentResolver resolver = context.getContentResolver();
+        final ArrayList<Long> messagesToDelete = new ArrayList<Long>();
+        for (int start = 0; start < serverIds.size(); start += MAX_MESSAGES_PER_QUERY) {
+            final List<String> chunk = serverIds.subList(start,
+                    Math.min(start + MAX_MESSAGES_PER_QUERY, serverIds.size()));
+            final StringBuilder selection = new StringBuilder(
+                    MessageColumns.MAILBOX_KEY + "=? AND " + SyncColumns.SERVER_ID + " IN (");
+            final String[] selectionArgs = new String[chunk.size() + 1];
+            selectionArgs[0] = Long.toString(mailbox.mId);
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i + 1] = chunk.get(i);
+            }
+            selection.append(')');
+            final Cursor c = resolver.query(EmailContent.Message.CONTENT_URI,
+                    EmailContent.ID_PROJECTION, selection.toString(), selectionArgs, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    messagesToDelete.add(c.getLong(EmailContent.ID_PROJECTION_COLUMN));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        Utilities.deleteSyncedMessages(context, messagesToDelete);
+    }
+
+    /**
+     * Apply the changes of {@code mailbox} received while idling.  The caller must hold the lock
+     * of the account, see {@link #getAccountLock}.
+     */
+    private static void processImapIdleChanges(Context context, Account account,
+            Mailbox mailbox, boolean needSync, List<String> fetchMessages,
+            List<String> expungedMessages) {
+        // The changes are upsynced and fetched as a whole, like a sync
+        setAccountSyncing(account.mId, true);
+        try {
+            processImapIdleChangesLocked(context, account, mailbox, needSync, fetchMessages,
+                    expungedMessages);
+        } finally {
+            setAccountSyncing(account.mId, false);
+        }
+    }
+
+    private static void processImapIdleChangesLocked(Context context, Account account,
+            Mailbox mailbox, boolean needSync, List<String> fetchMessages,
+            List<String> expungedMessages) {
 
         // Process local to server changes first
         Store remoteStore = null;
@@ -2755,7 +3459,7 @@ public class ImapService extends Service {
             // Ignore
         } finally {
             if (remoteStore != null) {
-                remoteStore.closeConnections();
+                remoteStore.closeExpiredConnections();
             }
         }
 
@@ -2778,13 +3482,19 @@ public class ImapService extends Service {
         final int msgToFetchSize = fetchMessages.size();
         if (Logging.LOGD) {
             LogUtils.d(LOG_TAG, "Processing IDLE changes for mailbox " + mailbox.mId
-                    + ": need sync " + needSync + ", " + msgToFetchSize + " fetch messages");
+                    + ": need sync " + needSync + ", " + msgToFetchSize + " fetch messages, "
+                    + expungedMessages.size() + " expunged messages");
+        }
+
+        // Messages removed from the server don't need a sync; just delete them locally
+        if (!expungedMessages.isEmpty()) {
+            processImapIdleExpunges(context, account, mailbox, expungedMessages);
         }
 
         if (msgToFetchSize > 0) {
             if (!needSync && msgToFetchSize <= MAX_MESSAGES_TO_FETCH) {
                 try {
-                    processImapFetchChanges(context, account, mailbox, fetchMessages);
+                    processImapFetchChangesLocked(context, account, mailbox, fetchMessages);
                 } catch (MessagingException ex) {
                     LogUtils.w(LOG_TAG,
                             "Failed to process imap idle changes for mailbox " + mailbox.mId);
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.text.TextUtils;
+
+import com.android.email.mail.store.imap.ImapConstants;
+
+import java.util.Map;
+
+/**
+ * State of an IMAP mailbox at the end of its last sync, kept in the sync key of the
+ * {@link com.android.emailcommon.provider.Mailbox}, e.g. "67890007:20050715194045000:4392:231:3"
+ * for UIDVALIDITY, HIGHESTMODSEQ, UIDNEXT, MESSAGES and UNSEEN.
+ *
+ * <p>An empty or "0" sync key (the initial one, also set when a mailbox is resynced) has no
+ * state, and means the mailbox must be synced from scratch.
+ */
+/* package */ class ImapSyncState {
+    private static final String SEPARATOR = ":";
+
+    /** The STATUS items needed by {@link #fromStatuses}. */
+    public static final String[] STATUS_ITEMS = {
+        ImapConstants.MESSAGES, ImapConstants.UIDNEXT, ImapConstants.UIDVALIDITY,
+        ImapConstants.UNSEEN
+    };
+
+    /** UIDVALIDITY of the mailbox, or null if unknown. */
+    public final String mUidValidity;
+    /** HIGHESTMODSEQ of the mailbox (RFC 7162), or null if unknown. */
+    public final String mHighestModSeq;
+    /** UIDNEXT of the mailbox, or null if unknown. */
+    public final String mUidNext;
+    /** Number of messages in the mailbox, or null if unknown. */
+    public final String mMessageCount;
+    /** Number of unseen messages in the mailbox, or null if unknown. */
+    public final String mUnseenCount;
+
+    public ImapSyncState(String uidValidity, String highestModSeq) {
+        this(uidValidity, highestModSeq, null, null, null);
+    }
+
+    public ImapSyncState(String uidValidity, String highestModSeq, String uidNext,
+            String messageCount, String unseenCount) {
+        mUidValidity = uidValidity;
+        mHighestModSeq = highestModSeq;
+        mUidNext = uidNext;
+        mMessageCount = messageCount;
+        mUnseenCount = unseenCount;
+    }
+
+    /**
+     * @return the state stored in {@code syncKey}; fields that are missing are null.
+     */
+    public static ImapSyncState fromSyncKey(String syncKey) {
+        if (TextUtils.isEmpty(syncKey) || "0".equals(syncKey)) {
+            return new ImapSyncState(null, null);
+        }
+        final String[] fields = syncKey.split(SEPARATOR, -1);
+        return new ImapSyncState(getField(fields, 0), getField(fields, 1), getField(fields, 2),
+                getField(fields, 3), getField(fields, 4));
+    }
+
+    private static String getField(String[] fields, int index) {
+        return (index < fields.length && !fields[index].isEmpty()) ? fields[index] : null;
+    }
+
+    /**
+     * @return the state reported by a STATUS command for {@link #STATUS_ITEMS}, without
+     * HIGHESTMODSEQ.
+     */
+    public static ImapSyncState fromStatuses(Map<String, String> statuses) {
+        return new ImapSyncState(statuses.get(ImapConstants.UIDVALIDITY), null,
+                statuses.get(ImapConstants.UIDNEXT), statuses.get(ImapConstants.MESSAGES),
+                statuses.get(ImapConstants.UNSEEN));
+    }
+
+    /**
+     * @return the state to keep after a sync, from what SELECT reported and from {@code status},
+     * the result of a STATUS taken before the sync.  The latter is dropped if it was for another
+     * UIDVALIDITY.
+     */
+    public static ImapSyncState afterSync(String uidValidity, String highestModSeq,
+            ImapSyncState status) {
+        if (status == null || !TextUtils.equals(uidValidity, status.mUidValidity)) {
+            return new ImapSyncState(uidValidity, highestModSeq);
+        }
+        return new ImapSyncState(uidValidity, highestModSeq, status.mUidNext,
+                status.mMessageCount, status.mUnseenCount);
+    }
+
+    /**
+     * @return whether nothing we can see with STATUS changed in the mailbox, compared to the
+     * {@code remote} status.
+     */
+    public boolean isUnchanged(ImapSyncState remote) {
+        return hasStatus() && remote.hasStatus()
+                && mUidValidity.equals(remote.mUidValidity)
+                && mUidNext.equals(remote.mUidNext)
+                && mMessageCount.equals(remote.mMessageCount)
+                && mUnseenCount.equals(remote.mUnseenCount);
+    }
+
+    /**
+     * @return whether, judging by the {@code remote} status, the only change in the mailbox may
+     * be new messages: then all of them have a UID of at least {@link #mUidNext}, and there are
+     * {@link #getNewMessageCount} of them.
+     */
+    public boolean mayOnlyHaveNewMessages(ImapSyncState remote) {
+        if (!hasStatus() || !remote.hasStatus() || !mUidValidity.equals(remote.mUidValidity)) {
+            return false;
+        }
+        final long newMessages = getNewMessageCount(remote);
+        final long newUnseen = toNumber(remote.mUnseenCount) - toNumber(mUnseenCount);
+        // If fewer messages are unseen, some of the old ones were read
+        return toNumber(remote.mUidNext) > toNumber(mUidNext) && newMessages > 0
+                && newUnseen >= 0 && newUnseen <= newMessages;
+    }
+
+    /**
+     * @return how many more messages the mailbox has in the {@code remote} status.
+     */
+    public long getNewMessageCount(ImapSyncState remote) {
+        return toNumber(remote.mMessageCount) - toNumber(mMessageCount);
+    }
+
+    private boolean hasStatus() {
+        return isNumber(mUidValidity) && isNumber(mUidNext) && isNumber(mMessageCount)
+                && isNumber(mUnseenCount);
+    }
+
+    private static boolean isNumber(String s) {
+        return toNumber(s) >= 0;
+    }
+
+    /** @return {@code s} as a number, or -1 if it isn't one. */
+    private static long toNumber(String s) {
+        if (s == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the sync key to store this state in the mailbox.
+     */
+    public String toSyncKey() {
+        return nullToEmpty(mUidValidity) + SEPARATOR + nullToEmpty(mHighestModSeq) + SEPARATOR
+                + nullToEmpty(mUidNext) + SEPARATOR + nullToEmpty(mMessageCount) + SEPARATOR
+                + nullToEmpty(mUnseenCount);
+    }
+
+    private static String nullToEmpty(String s) {
+        return (s == null) ? "" : s;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the background work of {@link ImapService} on a fixed number of threads.
+ *
+ * <p>Queued tasks run by priority, then in the order they were submitted.  A task may have a key,
+ * e.g. the mailbox it works on: a task is dropped if another one with the same key is still
+ * queued, since that one will do the same work.  Once a task starts running its key is released,
+ * so that changes made meanwhile are picked up by the next one.
+ *
+ * <p>A task may also need a lock, e.g. the one of the account it works on.  If the lock is held
+ * elsewhere when the task comes up, the task is set aside without taking a thread, and queued
+ * again once the lock is released with {@link #unlock}.  So work on a busy account never keeps
+ * the work on other accounts waiting.
+ */
+/* package */ class ImapTaskExecutor {
+    /** Work the user is waiting for, like upsyncing a local change. */
+    public static final int PRIORITY_USER = 0;
+    /** Changes pushed by the server. */
+    public static final int PRIORITY_PUSH = 1;
+    /** Housekeeping of the IDLE connections. */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final HashSet<String> mQueuedKeys = new HashSet<String>();
+    // The tasks set aside until their lock is released
+    private final HashMap<ReentrantLock, ArrayList<Task>> mWaitingTasks =
+            new HashMap<ReentrantLock, ArrayList<Task>>();
+
+    public ImapTaskExecutor(final String name, int threads) {
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, name + " #" + mCount.incrementAndGet());
+                        t.setPriority(Thread.NORM_PRIORITY - 1);
+                        return t;
+                    }
+                });
+        // Don't keep idle threads around between bursts of work
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue {@code r} to run with {@code priority}.
+     *
+     * @param key identifies the work done by {@code r}, or null if it can't be coalesced
+     * @return false if the task was dropped because one with the same key is still queued
+     */
+    public boolean execute(int priority, String key, Runnable r) {
+        return execute(priority, key, null, r);
+    }
+
+    /**
+     * Queue {@code r} to run with {@code priority} while holding {@code lock}, which must be
+     * released with {@link #unlock} wherever else it is taken.
+     *
+     * @param key identifies the work done by {@code r}, or null if it can't be coalesced
+     * @param lock the lock held while {@code r} runs, or null if none is needed
+     * @return false if the task was dropped because one with the same key is still queued
+     */
+    public boolean execute(int priority, String key, ReentrantLock lock, Runnable r) {
+        if (key != null) {
+            synchronized (mQueuedKeys) {
+                if (!mQueuedKeys.add(key)) {
+                    if (Logging.LOGD) {
+                        LogUtils.d(Logging.LOG_TAG, "Coalesced queued task " + key);
+                    }
+                    return false;
+                }
+            }
+        }
+        mExecutor.execute(new Task(priority, mSequence.getAndIncrement(), key, lock, r));
+        return true;
+    }
+
+    /** Same as {@link #execute(int, String, Runnable)}, for work that can't be coalesced. */
+    public void execute(int priority, Runnable r) {
+        execute(priority, null, r);
+    }
+
+    /**
+     * Release {@code lock}, and queue again the tasks which were waiting for it once it is free.
+     */
+    public void unlock(ReentrantLock lock) {
+        lock.unlock();
+        if (lock.isHeldByCurrentThread()) {
+            // Still held by an outer caller
+            return;
+        }
+        final ArrayList<Task> tasks;
+        synchronized (mWaitingTasks) {
+            tasks = mWaitingTasks.remove(lock);
+        }
+        if (tasks != null) {
+            for (Task task : tasks) {
+                mExecutor.execute(task);
+            }
+        }
+    }
+
+    private void releaseKey(String key) {
+        if (key != null) {
+            synchronized (mQueuedKeys) {
+                mQueuedKeys.remove(key);
+            }
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final int mPriority;
+        private final long mSequence;
+        private final String mKey;
+        private final ReentrantLock mLock;
+        private final Runnable mRunnable;
+
+        public Task(int priority, long sequence, String key, ReentrantLock lock, Runnable r) {
+            mPriority = priority;
+            mSequence = sequence;
+            mKey = key;
+            mLock = lock;
+            mRunnable = r;
+        }
+
+        @Override
+        public void run() {
+            if (mLock != null) {
+                // unlock() takes the waiting tasks after releasing the lock, with the same
+                // monitor, so a release in between can't be missed
+                synchronized (mWaitingTasks) {
+                    if (!mLock.tryLock()) {
+                        // Keep the key: the task is still queued, in a way
+                        ArrayList<Task> tasks = mWaitingTasks.get(mLock);
+                        if (tasks == null) {
+                            tasks = new ArrayList<Task>();
+                            mWaitingTasks.put(mLock, tasks);
+                        }
+                        tasks.add(this);
+                        return;
+                    }
+                }
+            }
+            releaseKey(mKey);
+            try {
+                mRunnable.run();
+            } finally {
+                if (mLock != null) {
+                    unlock(mLock);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
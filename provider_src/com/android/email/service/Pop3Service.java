@@ -51,7 +51,6 @@ import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.IEmailServiceCallback;
-import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.providers.UIProvider.AttachmentState;
 import com.android.mail.utils.LogUtils;
@@ -66,6 +65,8 @@ import java.util.HashSet;
 public class Pop3Service extends Service {
     private static final String TAG = "Pop3Service";
     private static final int DEFAULT_SYNC_COUNT = 100;
+    // The maximum number of downloaded messages to save in a single batch
+    private static final int MAX_MESSAGES_TO_SAVE = 20;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -174,6 +175,9 @@ public class Pop3Service extends Service {
             LogUtils.d(TAG, "Loading " + unsyncedMessages.size() + " unsynced messages");
         }
 
+        // The downloaded messages are saved by batches, complete and partial ones apart
+        final ArrayList<Pop3Message> completeMessages = new ArrayList<Pop3Message>();
+        final ArrayList<Pop3Message> partialMessages = new ArrayList<Pop3Message>();
         try {
             int cnt = unsyncedMessages.size();
             // They are in most recent to least recent order, process them that way.
@@ -195,13 +199,33 @@ public class Pop3Service extends Service {
                             + "complete");
                 }
                 // If message is incomplete, create a "fake" attachment
-                Utilities.copyOneMessageToProvider(context, message, account, toMailbox, flag);
+                if (flag == EmailContent.Message.FLAG_LOADED_COMPLETE) {
+                    completeMessages.add(message);
+                } else {
+                    partialMessages.add(message);
+                }
+                if (completeMessages.size() + partialMessages.size() >= MAX_MESSAGES_TO_SAVE) {
+                    saveMessages(context, account, toMailbox, completeMessages, partialMessages);
+                }
             }
         } catch (IOException e) {
             throw new MessagingException(MessagingException.IOERROR);
+        } finally {
+            // Keep what was downloaded so far
+            saveMessages(context, account, toMailbox, completeMessages, partialMessages);
         }
     }
 
+    private static void saveMessages(Context context, Account account, Mailbox toMailbox,
+            ArrayList<Pop3Message> completeMessages, ArrayList<Pop3Message> partialMessages) {
+        Utilities.copyMessagesToProvider(context, completeMessages, account, toMailbox,
+                EmailContent.Message.FLAG_LOADED_COMPLETE);
+        Utilities.copyMessagesToProvider(context, partialMessages, account, toMailbox,
+                EmailContent.Message.FLAG_LOADED_PARTIAL);
+        completeMessages.clear();
+        partialMessages.clear();
+    }
+
     private static class FetchCallback implements EOLConvertingInputStream.Callback {
         private final ContentResolver mResolver;
         private final Uri mAttachmentUri;
@@ -445,29 +469,12 @@ public class Pop3Service extends Service {
         // Remove any messages that are in the local store but no longer on the remote store.
         HashSet<String> localUidsToDelete = new HashSet<String>(localMessageMap.keySet());
         localUidsToDelete.removeAll(remoteUidMap.keySet());
+        final ArrayList<Long> messagesToDelete = new ArrayList<Long>();
         for (String uidToDelete : localUidsToDelete) {
             LogUtils.d(Logging.LOG_TAG, "need to delete " + uidToDelete);
-            LocalMessageInfo infoToDelete = localMessageMap.get(uidToDelete);
-
-            // Delete associated data (attachment files)
-            // Attachment & Body records are auto-deleted when we delete the
-            // Message record
-            AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId,
-                    infoToDelete.mId);
-
-            // Delete the message itself
-            Uri uriToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.CONTENT_URI, infoToDelete.mId);
-            resolver.delete(uriToDelete, null, null);
-
-            // Delete extra rows (e.g. synced or deleted)
-            Uri updateRowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.UPDATED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(updateRowToDelete, null, null);
-            Uri deleteRowToDelete = ContentUris.withAppendedId(
-                    EmailContent.Message.DELETED_CONTENT_URI, infoToDelete.mId);
-            resolver.delete(deleteRowToDelete, null, null);
+            messagesToDelete.add(localMessageMap.get(uidToDelete).mId);
         }
+        Utilities.deleteSyncedMessages(context, messagesToDelete);
 
         LogUtils.d(TAG, "loadUnsynchedMessages " + unsyncedMessages.size());
         // Load messages we need to sync
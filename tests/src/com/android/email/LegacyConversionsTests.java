@@ -42,6 +42,7 @@ import com.android.emailcommon.provider.EmailContent.Attachment;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Tests of the Legacy Conversions code (used by MessagingController).
@@ -220,6 +221,38 @@ public class LegacyConversionsTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(4, EmailContent.count(mProviderContext, uri, null, null));
     }
 
+    /**
+     * Test that attachments built for a batch reuse the ids of the ones already in the DB.
+     */
+    public void testMakeAttachments() throws MessagingException {
+        final EmailContent.Message localMessage = new EmailContent.Message();
+        localMessage.mAccountKey = 1;
+        final Message legacyMessage = prepareLegacyMessageWithAttachments(2, false);
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        final ArrayList<Part> attachments = new ArrayList<Part>();
+        MimeUtility.collectParts(legacyMessage, viewables, attachments);
+
+        // Nothing in the DB yet
+        ArrayList<Part> parts = new ArrayList<Part>();
+        LegacyConversions.makeAttachments(localMessage, attachments, viewables,
+                new ArrayList<Attachment>(), parts);
+        assertEquals(2, localMessage.mAttachments.size());
+        assertEquals(attachments, parts);
+        assertFalse(localMessage.mAttachments.get(0).isSaved());
+        assertFalse(localMessage.mAttachments.get(1).isSaved());
+        assertTrue(localMessage.mFlagAttachment);
+
+        // The first one was saved already
+        final Attachment dbAttachment = localMessage.mAttachments.get(0);
+        dbAttachment.mId = 5;
+        parts = new ArrayList<Part>();
+        LegacyConversions.makeAttachments(localMessage, attachments, viewables,
+                Arrays.asList(dbAttachment), parts);
+        assertEquals(2, localMessage.mAttachments.size());
+        assertEquals(5, localMessage.mAttachments.get(0).mId);
+        assertFalse(localMessage.mAttachments.get(1).isSaved());
+    }
+
     /**
      * Prepare a legacy message with 1+ attachments
      * @param numAttachments how many attachments to add
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class ImapIdleReaderTests extends AndroidTestCase {
+    private static final long WAIT_SECONDS = 5;
+
+    /**
+     * Records the calls of the reader, and reads what the pipe has without blocking.
+     */
+    private static class PipeSession implements ImapIdleReader.Session {
+        final Pipe mPipe;
+        final LinkedBlockingQueue<String> mCalls = new LinkedBlockingQueue<String>();
+        final StringBuilder mRead = new StringBuilder();
+        long mDeadline;
+
+        PipeSession() throws IOException {
+            mPipe = Pipe.open();
+            mPipe.source().configureBlocking(false);
+        }
+
+        void write(String s) throws IOException {
+            mPipe.sink().write(ByteBuffer.wrap(s.getBytes("US-ASCII")));
+        }
+
+        String nextCall() throws InterruptedException {
+            return mCalls.poll(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public SelectableChannel getChannel() {
+            return mPipe.source();
+        }
+
+        @Override
+        public long onReadable() {
+            final ByteBuffer buffer = ByteBuffer.allocate(64);
+            try {
+                final int count = mPipe.source().read(buffer);
+                if (count < 0) {
+                    mCalls.add("closed");
+                    return ImapIdleReader.FINISHED;
+                }
+                mRead.append(new String(buffer.array(), 0, count, "US-ASCII"));
+            } catch (IOException e) {
+                mCalls.add("closed");
+                return ImapIdleReader.FINISHED;
+            }
+            mCalls.add("readable " + mRead);
+            return mDeadline;
+        }
+
+        @Override
+        public long onDeadline() {
+            mCalls.add("deadline");
+            return ImapIdleReader.FINISHED;
+        }
+    }
+
+    public void testReadable() throws Exception {
+        final ImapIdleReader reader = new ImapIdleReader();
+        reader.start();
+        final PipeSession session = new PipeSession();
+        session.mDeadline = SystemClock.uptimeMillis() + 60 * 1000;
+
+        // Data written before registering is reported right away
+        session.write("* 1 ");
+        reader.register(session, session.mDeadline);
+        assertEquals("readable * 1 ", session.nextCall());
+
+        session.write("EXISTS");
+        assertEquals("readable * 1 EXISTS", session.nextCall());
+
+        // The session isn't called anymore once it's finished
+        session.mPipe.sink().close();
+        assertEquals("closed", session.nextCall());
+        reader.check(session);
+        assertNull(session.mCalls.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    public void testDeadline() throws Exception {
+        final ImapIdleReader reader = new ImapIdleReader();
+        reader.start();
+        final PipeSession first = new PipeSession();
+        final PipeSession second = new PipeSession();
+        first.mDeadline = SystemClock.uptimeMillis() + 100;
+        second.mDeadline = SystemClock.uptimeMillis() + 60 * 1000;
+
+        // Registered sessions are called once, even with nothing to read
+        reader.register(first, first.mDeadline);
+        reader.register(second, second.mDeadline);
+        assertEquals("readable ", first.nextCall());
+        assertEquals("readable ", second.nextCall());
+
+        // Only the first one's deadline comes
+        assertEquals("deadline", first.nextCall());
+        assertNull(second.mCalls.poll(200, TimeUnit.MILLISECONDS));
+
+        // The other one is still watched
+        second.write("+ idling");
+        assertEquals("readable + idling", second.nextCall());
+    }
+
+    public void testCheck() throws Exception {
+        final ImapIdleReader reader = new ImapIdleReader();
+        reader.start();
+        final PipeSession session = new PipeSession();
+        session.mDeadline = SystemClock.uptimeMillis() + 60 * 1000;
+        reader.register(session, session.mDeadline);
+        assertEquals("readable ", session.nextCall());
+
+        // The session is called although there is nothing to read
+        reader.check(session);
+        assertEquals("readable ", session.nextCall());
+
+        // A closed channel is reported on the next check
+        session.mPipe.source().close();
+        reader.check(session);
+        assertEquals("closed", session.nextCall());
+    }
+}
@@ -31,6 +31,8 @@ import com.android.email.DBTestHelper;
 import com.android.email.MockSharedPreferences;
 import com.android.email.MockVendorPolicy;
 import com.android.email.mail.store.ImapStore.ImapMessage;
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapTestUtils;
 import com.android.email.mail.transport.MockTransport;
@@ -60,7 +62,10 @@ import com.android.emailcommon.utility.Utility;
 import org.apache.commons.io.IOUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -161,6 +166,17 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         resetTag();
     }
 
+    public void testGetMessageUidSets() throws Exception {
+        assertEquals(Arrays.asList(), ImapStore.getMessageUidSets(new Message[] {}, 100));
+        assertEquals(Arrays.asList("1:3,9", "XX"), ImapStore.getMessageUidSets(new Message[] {
+                mFolder.createMessage("9"),
+                mFolder.createMessage("XX"),
+                mFolder.createMessage("2"),
+                mFolder.createMessage("1"),
+                mFolder.createMessage("3"),
+                }, 6));
+    }
+
     public void testJoinMessageUids() throws Exception {
         assertEquals("", ImapStore.joinMessageUids(new Message[] {}));
         assertEquals("a", ImapStore.joinMessageUids(new Message[] {
@@ -1143,6 +1159,42 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertTrue(message1.isSet(Flag.SEEN));
     }
 
+    /**
+     * A FETCH which fails, even with UNAVAILABLE, keeps what was received and doesn't throw.
+     */
+    public void testFetchUnavailable() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message message1 = mFolder.createMessage("1");
+        Message message2 = mFolder.createMessage("2");
+        assertFalse(message1.isSet(Flag.SEEN));
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        mock.expect(getNextTag(false) + " UID FETCH 1:2 \\(UID FLAGS\\)",
+                new String[] {
+                "* 1 fETCH (uID 1 fLAGS (\\Seen))",
+                getNextTag(true) + " NO [UNAVAILABLE] Backend down"
+        });
+
+        // Shouldn't throw
+        mFolder.fetch(new Message[] { message1, message2 }, fp, null);
+
+        assertTrue(message1.isSet(Flag.SEEN));
+        assertFalse(message2.isSet(Flag.SEEN));
+
+        // And the connection is still usable
+        mock.expect(getNextTag(false) + " UID FETCH 2 \\(UID FLAGS\\)",
+                new String[] {
+                "* 2 fETCH (uID 2 fLAGS (\\Seen))",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        mFolder.fetch(new Message[] { message2 }, fp, null);
+        assertTrue(message2.isSet(Flag.SEEN));
+    }
+
 
     private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
         ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
@@ -1504,6 +1556,308 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(OpenMode.READ_WRITE, folder.getMode());
     }
 
+    /**
+     * Test for opening a folder with QRESYNC (RFC 7162), to get the changes since the last sync.
+     */
+    public void testOpenWithQresync() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 cONDSTORE qRESYNC",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        mock.expect(getNextTag(false) + " ENABLE QRESYNC", new String[] {
+                "* eNABLED qRESYNC",
+                getNextTag(true) + " oK enabled"});
+
+        final ImapFolder folder = (ImapFolder) mStore.getFolder("test");
+
+        mock.expect(getNextTag(false)
+                + " SELECT \\\"test\\\" \\(QRESYNC \\(67890007 90060115194045000\\)\\)",
+                new String[] {
+                "* 10 eXISTS",
+                "* oK [uIDVALIDITY 67890007]",
+                "* oK [hIGHESTMODSEQ 90060115205545359]",
+                "* vANISHED (eARLIER) 41,43:45",
+                "* 5 fETCH (uID 50 fLAGS (\\Seen \\Flagged) mODSEQ (90060115205545359))",
+                getNextTag(true) + " oK [rEAD-wRITE]"
+                });
+        folder.open(OpenMode.READ_WRITE, "67890007", "90060115194045000");
+        assertEquals(10, folder.getMessageCount());
+        assertTrue(folder.isQresynced());
+        assertEquals("67890007", folder.getUidValidity());
+        assertEquals("90060115205545359", folder.getHighestModSeq());
+        assertEquals(Arrays.asList("41", "43", "44", "45"), folder.getVanishedUids());
+        final Message[] changed = folder.getChangedMessages();
+        assertEquals(1, changed.length);
+        assertEquals("50", changed[0].getUid());
+        assertTrue(changed[0].isSet(Flag.SEEN));
+        assertTrue(changed[0].isSet(Flag.FLAGGED));
+        assertFalse(changed[0].isSet(Flag.ANSWERED));
+        folder.close(false);
+
+        // UIDVALIDITY changed; the server doesn't report any changes
+        expectNoop(mock, true); // Need it because we reuse the connection.
+        mock.expect(getNextTag(false) + " SELECT \\\"test\\\" \\(QRESYNC \\(67890007 5\\)\\)",
+                new String[] {
+                "* 3 eXISTS",
+                "* oK [uIDVALIDITY 67890008]",
+                "* oK [hIGHESTMODSEQ 7]",
+                getNextTag(true) + " oK [rEAD-wRITE]"
+                });
+        folder.open(OpenMode.READ_WRITE, "67890007", "5");
+        assertFalse(folder.isQresynced());
+        assertEquals("67890008", folder.getUidValidity());
+        assertEquals(0, folder.getChangedMessages().length);
+
+        // Already open, e.g. by IDLE: selected again on the same connection, without NOOP
+        mock.expect(getNextTag(false) + " SELECT \\\"test\\\" \\(QRESYNC \\(67890008 7\\)\\)",
+                new String[] {
+                "* 4 eXISTS",
+                "* oK [uIDVALIDITY 67890008]",
+                "* oK [hIGHESTMODSEQ 8]",
+                "* 4 fETCH (uID 60 fLAGS () mODSEQ (8))",
+                getNextTag(true) + " oK [rEAD-wRITE]"
+                });
+        folder.open(OpenMode.READ_WRITE, "67890008", "7");
+        assertTrue(folder.isQresynced());
+        assertEquals(4, folder.getMessageCount());
+        assertEquals("60", folder.getChangedMessages()[0].getUid());
+    }
+
+    /**
+     * Test that COMPRESS (RFC 4978) is asked for after login, and that the connection is still
+     * usable if the server refuses to compress.
+     */
+    public void testCompressRefused() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 cOMPRESS=dEFLATE",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        mock.expect(getNextTag(false) + " COMPRESS DEFLATE",
+                getNextTag(true) + " nO [cOMPRESSIONACTIVE] DEFLATE active via TLS");
+
+        final ImapFolder folder = (ImapFolder) mStore.getFolder("test");
+        mock.expect(getNextTag(false) + " SELECT \\\"test\\\"", new String[] {
+                "* 3 eXISTS",
+                getNextTag(true) + " oK [rEAD-wRITE]"
+                });
+        folder.open(OpenMode.READ_WRITE);
+        assertEquals(3, folder.getMessageCount());
+    }
+
+    /**
+     * Records what an {@link ImapFolder.IdleCallback} is told.
+     */
+    private static class MockIdleCallback implements ImapFolder.IdleCallback {
+        int mServerChanges;
+        boolean mNeedSync;
+        final List<String> mFetchMessages = new ArrayList<String>();
+        final List<String> mExpungedMessages = new ArrayList<String>();
+        MessagingException mException;
+
+        @Override
+        public void onIdled() {
+        }
+
+        @Override
+        public void onIdlingDone() {
+        }
+
+        @Override
+        public void onNewServerChange(boolean needSync, List<String> fetchMessages,
+                List<String> expungedMessages) {
+            mServerChanges++;
+            mNeedSync |= needSync;
+            mFetchMessages.addAll(fetchMessages);
+            mExpungedMessages.addAll(expungedMessages);
+        }
+
+        @Override
+        public void onTimeout() {
+        }
+
+        @Override
+        public void onException(MessagingException ex) {
+            mException = ex;
+        }
+    }
+
+    /**
+     * Opens the folder "test" on a server which can NOTIFY (RFC 5465).
+     */
+    private ImapFolder openNotifyFolder(MockTransport mock) throws MessagingException {
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 iDLE nOTIFY",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+
+        final ImapFolder folder = (ImapFolder) mStore.getFolder("test");
+        mock.expect(getNextTag(false) + " SELECT \\\"test\\\"", new String[] {
+                "* 3 eXISTS",
+                getNextTag(true) + " oK [rEAD-wRITE]"
+                });
+        folder.open(OpenMode.READ_WRITE);
+        return folder;
+    }
+
+    /**
+     * Test that the watched mailboxes are asked for with NOTIFY SET, by their encoded names,
+     * along with the selected one.
+     */
+    public void testNotifySet() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        final ImapFolder folder = openNotifyFolder(mock);
+        assertTrue(folder.canNotify());
+
+        final MockIdleCallback callback = new MockIdleCallback();
+        folder.addNotifyMailbox(FOLDER_NAME, callback);
+        mock.expect(getNextTag(false) + " NOTIFY SET"
+                + " \\(SELECTED \\(MessageNew MessageExpunge FlagChange\\)\\)"
+                + " \\(MAILBOXES \\(\"" + FOLDER_ENCODED + "\"\\)"
+                + " \\(MessageNew MessageExpunge FlagChange\\)\\)",
+                getNextTag(true) + " oK NOTIFY completed");
+        folder.setupNotify(folder.getConnectionForTest());
+        assertNull(callback.mException);
+        assertTrue(folder.canNotify());
+
+        // Nothing to watch anymore: no command is sent
+        folder.removeNotifyMailbox(FOLDER_NAME);
+        folder.setupNotify(folder.getConnectionForTest());
+    }
+
+    /**
+     * Test that the STATUS responses received while idling go to the watched mailbox they
+     * name, and not to the selected one.
+     */
+    public void testNotifyStatusRouting() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        final ImapFolder folder = openNotifyFolder(mock);
+
+        final MockIdleCallback watched = new MockIdleCallback();
+        final MockIdleCallback other = new MockIdleCallback();
+        final MockIdleCallback selected = new MockIdleCallback();
+        folder.addNotifyMailbox(FOLDER_NAME, watched);
+        folder.addNotifyMailbox("other", other);
+
+        // The UIDVALIDITY of the selected folder is checked once the responses are read
+        mock.expect(getNextTag(false) + " STATUS \\\"test\\\" \\(UIDVALIDITY\\)",
+                getNextTag(true) + " oK STATUS completed");
+        folder.dispatchIdleChanges(Arrays.asList(
+                ImapTestUtils.parseResponse(
+                        "* sTATUS \"" + FOLDER_ENCODED + "\" (UIDNEXT 5 MESSAGES 3)"),
+                ImapTestUtils.parseResponse(
+                        "* sTATUS \"" + FOLDER_ENCODED + "\" (UIDNEXT 6 MESSAGES 4)"),
+                ImapTestUtils.parseResponse("1 oK DONE")), selected);
+
+        assertEquals(1, watched.mServerChanges);
+        assertTrue(watched.mNeedSync);
+        assertEquals(0, other.mServerChanges);
+        assertEquals(1, selected.mServerChanges);
+        assertFalse(selected.mNeedSync);
+    }
+
+    /**
+     * Test that a FETCH of a message whose UID isn't known yet is resolved by its sequence
+     * number after the EXPUNGE of a message before it, which renumbers it.
+     */
+    public void testIdleFetchBeforeExpunge() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        final ImapFolder folder = openNotifyFolder(mock);
+
+        mock.expect(getNextTag(false)
+                + " STATUS \\\"test\\\" \\(UIDVALIDITY UIDNEXT MESSAGES\\)", new String[] {
+                "* sTATUS \"test\" (UIDVALIDITY 7 UIDNEXT 13 MESSAGES 3)",
+                getNextTag(true) + " oK STATUS completed"
+                });
+        mock.expect(getNextTag(false) + " UID SEARCH 1:\\*", new String[] {
+                "* sEARCH 10 11 12",
+                getNextTag(true) + " oK SEARCH completed"
+                });
+        folder.prepareIdling();
+
+        // Once the responses are read: the UIDVALIDITY, the new messages, then their UIDs
+        mock.expect(getNextTag(false) + " STATUS \\\"test\\\" \\(UIDVALIDITY\\)", new String[] {
+                "* sTATUS \"test\" (UIDVALIDITY 7)",
+                getNextTag(true) + " oK STATUS completed"
+                });
+        mock.expect(getNextTag(false) + " SEARCH UID 13:\\*", new String[] {
+                "* sEARCH 3",
+                getNextTag(true) + " oK SEARCH completed"
+                });
+        mock.expect(getNextTag(false) + " FETCH 3 \\(UID\\)", new String[] {
+                "* 3 fETCH (uID 13)",
+                getNextTag(true) + " oK FETCH completed"
+                });
+        final MockIdleCallback callback = new MockIdleCallback();
+        folder.dispatchIdleChanges(Arrays.asList(
+                ImapTestUtils.parseResponse("* 4 eXISTS"),
+                ImapTestUtils.parseResponse("* 4 fETCH (fLAGS (\\Seen))"),
+                ImapTestUtils.parseResponse("* 2 eXPUNGE"),
+                ImapTestUtils.parseResponse("1 oK DONE")), callback);
+
+        assertFalse(callback.mNeedSync);
+        assertEquals(Arrays.asList("13"), callback.mFetchMessages);
+        assertEquals(Arrays.asList("11"), callback.mExpungedMessages);
+    }
+
+    /**
+     * Test that the watched mailboxes are told when the server refuses NOTIFY, so they can be
+     * idled on their own, and that it isn't asked for again.
+     */
+    public void testNotifyRefused() throws Exception {
+        checkNotifyRefused(" nO [nOTIFICATIONOVERFLOW] Too many mailboxes");
+        mStore = (ImapStore) ImapStore.newInstance(mStore.getAccount(), mTestContext);
+        resetTag();
+        checkNotifyRefused(" bAD Unknown command");
+    }
+
+    private void checkNotifyRefused(String response) throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        final ImapFolder folder = openNotifyFolder(mock);
+
+        final MockIdleCallback callback = new MockIdleCallback();
+        folder.addNotifyMailbox("other", callback);
+        mock.expect(getNextTag(false) + " NOTIFY SET .*", getNextTag(true) + response);
+        folder.setupNotify(folder.getConnectionForTest());
+
+        assertNotNull(callback.mException);
+        assertEquals(MessagingException.SERVER_ERROR, callback.mException.getExceptionType());
+        assertFalse(folder.canNotify());
+
+        // Not asked for again, even if there are mailboxes to watch
+        folder.addNotifyMailbox("other", callback);
+        folder.setupNotify(folder.getConnectionForTest());
+    }
+
+    /**
+     * Test that the STATUS of the watched mailboxes, which the server may send at any time,
+     * don't mix with the one asked for.
+     */
+    public void testGetStatusesWithNotify() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        final ImapFolder folder = openNotifyFolder(mock);
+        folder.addNotifyMailbox("other", new MockIdleCallback());
+
+        mock.expect(getNextTag(false) + " STATUS \\\"test\\\" \\(UIDNEXT MESSAGES\\)",
+                new String[] {
+                "* sTATUS \"other\" (UIDNEXT 99 MESSAGES 50)",
+                "* sTATUS \"test\" (UIDNEXT 5 MESSAGES 3)",
+                getNextTag(true) + " oK STATUS completed"
+                });
+        final Map<String, String> statuses = folder.getStatuses(
+                new String[] { ImapConstants.UIDNEXT, ImapConstants.MESSAGES });
+        assertEquals(2, statuses.size());
+        assertEquals("5", statuses.get(ImapConstants.UIDNEXT));
+        assertEquals("3", statuses.get(ImapConstants.MESSAGES));
+    }
+
     public void testExists() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         expectLogin(mock);
@@ -1576,7 +1930,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      * Returns the pattern for the IMAP request to copy messages.
      */
     private String getCopyMessagesPattern() {
-        return getNextTag(false) + " UID COPY 11\\,12 \\\"&ZeVnLIqe-\\\"";
+        return getNextTag(false) + " UID COPY 11:12 \\\"&ZeVnLIqe-\\\"";
     }
 
     /**
@@ -1788,6 +2142,67 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(0, cb.messageUidChangeCalled);
     }
 
+    /**
+     * Test for moving messages with UID MOVE (RFC 6851), which reports the new UIDs in an
+     * untagged response.
+     */
+    public void testMoveMessages() throws Exception {
+        mCopyMock = openAndInjectMockTransport();
+        mCopyMock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mCopyMock.expect(getNextTag(false) + " CAPABILITY", new String[] {
+                "* cAPABILITY iMAP4rev1 uIDPLUS mOVE",
+                getNextTag(true) + " oK CAPABILITY completed"});
+        mCopyMock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK user authenticated (Success)");
+        expectSelect(mCopyMock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final Folder toFolder = mStore.getFolder("\u65E5\u672C\u8A9E");
+        final Message[] messages = new Message[] {
+                mFolder.createMessage("11"), mFolder.createMessage("12") };
+        mCopyMock.expect(getNextTag(false) + " UID MOVE 11:12 \\\"&ZeVnLIqe-\\\"",
+                new String[] {
+                    "* oK [cOPYUID 777 11,12 45,46] Moved UIDs.",
+                    "* 2 eXPUNGE",
+                    "* 1 eXPUNGE",
+                    getNextTag(true) + " oK Move completed"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(messages, toFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
+    /**
+     * Test for moving messages without MOVE; they're copied, then deleted and expunged.
+     */
+    public void testMoveMessagesWithoutMove() throws Exception {
+        setupCopyMessages(true);
+        mCopyMock.expect(getCopyMessagesPattern(),
+                new String[] {
+                    getNextTag(true) + " oK [COPYUID 777 11,12 45,46] UID COPY completed"
+                });
+        mCopyMock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {
+                    getNextTag(true) + " oK Store completed"
+                });
+        mCopyMock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {
+                    "* 2 eXPUNGE",
+                    "* 1 eXPUNGE",
+                    getNextTag(true) + " oK Expunge completed"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
     public void testGetUnreadMessageCount() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1829,7 +2244,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Set
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -1837,7 +2252,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Clear
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
+                getNextTag(false) + " UID STORE 11:12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -1846,6 +2261,78 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response. (src message not found)
     }
 
+    public void testGetMessagesFromUid() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        // The last message is always returned for "n:*"
+        mock.expect(getNextTag(false) + " UID SEARCH UID 100:\\*",
+                new String[] {
+                "* sEARCH 99 100 102",
+                getNextTag(true) + " oK success"
+                });
+        Message[] messages = mFolder.getMessagesFromUid("100");
+        assertEquals(2, messages.length);
+        assertEquals("100", messages[0].getUid());
+        assertEquals("102", messages[1].getUid());
+
+        mock.expect(getNextTag(false) + " UID SEARCH UID 103:\\*",
+                new String[] {
+                "* sEARCH 102",
+                getNextTag(true) + " oK success"
+                });
+        assertEquals(0, mFolder.getMessagesFromUid("103").length);
+    }
+
+    /**
+     * Test for {@link ImapFolder#setFlags} when the UIDs are split into several commands, which
+     * are pipelined.
+     */
+    public void testSetFlagsPipelined() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        Message[] messages = new Message[] {
+                mFolder.createMessage("11"),
+                mFolder.createMessage("13"),
+                };
+        // Only leave room for one UID per command
+        mStore.setMaxCommandLength(51);
+
+        // Both commands are written before any response is read
+        final String tag1 = getNextTag(false);
+        getNextTag(true);
+        final String tag2 = getNextTag(false);
+        getNextTag(true);
+        mock.expect(tag1 + " UID STORE 11 \\+FLAGS.SILENT \\(\\\\SEEN\\)");
+        mock.expect(tag2 + " UID STORE 13 \\+FLAGS.SILENT \\(\\\\SEEN\\)",
+                new String[] {
+                "* 3 eXISTS",
+                tag2 + " oK success",
+                tag1 + " oK success"
+                });
+        mFolder.setFlags(messages, new Flag[] {Flag.SEEN}, true);
+
+        // A failed command is reported once all the responses have been read
+        final String tag3 = getNextTag(false);
+        getNextTag(true);
+        final String tag4 = getNextTag(false);
+        getNextTag(true);
+        mock.expect(tag3 + " UID STORE 11 \\-FLAGS.SILENT \\(\\\\SEEN\\)");
+        mock.expect(tag4 + " UID STORE 13 \\-FLAGS.SILENT \\(\\\\SEEN\\)",
+                new String[] {
+                tag3 + " nO no such message",
+                tag4 + " oK success"
+                });
+        try {
+            mFolder.setFlags(messages, new Flag[] {Flag.SEEN}, false);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+    }
+
     public void testSearchForUids() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -2051,6 +2538,102 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertNotSame(con2, con3);
     }
 
+    public void testGetCapabilities() throws Exception {
+        // From the greeting or the login
+        ImapList capabilities = ImapConnection.getCapabilities(ImapTestUtils.parseResponse(
+                "* OK [CAPABILITY IMAP4rev1 IDLE MOVE] Ready"));
+        assertEquals(ImapConnection.CAPABILITY_IDLE | ImapConnection.CAPABILITY_MOVE,
+                ImapConnection.parseCapabilities(capabilities));
+        capabilities = ImapConnection.getCapabilities(ImapTestUtils.parseResponse(
+                "1 oK [cAPABILITY IMAP4rev1 ID] Logged in"));
+        assertEquals(ImapConnection.CAPABILITY_ID, ImapConnection.parseCapabilities(capabilities));
+
+        // From CAPABILITY
+        capabilities = ImapConnection.getCapabilities(ImapTestUtils.parseResponse(
+                "* CAPABILITY IMAP4rev1 STARTTLS UIDPLUS"));
+        assertEquals(ImapConnection.CAPABILITY_STARTTLS | ImapConnection.CAPABILITY_UIDPLUS,
+                ImapConnection.parseCapabilities(capabilities));
+        capabilities = ImapConnection.getCapabilities(ImapTestUtils.parseResponse(
+                "* CAPABILITY IMAP4rev1 IDLE NOTIFY"));
+        assertEquals(ImapConnection.CAPABILITY_IDLE | ImapConnection.CAPABILITY_NOTIFY,
+                ImapConnection.parseCapabilities(capabilities));
+
+        assertNull(ImapConnection.getCapabilities(ImapTestUtils.parseResponse("* OK Ready")));
+        assertNull(ImapConnection.getCapabilities(ImapTestUtils.parseResponse(
+                "* OK [UIDNEXT 4392] Predicted next UID")));
+    }
+
+    /**
+     * Test that the capabilities are asked only once per store, and that the ones announced
+     * with the login are used.
+     */
+    public void testServerCapabilitiesCached() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mStore.mCacheServerInfo = true;
+
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        assertTrue(con1.isCapable(ImapConnection.CAPABILITY_ID));
+        assertFalse(con1.isCapable(ImapConnection.CAPABILITY_IDLE));
+
+        // No CAPABILITY this time
+        resetTag();
+        final ImapConnection con2 = mStore.getConnection();
+        mock.expect(null, "* oK Imap 2000 Ready To Assist You");
+        mock.expect(getNextTag(false) + " ID \\(.*\\)",
+                new String[] {"* iD nIL", getNextTag(true) + " oK"});
+        mock.expect(getNextTag(false) + " LOGIN user \"password\"",
+                getNextTag(true) + " oK [cAPABILITY iMAP4rev1 iDLE] user authenticated");
+        con2.open();
+        assertTrue(con2.isCapable(ImapConnection.CAPABILITY_IDLE));
+
+        // After a failure, the capabilities are asked again
+        mStore.clearServerInfo();
+        resetTag();
+        final ImapConnection con3 = mStore.getConnection();
+        expectLogin(mock);
+        con3.open();
+        assertTrue(con3.isCapable(ImapConnection.CAPABILITY_ID));
+    }
+
+    /**
+     * Test for {@link ImapStore#closeExpiredConnections} and the pool limits.
+     */
+    public void testPooledConnectionExpiry() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        mStore.poolConnection(con1);
+
+        // Nothing expired yet
+        mStore.closeExpiredConnections();
+        assertEquals(1, mStore.getConnectionPoolForTest().size());
+        assertTrue(con1.isTransportOpenForTest());
+
+        // Expired connections are closed
+        con1.setPooledTime(con1.getPooledTime() - ImapStore.POOLED_CONNECTION_TTL_MILLIS);
+        mStore.closeExpiredConnections();
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertFalse(con1.isTransportOpenForTest());
+
+        // ... and not reused, without even a NOOP
+        final ImapConnection con2 = mStore.getConnection();
+        mStore.poolConnection(con2);
+        con2.setPooledTime(con2.getPooledTime() - ImapStore.POOLED_CONNECTION_TTL_MILLIS);
+        final ImapConnection con3 = mStore.getConnection();
+        assertNotSame(con2, con3);
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+
+        // The pool doesn't grow past its limit
+        for (int i = 0; i <= ImapStore.MAX_POOLED_CONNECTIONS; i++) {
+            mStore.poolConnection(new ImapConnection(mStore));
+        }
+        assertEquals(ImapStore.MAX_POOLED_CONNECTIONS, mStore.getConnectionPoolForTest().size());
+    }
+
     public void testCheckSettings() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
 
@@ -32,6 +32,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
@@ -392,4 +393,236 @@ public class ImapResponseParserTest extends AndroidTestCase {
         } catch (ByeException ok) {
         }
     }
+
+    /**
+     * Make sure atoms, quoted strings, brackets and literals are parsed correctly even when the
+     * stream hands them over one byte at a time, i.e. they span more than one buffer fill.
+     */
+    public void testFragmentedStream() throws Exception {
+        final byte[] data = Utility.toAscii(
+                "* 1 FETCH (UID 10 FLAGS (\\Seen) BODY[HEADER.FIELDS (DATE)] {5}\r\n" +
+                "a b c \"x y\" NIL)\r\n" +
+                "2 OK done\r\n");
+        final ImapResponseParser p = new ImapResponseParser(new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        }, new DiscourseLogger(4), 100000);
+
+        ImapResponse r = p.readResponse();
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("UID"),
+                        new ImapSimpleString("10"),
+                        new ImapSimpleString("FLAGS"),
+                        buildList(new ImapSimpleString("\\Seen")),
+                        new ImapSimpleString("BODY[HEADER.FIELDS (DATE)]"),
+                        new ImapMemoryLiteral(createFixedLengthInputStream("a b c")),
+                        new ImapSimpleString("x y"),
+                        ImapString.EMPTY
+                        )
+                ), r);
+
+        r = p.readResponse();
+        assertElement(buildResponse("2", false,
+                new ImapSimpleString("OK"),
+                new ImapSimpleString("done")
+                ), r);
+    }
+
+    /**
+     * A stream of the bytes added to it so far, which fails rather than blocking when more than
+     * that is read, like an idling connection read by {@link ImapResponseParser#readAvailable}.
+     */
+    private static class AvailableInputStream extends InputStream {
+        private final StringBuilder mData = new StringBuilder();
+        private boolean mEnded;
+
+        public void add(String data) {
+            mData.append(data);
+        }
+
+        public void end() {
+            mEnded = true;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mData.length() == 0 && mEnded) {
+                throw new IOException("End of stream reached");
+            }
+            return mData.length();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (mData.length() == 0) {
+                if (mEnded) {
+                    return -1;
+                }
+                fail("Read would block");
+            }
+            final int count = Math.min(length, mData.length());
+            System.arraycopy(Utility.toAscii(mData.substring(0, count)), 0, b, offset, count);
+            mData.delete(0, count);
+            return count;
+        }
+    }
+
+    public void testReadAvailable() throws Exception {
+        final AvailableInputStream in = new AvailableInputStream();
+        final ImapResponseParser p = new ImapResponseParser(in, new DiscourseLogger(4), 100000);
+        assertFalse(p.readAvailable());
+
+        // A response is only returned once its line is complete
+        in.add("* 3 EXI");
+        assertFalse(p.readAvailable());
+        in.add("STS\r\n* 1 FETCH (BODY[] {5}\r\nab");
+        assertTrue(p.readAvailable());
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("3"),
+                new ImapSimpleString("EXISTS")
+                ), p.readResponse());
+
+        // And with its literals, and the line after them
+        assertFalse(p.readAvailable());
+        in.add("cde)");
+        assertFalse(p.readAvailable());
+        in.add("\r\n2 OK done\r\n");
+        assertTrue(p.readAvailable());
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH"),
+                buildList(
+                        new ImapSimpleString("BODY[]"),
+                        new ImapMemoryLiteral(createFixedLengthInputStream("abcde"))
+                        )
+                ), p.readResponse());
+        assertTrue(p.readAvailable());
+        assertTrue(p.readResponse().isTagged());
+        assertFalse(p.readAvailable());
+
+        // The buffer grows for a response larger than it
+        final StringBuilder literal = new StringBuilder();
+        while (literal.length() < 20000) {
+            literal.append("0123456789");
+        }
+        in.add("* 2 FETCH (BODY[] {" + literal.length() + "}\r\n");
+        in.add(literal.substring(0, 10000));
+        assertFalse(p.readAvailable());
+        in.add(literal.substring(10000) + ")\r\n");
+        assertTrue(p.readAvailable());
+        final ImapResponse r = p.readResponse();
+        assertEquals(literal.toString(), r.getListOrEmpty(2).getStringOrEmpty(1).getString());
+        assertFalse(p.readAvailable());
+
+        in.end();
+        try {
+            p.readAvailable();
+            fail();
+        } catch (IOException e) {
+            // OK
+        }
+    }
+
+    /** Records the callbacks as a single string. */
+    private static class RecordingFetchHandler implements ImapFetchHandler {
+        public final StringBuilder mLog = new StringBuilder();
+        public boolean mConsumeLiterals;
+
+        @Override public void onFetchStart(String messageNumber) {
+            mLog.append("start:" + messageNumber + ";");
+        }
+        @Override public void onUid(String uid) {
+            mLog.append("uid:" + uid + ";");
+        }
+        @Override public void onFlag(String flag) {
+            mLog.append("flag:" + flag + ";");
+        }
+        @Override public void onInternalDate(ImapString internalDate) {
+            mLog.append("date:" + internalDate.getString() + ";");
+        }
+        @Override public void onSize(int size) {
+            mLog.append("size:" + size + ";");
+        }
+        @Override public boolean onLiteral(String key, InputStream in) throws IOException {
+            if (!mConsumeLiterals) {
+                return false;
+            }
+            // Only read a part of it; the parser should skip the rest.
+            final byte[] buffer = new byte[2];
+            final int count = in.read(buffer);
+            mLog.append("literal:" + key + ":" + new String(buffer, 0, count, "US-ASCII") + ";");
+            return true;
+        }
+        @Override public void onItem(String key, ImapElement value) {
+            mLog.append(key + ":" + value.toString() + ";");
+        }
+        @Override public void onFetchEnd() {
+            mLog.append("end;");
+        }
+    }
+
+    public void testFetchHandler() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (FLAGS (\\seen \\Answered $Label1) UID 10)\r\n" +
+                "* 2 FETCH (UID 11 INTERNALDATE \"01-Jan-2009 11:34:56 -0100\" " +
+                        "RFC822.SIZE 1234 BODY[HEADER.FIELDS (DATE)] {3}\r\n" +
+                "abc BODYSTRUCTURE (\"TEXT\" \"PLAIN\"))\r\n" +
+                "* 3 EXISTS\r\n" +
+                "* OK [UIDNEXT 12] Predicted next UID\r\n" +
+                "2 OK done\r\n");
+        final RecordingFetchHandler handler = new RecordingFetchHandler();
+
+        // Well-known flags are passed as the constants.
+        assertNull(p.readResponse(handler));
+        assertEquals("start:1;flag:\\SEEN;flag:\\ANSWERED;flag:$Label1;uid:10;end;",
+                handler.mLog.toString());
+        handler.mLog.setLength(0);
+
+        assertNull(p.readResponse(handler));
+        assertEquals("start:2;uid:11;date:01-Jan-2009 11:34:56 -0100;size:1234;" +
+                "BODY[HEADER.FIELDS (DATE)]:{3 byte literal(memory)};" +
+                "BODYSTRUCTURE:[\"TEXT\", \"PLAIN\"];end;",
+                handler.mLog.toString());
+        handler.mLog.setLength(0);
+
+        // Other responses are returned as usual.
+        ImapResponse r = p.readResponse(handler);
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("3"),
+                new ImapSimpleString("EXISTS")
+                ), r);
+
+        r = p.readResponse(handler);
+        assertTrue(r.isOk());
+        assertEquals("UIDNEXT", r.getResponseCodeOrEmpty().getString());
+
+        r = p.readResponse(handler);
+        assertTrue(r.isTagged());
+        assertTrue(r.isOk());
+        assertEquals(0, handler.mLog.length());
+    }
+
+    public void testFetchHandlerConsumingLiteral() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (BODY[2] {5}\r\n" +
+                "abcde UID 10)\r\n" +
+                "2 OK done\r\n");
+        final RecordingFetchHandler handler = new RecordingFetchHandler();
+        handler.mConsumeLiterals = true;
+
+        assertNull(p.readResponse(handler));
+        assertEquals("start:1;literal:BODY[2]:ab;uid:10;end;", handler.mLog.toString());
+        assertTrue(p.readResponse(handler).isTagged());
+    }
 }
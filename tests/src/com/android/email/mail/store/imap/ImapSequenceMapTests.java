@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class ImapSequenceMapTests extends AndroidTestCase {
+
+    public void testAppend() {
+        final ImapSequenceMap map = new ImapSequenceMap();
+        assertEquals(0, map.size());
+        assertNull(map.getLastUid());
+        assertNull(map.getUid(1));
+
+        // Not necessarily sorted
+        assertTrue(map.append(new String[] {"3", "10", "7"}));
+        assertEquals(3, map.size());
+        assertEquals("3", map.getUid(1));
+        assertEquals("7", map.getUid(2));
+        assertEquals("10", map.getUid(3));
+        assertNull(map.getUid(0));
+        assertNull(map.getUid(4));
+        assertEquals("10", map.getLastUid());
+
+        // UIDs must be increasing
+        assertFalse(map.append(new String[] {"11", "9"}));
+        assertFalse(map.append(new String[] {"x"}));
+        assertEquals(3, map.size());
+
+        // Grows past its initial capacity
+        final String[] uids = new String[100];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = Integer.toString(100 + i);
+        }
+        assertTrue(map.append(uids));
+        assertEquals(103, map.size());
+        assertEquals("199", map.getUid(103));
+    }
+
+    public void testExpunge() {
+        final ImapSequenceMap map = new ImapSequenceMap();
+        map.append(new String[] {"3", "7", "10", "12"});
+
+        assertEquals("7", map.expunge(2));
+        assertEquals(3, map.size());
+        assertEquals("10", map.getUid(2));
+        assertEquals("12", map.expunge(3));
+        assertEquals("3", map.expunge(1));
+        assertEquals("10", map.getUid(1));
+        assertEquals(1, map.getMessageCount());
+
+        try {
+            map.expunge(2);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testMessageCount() {
+        final ImapSequenceMap map = new ImapSequenceMap();
+        map.append(new String[] {"3", "7"});
+
+        // Two new messages
+        assertTrue(map.setMessageCount(4));
+        assertEquals(2, map.size());
+        assertEquals(4, map.getMessageCount());
+        assertNull(map.getUid(3));
+
+        // One of them was expunged
+        assertNull(map.expunge(4));
+        assertEquals(3, map.getMessageCount());
+        assertEquals("7", map.expunge(2));
+        assertEquals(2, map.getMessageCount());
+
+        // The other one is now known
+        assertTrue(map.append(new String[] {"20"}));
+        assertEquals(2, map.size());
+        assertEquals(2, map.getMessageCount());
+        assertEquals("20", map.getUid(2));
+
+        // Messages were expunged without us knowing
+        assertFalse(map.setMessageCount(1));
+    }
+
+    public void testRemove() {
+        final ImapSequenceMap map = new ImapSequenceMap();
+        map.append(new String[] {"3", "7", "10"});
+        map.setMessageCount(4);
+
+        assertTrue(map.remove("7"));
+        assertEquals("10", map.getUid(2));
+        assertEquals(3, map.getMessageCount());
+        assertFalse(map.remove("7"));
+        assertFalse(map.remove("5"));
+        assertEquals(3, map.getMessageCount());
+
+        // A new message that we didn't know the UID of
+        assertFalse(map.remove("11"));
+        assertEquals(2, map.getMessageCount());
+        assertFalse(map.remove("x"));
+    }
+}
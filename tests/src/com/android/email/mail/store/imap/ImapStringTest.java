@@ -27,6 +27,7 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
@@ -104,6 +105,54 @@ public class ImapStringTest extends AndroidTestCase {
         assertNull(nonDate.getDateOrNull());
     }
 
+    public void testGetDateMillisOrMin() {
+        assertEquals(1230813296000L,
+                new ImapSimpleString("01-Jan-2009 11:34:56 -0100").getDateMillisOrMin());
+        assertEquals(ImapString.NOT_A_DATE, new ImapSimpleString("1234").getDateMillisOrMin());
+        assertEquals(ImapString.NOT_A_DATE, ImapString.EMPTY.getDateMillisOrMin());
+    }
+
+    /**
+     * Compare the hand-written date-time parser with SimpleDateFormat.
+     */
+    public void testParseDateTime() throws Exception {
+        final SimpleDateFormat format =
+                new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+        final String[] dates = {
+            "01-Jan-1970 00:00:00 +0000",
+            "31-Dec-1969 23:59:59 +0000",
+            "29-Feb-2012 12:00:00 +0530",
+            "28-Feb-2100 08:09:10 -1200",
+            "01-Mar-2000 23:59:59 +1400",
+            "15-Oct-2014 16:27:05 -0700",
+        };
+        for (String date : dates) {
+            assertEquals(date, format.parse(date).getTime(), ImapString.parseDateTime(date));
+        }
+
+        // The day may be a single digit, optionally padded with a space.  Case doesn't matter.
+        final long expected = format.parse("05-Jun-2013 01:02:03 +0200").getTime();
+        assertEquals(expected, ImapString.parseDateTime(" 5-Jun-2013 01:02:03 +0200"));
+        assertEquals(expected, ImapString.parseDateTime("5-JUN-2013 01:02:03 +0200"));
+        assertEquals(expected, ImapString.parseDateTime("05-jun-2013 01:02:03 +0200"));
+
+        final String[] invalidDates = {
+            "",
+            "1234",
+            "01-Foo-2009 11:34:56 -0100",
+            "01-Jan-2009 11:34:56",
+            "01-Jan-2009 11:34:56 0100",
+            "01-Jan-2009 24:00:00 -0100",
+            "00-Jan-2009 11:34:56 -0100",
+            "01/Jan/2009 11:34:56 -0100",
+            "01-Jan-2009 11:34:56 -0100 ",
+            "1x-Jan-2009 11:34:56 -0100",
+        };
+        for (String date : invalidDates) {
+            assertEquals(date, ImapString.NOT_A_DATE, ImapString.parseDateTime(date));
+        }
+    }
+
     /**
      * Confirms that getDateOrNull() works fine regardless of the current locale.
      */
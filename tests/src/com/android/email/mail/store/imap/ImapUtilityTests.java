@@ -20,6 +20,8 @@ import android.test.AndroidTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.Arrays;
+
 @SmallTest
 public class ImapUtilityTests extends AndroidTestCase {
     public static final String[] EmptyArrayString = new String[0];
@@ -136,4 +138,36 @@ public class ImapUtilityTests extends AndroidTestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual);
     }
+
+    /**
+     * Test building IMAP sequence sets.
+     */
+    public void testGetImapSequenceSets() {
+        assertEquals(Arrays.asList(),
+                ImapUtility.getImapSequenceSets(EmptyArrayString, 100));
+        assertEquals(Arrays.asList("1"),
+                ImapUtility.getImapSequenceSets(new String[] {"1"}, 100));
+
+        // Sorted, with duplicates removed and runs merged
+        assertEquals(Arrays.asList("1:3,7,9:10"), ImapUtility.getImapSequenceSets(
+                new String[] {"10", "3", "1", "7", "2", "9", "3"}, 100));
+
+        // Non-numbers come last, as-is
+        assertEquals(Arrays.asList("5,a,XX"),
+                ImapUtility.getImapSequenceSets(new String[] {"a", "5", "XX"}, 100));
+
+        // Split by length
+        assertEquals(Arrays.asList("1,3,5", "7,9"), ImapUtility.getImapSequenceSets(
+                new String[] {"1", "3", "5", "7", "9"}, 5));
+        // Too long values get a set on their own
+        assertEquals(Arrays.asList("300", "100:200"), ImapUtility.getImapSequenceSets(
+                new String[] {"100:200", "300"}, 3));
+
+        // 500 consecutive UIDs make a single range
+        final String[] uids = new String[500];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = Integer.toString(1000 + i);
+        }
+        assertEquals(Arrays.asList("1000:1499"), ImapUtility.getImapSequenceSets(uids, 100));
+    }
 }
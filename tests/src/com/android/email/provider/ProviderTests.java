@@ -16,11 +16,14 @@
 
 package com.android.email.provider;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
@@ -29,12 +32,19 @@ import android.os.Environment;
 import android.os.Parcel;
 import android.test.MoreAsserts;
 import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 
 import com.android.email.provider.EmailProvider.EmailAttachmentService;
+import com.android.emailcommon.internet.MimeHeader;
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.mail.BodyPart;
+import com.android.emailcommon.mail.MessageTestUtils;
+import com.android.emailcommon.mail.MessageTestUtils.MultipartBuilder;
+import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.AccountColumns;
@@ -55,6 +65,7 @@ import com.android.emailcommon.utility.Utility;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Tests of the Email provider.
@@ -1505,6 +1516,60 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(0, numAttachments);
     }
 
+    /**
+     * Test the bulk delete of synced messages
+     * Confirms that it deletes the messages, their bodies, attachments and updated rows, and
+     * nothing else
+     */
+    public void testDeleteSyncedMessages() {
+        Account account1 = ProviderTestUtils.setupAccount("synced-delete", true, mMockContext);
+        long account1Id = account1.mId;
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1Id, true, mMockContext);
+        long box1Id = box1.mId;
+
+        long[] messageIds = new long[3];
+        for (int i = 0; i < messageIds.length; i++) {
+            Message message = ProviderTestUtils.setupMessage("message" + i, account1Id, box1Id,
+                    true, false, mMockContext);
+            ArrayList<Attachment> atts = new ArrayList<Attachment>();
+            atts.add(ProviderTestUtils.setupAttachment(
+                    -1, expectedAttachmentNames[0], expectedAttachmentSizes[0], false,
+                    mMockContext));
+            message.mAttachments = atts;
+            message.save(mMockContext);
+            messageIds[i] = message.mId;
+        }
+
+        // Leave an update of the first message to upsync
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, 1);
+        mMockContext.getContentResolver().update(
+                ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, messageIds[0]),
+                cv, null, null);
+
+        String selection = MessageColumns.MAILBOX_KEY + "=?";
+        String[] selArgs = new String[] {String.valueOf(box1Id)};
+        assertEquals(1, EmailContent.count(
+                mMockContext, Message.UPDATED_CONTENT_URI, selection, selArgs));
+
+        Utilities.deleteSyncedMessages(mMockContext, Arrays.asList(messageIds[0], messageIds[1]));
+
+        // Only the last message is left, with its body and attachment
+        assertEquals(1, EmailContent.count(mMockContext, Message.CONTENT_URI, selection, selArgs));
+        assertNotNull(Message.restoreMessageWithId(mMockContext, messageIds[2]));
+        assertEquals(0, EmailContent.count(
+                mMockContext, Message.UPDATED_CONTENT_URI, selection, selArgs));
+
+        String bodySelection = BodyColumns.MESSAGE_KEY + " IN (?,?,?)";
+        String attachmentSelection = AttachmentColumns.MESSAGE_KEY + " IN (?,?,?)";
+        String[] messageArgs = new String[] {String.valueOf(messageIds[0]),
+                String.valueOf(messageIds[1]), String.valueOf(messageIds[2])};
+        assertEquals(1, EmailContent.count(
+                mMockContext, Body.CONTENT_URI, bodySelection, messageArgs));
+        assertEquals(1, EmailContent.count(
+                mMockContext, Attachment.CONTENT_URI, attachmentSelection, messageArgs));
+    }
+
     /**
      * Test that our unique file name algorithm works as expected.  Since this test requires an
      * SD card, we check the environment first, and return immediately if none is mounted.
@@ -2311,4 +2376,129 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         a = Account.restoreAccountWithId(mMockContext, a.mId);
         assertNotNull(Policy.restorePolicyWithId(mMockContext, a.mPolicyKey));
     }
+
+    /**
+     * @return a downloaded message with a text body and an attachment without content
+     */
+    private static MimeMessage makeDownloadedMessage(String uid, String text)
+            throws MessagingException {
+        final BodyPart attachmentPart = MessageTestUtils.bodyPart("image/jpg", null);
+        attachmentPart.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,
+                "attachment;\n filename=\"" + uid + ".jpg\";\n size=100");
+        attachmentPart.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "1.2");
+
+        final MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setSubject("Subject " + uid);
+        message.setBody(new MultipartBuilder("multipart/mixed")
+                .addBodyPart(MessageTestUtils.textPart("text/plain", text))
+                .addBodyPart(attachmentPart)
+                .build());
+        return message;
+    }
+
+    private Message restoreMessageWithServerId(Context context, Mailbox mailbox, String uid) {
+        final Cursor c = context.getContentResolver().query(Message.CONTENT_URI,
+                Message.CONTENT_PROJECTION,
+                MessageColumns.MAILBOX_KEY + "=? AND " + MessageColumns.SERVER_ID + "=?",
+                new String[] { String.valueOf(mailbox.mId), uid }, null);
+        try {
+            assertTrue(c.moveToNext());
+            final Message message = EmailContent.getContent(context, c, Message.class);
+            assertFalse(c.moveToNext());
+            return message;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Check that the message {@code uid} was copied, with its body and attachment.
+     */
+    private Message checkCopiedMessage(Context context, Mailbox mailbox, String uid,
+            String text) {
+        final Message message = restoreMessageWithServerId(context, mailbox, uid);
+        assertEquals("Subject " + uid, message.mSubject);
+        assertEquals(mailbox.mAccountKey, message.mAccountKey);
+        assertEquals(Message.FLAG_LOADED_COMPLETE, message.mFlagLoaded);
+        assertTrue(message.mFlagAttachment);
+
+        final Body body = Body.restoreBodyWithMessageId(context, message.mId);
+        assertNotNull(body);
+        assertEquals(text, body.mTextContent);
+
+        final Attachment[] attachments =
+                Attachment.restoreAttachmentsWithMessageId(context, message.mId);
+        assertEquals(1, attachments.length);
+        assertEquals(uid + ".jpg", attachments[0].mFileName);
+        assertEquals("1.2", attachments[0].mLocation);
+        assertEquals(message.mAccountKey, attachments[0].mAccountKey);
+        return message;
+    }
+
+    /**
+     * Test that copyMessagesToProvider inserts new messages linked to their bodies and
+     * attachments, and updates the ones already there in the same batch.
+     */
+    public void testCopyMessagesToProvider() throws MessagingException {
+        final Account account = ProviderTestUtils.setupAccount("copy", true, mMockContext);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+
+        Utilities.copyMessagesToProvider(mMockContext, Arrays.asList(
+                makeDownloadedMessage("1", "Text 1"), makeDownloadedMessage("2", "Text 2")),
+                account, mailbox, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(2, EmailContent.count(mMockContext, Message.CONTENT_URI));
+        final Message message1 = checkCopiedMessage(mMockContext, mailbox, "1", "Text 1");
+        checkCopiedMessage(mMockContext, mailbox, "2", "Text 2");
+        final long bodyId1 = Body.restoreBodyWithMessageId(mMockContext, message1.mId).mId;
+        final long attachmentId1 =
+                Attachment.restoreAttachmentsWithMessageId(mMockContext, message1.mId)[0].mId;
+
+        // A new message and an update of an existing one
+        Utilities.copyMessagesToProvider(mMockContext, Arrays.asList(
+                makeDownloadedMessage("3", "Text 3"), makeDownloadedMessage("1", "Changed")),
+                account, mailbox, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(3, EmailContent.count(mMockContext, Message.CONTENT_URI));
+        assertEquals(3, EmailContent.count(mMockContext, Body.CONTENT_URI));
+        assertEquals(3, EmailContent.count(mMockContext, Attachment.CONTENT_URI));
+        checkCopiedMessage(mMockContext, mailbox, "3", "Text 3");
+        final Message updated1 = checkCopiedMessage(mMockContext, mailbox, "1", "Changed");
+        assertEquals(message1.mId, updated1.mId);
+        assertEquals(bodyId1, Body.restoreBodyWithMessageId(mMockContext, message1.mId).mId);
+        assertEquals(attachmentId1,
+                Attachment.restoreAttachmentsWithMessageId(mMockContext, message1.mId)[0].mId);
+    }
+
+    /**
+     * Test that copyMessagesToProvider copies the messages one by one when a batch fails.
+     */
+    public void testCopyMessagesToProviderFallback() throws MessagingException {
+        final Account account = ProviderTestUtils.setupAccount("copy", true, mMockContext);
+        final Mailbox mailbox = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+
+        final MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public ContentProviderResult[] applyBatch(String authority,
+                    ArrayList<ContentProviderOperation> operations)
+                    throws OperationApplicationException {
+                throw new OperationApplicationException("Batch refused for the test");
+            }
+        };
+        resolver.addProvider(EmailContent.AUTHORITY, mProvider);
+        final Context context = new ContextWrapper(mMockContext) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+
+        Utilities.copyMessagesToProvider(context, Arrays.asList(
+                makeDownloadedMessage("1", "Text 1"), makeDownloadedMessage("2", "Text 2")),
+                account, mailbox, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(2, EmailContent.count(mMockContext, Message.CONTENT_URI));
+        checkCopiedMessage(mMockContext, mailbox, "1", "Text 1");
+        checkCopiedMessage(mMockContext, mailbox, "2", "Text 2");
+    }
 }
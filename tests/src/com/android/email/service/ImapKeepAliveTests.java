@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class ImapKeepAliveTests extends AndroidTestCase {
+    private static final long NOW = 1000000000000L;
+
+    public void testProbeUp() {
+        final ImapKeepAlive keepAlive = ImapKeepAlive.fromString("wifi-1", null);
+        final long initial = keepAlive.getInterval();
+        assertEquals(ImapKeepAlive.INITIAL_INTERVAL, initial);
+
+        assertTrue(keepAlive.survived(initial, NOW));
+        assertEquals(initial + ImapKeepAlive.STEP, keepAlive.getInterval());
+        // Another connection which survived the old interval doesn't count
+        assertFalse(keepAlive.survived(initial, NOW));
+        assertEquals(initial + ImapKeepAlive.STEP, keepAlive.getInterval());
+
+        for (int i = 0; i < 20; i++) {
+            keepAlive.survived(keepAlive.getInterval(), NOW);
+        }
+        assertEquals(ImapKeepAlive.MAX_INTERVAL, keepAlive.getInterval());
+    }
+
+    public void testBackOff() {
+        final ImapKeepAlive keepAlive = ImapKeepAlive.fromString("mobile-1", null);
+        final long initial = keepAlive.getInterval();
+        keepAlive.survived(initial, NOW);
+        final long failed = keepAlive.getInterval();
+
+        assertTrue(keepAlive.died(failed, NOW));
+        assertEquals(initial, keepAlive.getInterval());
+        // Don't probe up to the interval which failed
+        assertFalse(keepAlive.survived(initial, NOW));
+        assertEquals(initial, keepAlive.getInterval());
+
+        // Until the failure is old enough
+        assertTrue(keepAlive.survived(initial, NOW + ImapKeepAlive.LIMIT_TTL + 1));
+        assertEquals(failed, keepAlive.getInterval());
+
+        // Never below the minimum
+        for (int i = 0; i < 20; i++) {
+            keepAlive.died(keepAlive.getInterval(), NOW);
+        }
+        assertEquals(ImapKeepAlive.MIN_INTERVAL, keepAlive.getInterval());
+    }
+
+    public void testToString() {
+        final ImapKeepAlive keepAlive = new ImapKeepAlive("wifi-1", 600000, 780000, NOW);
+        assertEquals("600000:780000:" + NOW, keepAlive.toString());
+
+        final ImapKeepAlive restored = ImapKeepAlive.fromString("wifi-1", keepAlive.toString());
+        assertEquals(600000, restored.getInterval());
+        assertEquals(keepAlive.toString(), restored.toString());
+
+        assertEquals(ImapKeepAlive.INITIAL_INTERVAL,
+                ImapKeepAlive.fromString("wifi-1", "garbage").getInterval());
+    }
+}
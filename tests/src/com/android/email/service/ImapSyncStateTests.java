@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashMap;
+
+@SmallTest
+public class ImapSyncStateTests extends AndroidTestCase {
+
+    public void testFromSyncKey() {
+        // No state yet, or the mailbox was resynced
+        for (String syncKey : new String[] {null, "", "0"}) {
+            final ImapSyncState state = ImapSyncState.fromSyncKey(syncKey);
+            assertNull(state.mUidValidity);
+            assertNull(state.mHighestModSeq);
+        }
+
+        ImapSyncState state = ImapSyncState.fromSyncKey("67890007:20050715194045000");
+        assertEquals("67890007", state.mUidValidity);
+        assertEquals("20050715194045000", state.mHighestModSeq);
+
+        // No CONDSTORE
+        state = ImapSyncState.fromSyncKey("67890007:");
+        assertEquals("67890007", state.mUidValidity);
+        assertNull(state.mHighestModSeq);
+    }
+
+    public void testToSyncKey() {
+        assertEquals("67890007:20050715194045000:::",
+                new ImapSyncState("67890007", "20050715194045000").toSyncKey());
+        assertEquals("67890007::::", new ImapSyncState("67890007", null).toSyncKey());
+        assertEquals("::::", new ImapSyncState(null, null).toSyncKey());
+        assertEquals("1:2:3:4:5", new ImapSyncState("1", "2", "3", "4", "5").toSyncKey());
+
+        final ImapSyncState state = ImapSyncState.fromSyncKey(
+                new ImapSyncState("1", null, "3", "4", "5").toSyncKey());
+        assertEquals("1", state.mUidValidity);
+        assertNull(state.mHighestModSeq);
+        assertEquals("3", state.mUidNext);
+        assertEquals("4", state.mMessageCount);
+        assertEquals("5", state.mUnseenCount);
+    }
+
+    public void testFromStatuses() {
+        final HashMap<String, String> statuses = new HashMap<String, String>();
+        statuses.put("MESSAGES", "231");
+        statuses.put("UIDNEXT", "44292");
+        statuses.put("UIDVALIDITY", "67890007");
+        statuses.put("UNSEEN", "3");
+        final ImapSyncState state = ImapSyncState.fromStatuses(statuses);
+        assertEquals("67890007", state.mUidValidity);
+        assertNull(state.mHighestModSeq);
+        assertEquals("44292", state.mUidNext);
+        assertEquals("231", state.mMessageCount);
+        assertEquals("3", state.mUnseenCount);
+    }
+
+    public void testAfterSync() {
+        final ImapSyncState status = new ImapSyncState("7", null, "100", "50", "2");
+        assertEquals("7:9:100:50:2", ImapSyncState.afterSync("7", "9", status).toSyncKey());
+        // STATUS was for another UIDVALIDITY
+        assertEquals("8:9:::", ImapSyncState.afterSync("8", "9", status).toSyncKey());
+        assertEquals("7::::", ImapSyncState.afterSync("7", null, null).toSyncKey());
+    }
+
+    public void testIsUnchanged() {
+        final ImapSyncState state = new ImapSyncState("7", "9", "100", "50", "2");
+        assertTrue(state.isUnchanged(new ImapSyncState("7", null, "100", "50", "2")));
+        assertFalse(state.isUnchanged(new ImapSyncState("8", null, "100", "50", "2")));
+        assertFalse(state.isUnchanged(new ImapSyncState("7", null, "101", "50", "2")));
+        assertFalse(state.isUnchanged(new ImapSyncState("7", null, "100", "49", "2")));
+        assertFalse(state.isUnchanged(new ImapSyncState("7", null, "100", "50", "1")));
+        // Nothing to compare with
+        assertFalse(new ImapSyncState("7", "9").isUnchanged(new ImapSyncState("7", "9")));
+        assertFalse(state.isUnchanged(new ImapSyncState("7", null, null, "50", "2")));
+    }
+
+    public void testMayOnlyHaveNewMessages() {
+        final ImapSyncState state = new ImapSyncState("7", null, "100", "50", "2");
+        // Two new messages, one of them unseen
+        ImapSyncState remote = new ImapSyncState("7", null, "102", "52", "3");
+        assertTrue(state.mayOnlyHaveNewMessages(remote));
+        assertEquals(2, state.getNewMessageCount(remote));
+
+        // Nothing new
+        assertFalse(state.mayOnlyHaveNewMessages(new ImapSyncState("7", null, "100", "50", "2")));
+        // Messages were expunged
+        assertFalse(state.mayOnlyHaveNewMessages(new ImapSyncState("7", null, "102", "49", "2")));
+        // An old message was read
+        assertFalse(state.mayOnlyHaveNewMessages(new ImapSyncState("7", null, "102", "52", "1")));
+        // UIDVALIDITY changed
+        assertFalse(state.mayOnlyHaveNewMessages(new ImapSyncState("8", null, "102", "52", "3")));
+    }
+}
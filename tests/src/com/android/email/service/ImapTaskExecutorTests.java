@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+@SmallTest
+public class ImapTaskExecutorTests extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private ImapTaskExecutor mExecutor;
+    private CountDownLatch mBlocker;
+    private final List<String> mRun = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new ImapTaskExecutor("test", 1);
+        // Keep the only thread busy until the tasks to test are queued
+        mBlocker = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        mExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mBlocker.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Let the queued tasks run
+                }
+            }
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private boolean execute(int priority, String key, final String name) {
+        return execute(priority, key, null, name);
+    }
+
+    private boolean execute(int priority, String key, ReentrantLock lock, final String name) {
+        return mExecutor.execute(priority, key, lock, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRun) {
+                    mRun.add(name);
+                }
+            }
+        });
+    }
+
+    /** Unblock the executor and wait for the queued tasks. */
+    private List<String> runQueuedTasks() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mExecutor.execute(Integer.MAX_VALUE, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        mBlocker.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        synchronized (mRun) {
+            return new ArrayList<String>(mRun);
+        }
+    }
+
+    public void testPriorities() throws InterruptedException {
+        execute(ImapTaskExecutor.PRIORITY_BACKGROUND, null, "background");
+        execute(ImapTaskExecutor.PRIORITY_PUSH, null, "push1");
+        execute(ImapTaskExecutor.PRIORITY_USER, null, "user");
+        execute(ImapTaskExecutor.PRIORITY_PUSH, null, "push2");
+
+        assertEquals(Arrays.asList("user", "push1", "push2", "background"), runQueuedTasks());
+    }
+
+    public void testCoalescing() throws InterruptedException {
+        assertTrue(execute(ImapTaskExecutor.PRIORITY_PUSH, "mailbox:1", "first"));
+        assertFalse(execute(ImapTaskExecutor.PRIORITY_PUSH, "mailbox:1", "second"));
+        assertTrue(execute(ImapTaskExecutor.PRIORITY_PUSH, "mailbox:2", "other"));
+        assertTrue(execute(ImapTaskExecutor.PRIORITY_PUSH, null, "unkeyed"));
+
+        assertEquals(Arrays.asList("first", "other", "unkeyed"), runQueuedTasks());
+
+        // The key is released once the task runs
+        assertTrue(execute(ImapTaskExecutor.PRIORITY_PUSH, "mailbox:1", "third"));
+    }
+
+    public void testLockedTasks() throws InterruptedException {
+        // One account is busy, e.g. synced outside of the executor
+        final ReentrantLock busyLock = new ReentrantLock();
+        busyLock.lock();
+        try {
+            assertTrue(execute(ImapTaskExecutor.PRIORITY_USER, "account:1", busyLock, "busy"));
+            assertTrue(execute(ImapTaskExecutor.PRIORITY_PUSH, "account:2", new ReentrantLock(),
+                    "free"));
+
+            // The task of the other account runs on the only thread meanwhile
+            assertEquals(Arrays.asList("free"), runQueuedTasks());
+
+            // The waiting task is still queued
+            assertFalse(execute(ImapTaskExecutor.PRIORITY_USER, "account:1", busyLock, "again"));
+        } finally {
+            mExecutor.unlock(busyLock);
+        }
+
+        // And runs once the lock is released, holding it
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] held = new boolean[1];
+        mExecutor.execute(ImapTaskExecutor.PRIORITY_BACKGROUND, null, busyLock, new Runnable() {
+            @Override
+            public void run() {
+                held[0] = busyLock.isHeldByCurrentThread();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(held[0]);
+        synchronized (mRun) {
+            assertEquals(Arrays.asList("free", "busy"), mRun);
+        }
+    }
+}